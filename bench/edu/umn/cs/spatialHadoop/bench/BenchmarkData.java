@@ -0,0 +1,100 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which 
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.mapred.RandomShapeGenerator;
+import edu.umn.cs.spatialHadoop.mapred.RandomShapeGenerator.DistributionType;
+
+/**
+ * Generates the synthetic datasets used by the benchmarks. Points are
+ * generated with the same distributions used by
+ * {@link edu.umn.cs.spatialHadoop.RandomSpatialGenerator} and a fixed seed
+ * so that all runs measure the same input.
+ */
+public class BenchmarkData {
+  /**The space in which all shapes are generated*/
+  public static final Rectangle MBR = new Rectangle(0, 0, 1000000, 1000000);
+
+  private BenchmarkData() { /* Enforce static use only */ }
+
+  /**
+   * Parses a distribution name, e.g., uniform, gaussian or correlated
+   * @param name
+   * @return
+   */
+  public static DistributionType distribution(String name) {
+    return DistributionType.valueOf(name.toUpperCase());
+  }
+
+  /**
+   * Generates random points with the given distribution
+   * @param count
+   * @param type
+   * @param seed
+   * @return
+   */
+  public static Point[] points(int count, DistributionType type, long seed) {
+    Random random = new Random(seed);
+    Point[] points = new Point[count];
+    for (int i = 0; i < count; i++) {
+      points[i] = new Point();
+      RandomShapeGenerator.generatePoint(points[i], MBR, type, random, 1);
+    }
+    return points;
+  }
+
+  /**
+   * Generates random rectangles whose lower corners follow the given
+   * distribution and whose sides are uniformly distributed in (0, maxSize]
+   * @param count
+   * @param type
+   * @param maxSize
+   * @param seed
+   * @return
+   */
+  public static Rectangle[] rectangles(int count, DistributionType type,
+      double maxSize, long seed) {
+    Random random = new Random(seed);
+    Point corner = new Point();
+    Rectangle[] rects = new Rectangle[count];
+    for (int i = 0; i < count; i++) {
+      RandomShapeGenerator.generatePoint(corner, MBR, type, random, 1);
+      rects[i] = new Rectangle(corner.x, corner.y,
+          corner.x + random.nextDouble() * maxSize + Math.ulp(corner.x),
+          corner.y + random.nextDouble() * maxSize + Math.ulp(corner.y));
+    }
+    return rects;
+  }
+
+  /**
+   * Serializes the given shapes in the text format, one per line, as stored
+   * in heap files.
+   * @param shapes
+   * @return
+   */
+  public static byte[] toLines(Shape[] shapes) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Text line = new Text();
+    for (Shape shape : shapes) {
+      line.clear();
+      shape.toText(line);
+      out.write(line.getBytes(), 0, line.getLength());
+      out.write('\n');
+    }
+    return out.toByteArray();
+  }
+}
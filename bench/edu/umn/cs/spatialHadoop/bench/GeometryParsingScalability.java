@@ -0,0 +1,100 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which 
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.bench;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.io.Text;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
+
+/**
+ * Measures the throughput of
+ * {@link TextSerializerHelper#consumeGeometryJTS(Text, char)} as the number
+ * of parsing threads goes up. Each thread parses an equal share of randomly
+ * generated polygons serialized as WKT and as hex-encoded WKB.
+ * Usage: GeometryParsingScalability [#polygons] [#points per polygon] [max threads]
+ */
+public class GeometryParsingScalability {
+
+  public static void main(String[] args) throws InterruptedException {
+    int numPolygons = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int numPoints = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) :
+      Runtime.getRuntime().availableProcessors();
+    
+    // Generate random polygons. Half of them as WKT and half as WKB
+    final byte[][] lines = new byte[numPolygons][];
+    GeometryFactory factory = new GeometryFactory();
+    WKBWriter wkbWriter = new WKBWriter();
+    Random random = new Random(0);
+    for (int i = 0; i < numPolygons; i++) {
+      double cx = random.nextDouble() * 1000, cy = random.nextDouble() * 1000;
+      Coordinate[] coords = new Coordinate[numPoints + 1];
+      for (int j = 0; j < numPoints; j++) {
+        double angle = 2 * Math.PI * j / numPoints;
+        double r = 1 + random.nextDouble();
+        coords[j] = new Coordinate(cx + r * Math.cos(angle), cy + r * Math.sin(angle));
+      }
+      coords[numPoints] = coords[0];
+      Geometry polygon = factory.createPolygon(factory.createLinearRing(coords), null);
+      String str = i % 2 == 0 ? polygon.toText() :
+        TextSerializerHelper.bytesToHex(wkbWriter.write(polygon));
+      lines[i] = str.getBytes();
+    }
+    
+    // Warm up the JIT before measuring
+    parseAll(lines, maxThreads);
+    
+    System.out.println("threads\tpolygons/sec\tspeedup");
+    double baseThroughput = 0;
+    for (int numThreads = 1; numThreads <= maxThreads; numThreads *= 2) {
+      long t1 = System.nanoTime();
+      parseAll(lines, numThreads);
+      long t2 = System.nanoTime();
+      double throughput = numPolygons * 1e9 / (t2 - t1);
+      if (numThreads == 1)
+        baseThroughput = throughput;
+      System.out.printf("%d\t%.0f\t%.2f\n", numThreads, throughput,
+          throughput / baseThroughput);
+    }
+  }
+
+  /**
+   * Parses all the given lines using the given number of threads
+   * @return - total number of points in all parsed geometries
+   */
+  private static long parseAll(final byte[][] lines, int numThreads)
+      throws InterruptedException {
+    List<Long> results = Parallel.forEach(lines.length, new RunnableRange<Long>() {
+      @Override
+      public Long run(int i1, int i2) {
+        Text text = new Text();
+        long numPoints = 0;
+        for (int i = i1; i < i2; i++) {
+          text.set(lines[i]);
+          numPoints += TextSerializerHelper.consumeGeometryJTS(text, '\0').getNumPoints();
+        }
+        return numPoints;
+      }
+    }, numThreads);
+    long total = 0;
+    for (Long result : results)
+      total += result;
+    return total;
+  }
+}
@@ -0,0 +1,115 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.visualization.FrequencyMap;
+
+/**
+ * Measures the operations of {@link FrequencyMap} used by heat map jobs,
+ * i.e., stamping points in the map phase, serializing canvases for the
+ * shuffle and merging them in the reduce phase.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeatMapBenchmark {
+  /**Width and height of the frequency map in pixels*/
+  @Param({"256", "1024"})
+  public int size;
+
+  @Param({"Gaussian", "Flat"})
+  public String smoothType;
+
+  @Param({"5"})
+  public int radius;
+
+  /**Number of points stamped in the map*/
+  @Param({"10000"})
+  public int numPoints;
+
+  private int[] xs, ys;
+  private FrequencyMap stamped;
+  private FrequencyMap target;
+  private byte[] serialized;
+
+  @Setup
+  public void generate() throws IOException {
+    Random random = new Random(0);
+    xs = new int[numPoints];
+    ys = new int[numPoints];
+    for (int i = 0; i < numPoints; i++) {
+      xs[i] = random.nextInt(size);
+      ys[i] = random.nextInt(size);
+    }
+    stamped = newMap();
+    for (int i = 0; i < numPoints; i++)
+      stamped.addPoint(xs[i], ys[i]);
+    target = newMap();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    stamped.write(new DataOutputStream(baos));
+    serialized = baos.toByteArray();
+  }
+
+  private FrequencyMap newMap() {
+    return new FrequencyMap(new Rectangle(0, 0, size, size), size, size,
+        radius, FrequencyMap.SmoothType.valueOf(smoothType));
+  }
+
+  @Benchmark
+  public FrequencyMap addPoints() {
+    FrequencyMap map = newMap();
+    for (int i = 0; i < numPoints; i++)
+      map.addPoint(xs[i], ys[i]);
+    return map;
+  }
+
+  @Benchmark
+  public FrequencyMap merge() {
+    target.mergeWith(stamped);
+    return target;
+  }
+
+  @Benchmark
+  public int write() throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(serialized.length);
+    stamped.write(new DataOutputStream(baos));
+    return baos.size();
+  }
+
+  @Benchmark
+  public FrequencyMap read() throws IOException {
+    FrequencyMap map = new FrequencyMap();
+    map.readFields(new DataInputStream(new ByteArrayInputStream(serialized)));
+    return map;
+  }
+}
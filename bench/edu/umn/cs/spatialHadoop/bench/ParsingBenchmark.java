@@ -0,0 +1,113 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which 
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
+
+/**
+ * Measures the parsing of text records, i.e., the work done by record readers
+ * for every line of a heap file. Each operation parses one batch of records.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+  /**Number of records parsed by each operation*/
+  @Param({"10000"})
+  public int numRecords;
+
+  @Param({"uniform", "gaussian", "correlated"})
+  public String distribution;
+
+  /**Serialized points, one per entry*/
+  private byte[][] pointLines;
+  /**Serialized rectangles, one per entry*/
+  private byte[][] rectangleLines;
+  /**Serialized coordinates of points as plain numbers*/
+  private byte[][] doubles;
+
+  private final Text line = new Text();
+  private final Point point = new Point();
+  private final Rectangle rectangle = new Rectangle();
+
+  @Setup
+  public void generate() {
+    Point[] points = BenchmarkData.points(numRecords,
+        BenchmarkData.distribution(distribution), 0);
+    Rectangle[] rects = BenchmarkData.rectangles(numRecords,
+        BenchmarkData.distribution(distribution), 100, 1);
+    pointLines = serialize(points);
+    rectangleLines = serialize(rects);
+    doubles = new byte[numRecords][];
+    for (int i = 0; i < numRecords; i++)
+      doubles[i] = Double.toString(points[i].x).getBytes();
+  }
+
+  private static byte[][] serialize(Shape[] shapes) {
+    byte[][] lines = new byte[shapes.length][];
+    Text text = new Text();
+    for (int i = 0; i < shapes.length; i++) {
+      text.clear();
+      shapes[i].toText(text);
+      lines[i] = text.copyBytes();
+    }
+    return lines;
+  }
+
+  @Benchmark
+  public double parseDoubles() {
+    double sum = 0;
+    for (byte[] d : doubles)
+      sum += TextSerializerHelper.deserializeDouble(d, 0, d.length);
+    return sum;
+  }
+
+  @Benchmark
+  public double parsePoints() {
+    double sum = 0;
+    for (byte[] l : pointLines) {
+      line.set(l);
+      point.fromText(line);
+      sum += point.x;
+    }
+    return sum;
+  }
+
+  @Benchmark
+  public double parseRectangles() {
+    double sum = 0;
+    for (byte[] l : rectangleLines) {
+      line.set(l);
+      rectangle.fromText(line);
+      sum += rectangle.x2;
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,95 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which 
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.indexing.GridPartitioner;
+import edu.umn.cs.spatialHadoop.indexing.HilbertCurvePartitioner;
+import edu.umn.cs.spatialHadoop.indexing.KdTreePartitioner;
+import edu.umn.cs.spatialHadoop.indexing.Partitioner;
+import edu.umn.cs.spatialHadoop.indexing.QuadTreePartitioner;
+import edu.umn.cs.spatialHadoop.indexing.STRPartitioner;
+import edu.umn.cs.spatialHadoop.indexing.ZCurvePartitioner;
+
+/**
+ * Measures {@link Partitioner#overlapPartition(edu.umn.cs.spatialHadoop.core.Shape)}
+ * for all partitioners, i.e., the work done by the indexer for every record.
+ * Partitioners are created from a sample of the same distribution as the
+ * data. Each operation assigns one batch of points to partitions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PartitionerBenchmark {
+  private static final Map<String, Class<? extends Partitioner>> Partitioners;
+
+  static {
+    Partitioners = new HashMap<String, Class<? extends Partitioner>>();
+    Partitioners.put("grid", GridPartitioner.class);
+    Partitioners.put("str", STRPartitioner.class);
+    Partitioners.put("quadtree", QuadTreePartitioner.class);
+    Partitioners.put("zcurve", ZCurvePartitioner.class);
+    Partitioners.put("hilbert", HilbertCurvePartitioner.class);
+    Partitioners.put("kdtree", KdTreePartitioner.class);
+  }
+
+  @Param({"grid", "str", "quadtree", "zcurve", "hilbert", "kdtree"})
+  public String sindex;
+
+  @Param({"uniform", "gaussian", "correlated"})
+  public String distribution;
+
+  /**Number of points assigned to partitions by each operation*/
+  @Param({"10000"})
+  public int numRecords;
+
+  /**Number of partitions to create*/
+  @Param({"1000"})
+  public int numPartitions;
+
+  private Partitioner partitioner;
+  private Point[] points;
+
+  @Setup
+  public void createPartitioner() throws Exception {
+    Point[] sample = BenchmarkData.points(numPartitions * 100,
+        BenchmarkData.distribution(distribution), 0);
+    partitioner = Partitioners.get(sindex).newInstance();
+    partitioner.createFromPoints(BenchmarkData.MBR, sample, 100);
+    points = BenchmarkData.points(numRecords,
+        BenchmarkData.distribution(distribution), 1);
+  }
+
+  @Benchmark
+  public int overlapPartition() {
+    int sum = 0;
+    for (Point p : points)
+      sum += partitioner.overlapPartition(p);
+    return sum;
+  }
+}
@@ -0,0 +1,110 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which 
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.indexing.RTree;
+
+/**
+ * Measures building an R-tree with {@link RTree#bulkLoadWrite} and running
+ * range queries on it in both leaf layouts.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RTreeBenchmark {
+  @Param({"100000"})
+  public int numRecords;
+
+  @Param({"uniform", "gaussian", "correlated"})
+  public String distribution;
+
+  @Param({"text", "binary"})
+  public String leafLayout;
+
+  /**Number of range queries run by each search operation*/
+  @Param({"100"})
+  public int numQueries;
+
+  /**Serialized records to bulk load*/
+  private byte[] lines;
+  /**A tree built over all records*/
+  private RTree<Rectangle> tree;
+  /**Queries with centers following the data distribution*/
+  private Rectangle[] queries;
+
+  private ByteArrayOutputStream buffer;
+
+  private int layout() {
+    return leafLayout.equals("binary") ? RTree.LEAF_LAYOUT_BINARY : RTree.LEAF_LAYOUT_TEXT;
+  }
+
+  @Setup
+  public void buildTree() throws IOException {
+    Rectangle[] rects = BenchmarkData.rectangles(numRecords,
+        BenchmarkData.distribution(distribution), 100, 0);
+    lines = BenchmarkData.toLines(rects);
+    buffer = new ByteArrayOutputStream(lines.length * 2);
+    bulkLoad();
+    tree = new RTree<Rectangle>();
+    tree.setStockObject(new Rectangle());
+    tree.readFields(new DataInputStream(new ByteArrayInputStream(buffer.toByteArray())));
+    
+    Rectangle[] centers = BenchmarkData.rectangles(numQueries,
+        BenchmarkData.distribution(distribution), 0, 1);
+    Random random = new Random(2);
+    queries = new Rectangle[numQueries];
+    for (int i = 0; i < numQueries; i++) {
+      double size = random.nextDouble() * 10000;
+      queries[i] = new Rectangle(centers[i].x1 - size, centers[i].y1 - size,
+          centers[i].x1 + size, centers[i].y1 + size);
+    }
+  }
+
+  @Benchmark
+  public int bulkLoad() throws IOException {
+    buffer.reset();
+    DataOutputStream out = new DataOutputStream(buffer);
+    RTree.bulkLoadWrite(lines, 0, lines.length, 4096 / RTree.NodeSize, out,
+        new Rectangle(), true, layout());
+    out.close();
+    return buffer.size();
+  }
+
+  @Benchmark
+  public int search() throws IOException {
+    int count = 0;
+    for (Rectangle query : queries)
+      count += tree.search(query, null);
+    return count;
+  }
+}
@@ -0,0 +1,67 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which 
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
+
+/**
+ * Measures the in-memory plane-sweep join kernel
+ * {@link SpatialAlgorithms#SpatialJoin_planeSweep(edu.umn.cs.spatialHadoop.core.Shape[], edu.umn.cs.spatialHadoop.core.Shape[], edu.umn.cs.spatialHadoop.core.ResultCollector2, org.apache.hadoop.mapred.Reporter)}
+ * as used to join two partitions. The join sorts the MBRs of its inputs in
+ * separate arrays and leaves the inputs unchanged, so the same inputs are
+ * reused by all operations of a trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SpatialJoinBenchmark {
+  @Param({"50000"})
+  public int numRecords;
+
+  @Param({"uniform", "gaussian", "correlated"})
+  public String distribution;
+
+  /**Maximum side length of generated rectangles*/
+  @Param({"1000"})
+  public double maxSize;
+
+  private Rectangle[] r, s;
+
+  @Setup(Level.Trial)
+  public void generate() {
+    r = BenchmarkData.rectangles(numRecords,
+        BenchmarkData.distribution(distribution), maxSize, 0);
+    s = BenchmarkData.rectangles(numRecords,
+        BenchmarkData.distribution(distribution), maxSize, 1);
+  }
+
+  @Benchmark
+  public int planeSweep() {
+    return SpatialAlgorithms.SpatialJoin_planeSweep(r, s, null, null);
+  }
+}
@@ -16,6 +16,7 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -83,15 +84,16 @@ public class Polygon extends java.awt.Polygon implements Shape {
 
   @Override
   public void fromText(Text text) {
-    this.npoints = TextSerializerHelper.consumeInt(text, ',');
+    TextCursor cursor = new TextCursor(text);
+    this.npoints = cursor.nextInt(',');
     this.xpoints = new int[npoints];
     this.ypoints = new int[npoints];
     
     for (int i = 0; i < npoints; i++) {
-      this.xpoints[i] = TextSerializerHelper.consumeInt(text, ',');
-      this.ypoints[i] = TextSerializerHelper.consumeInt(text,
-          i == npoints - 1 ? '\0' : ',');
+      this.xpoints[i] = cursor.nextInt(',');
+      this.ypoints[i] = cursor.nextInt(i == npoints - 1 ? '\0' : ',');
     }
+    cursor.consume();
   }
 
   @Override
@@ -34,6 +34,12 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
    */
   protected boolean fastRTree;
   
+  /**
+   * Layout of the leaf nodes in the written RTrees.
+   * @see SpatialSite#RTREE_LEAF_LAYOUT
+   */
+  protected int leafLayout;
+  
   /**The maximum storage (in bytes) that can be accepted by the user*/
   protected int maximumStorageOverhead;
 
@@ -53,6 +59,7 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
     // Determine the size of each RTree to decide when to flush a cell
     Configuration conf = fileSystem.getConf();
     this.fastRTree = conf.get(SpatialSite.RTREE_BUILD_MODE, "fast").equals("fast");
+    this.leafLayout = SpatialSite.getRTreeLeafLayout(conf);
     this.maximumStorageOverhead =
         (int) (conf.getFloat(SpatialSite.INDEXING_OVERHEAD, 0.1f) * blockSize);
   }
@@ -78,7 +85,8 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
       // available bytes in the block
       int degree = 4096 / RTree.NodeSize;
       int rtreeStorageOverhead =
-          RTree.calculateStorageOverhead(intermediateCellRecordCount[cellIndex], degree);
+          RTree.calculateStorageOverhead(intermediateCellRecordCount[cellIndex],
+              degree, leafLayout);
       if (rtreeStorageOverhead > bytes_available) {
         LOG.info("Early flushing an RTree with data "+
             intermediateCellSize[cellIndex]);
@@ -117,7 +125,7 @@ public class RTreeGridRecordWriter<S extends Shape> extends GridRecordWriter<S>
     cellStream.writeLong(SpatialSite.RTreeFileMarker);
     int degree = 4096 / RTree.NodeSize;
     RTree.bulkLoadWrite(cellData, 0, cellData.length, degree, cellStream,
-        stockObject.clone(), fastRTree);
+        stockObject.clone(), fastRTree, leafLayout);
     cellStream.close();
     cellData = null; // To allow GC to collect it
     
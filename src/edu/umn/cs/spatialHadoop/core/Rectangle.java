@@ -16,6 +16,7 @@ import java.io.IOException;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -254,10 +255,12 @@ public class Rectangle implements Shape, WritableComparable<Rectangle> {
   
   @Override
   public void fromText(Text text) {
-    x1 = TextSerializerHelper.consumeDouble(text, ',');
-    y1 = TextSerializerHelper.consumeDouble(text, ',');
-    x2 = TextSerializerHelper.consumeDouble(text, ',');
-    y2 = TextSerializerHelper.consumeDouble(text, '\0');
+    TextCursor cursor = new TextCursor(text);
+    x1 = cursor.nextDouble(',');
+    y1 = cursor.nextDouble(',');
+    x2 = cursor.nextDouble(',');
+    y2 = cursor.nextDouble('\0');
+    cursor.consume();
   }
 
   @Override
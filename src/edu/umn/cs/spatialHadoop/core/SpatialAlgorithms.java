@@ -25,13 +25,19 @@ import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.QuickSort;
 
 import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryCollection;
 import com.vividsolutions.jts.geom.GeometryFactory;
 
+import edu.umn.cs.spatialHadoop.indexing.ZCurvePartitioner;
 import edu.umn.cs.spatialHadoop.util.BitArray;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 import edu.umn.cs.spatialHadoop.util.Progressable;
 
 /**
@@ -84,253 +90,185 @@ public class SpatialAlgorithms {
   public static final Log LOG = LogFactory.getLog(SpatialAlgorithms.class);
 
   
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
-	      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
-	      Reporter reporter)
-	      throws IOException {
-	  
-	  	LOG.info("Start spatial join plan sweep algorithm !!!");
-	  
-	    final RectangleID[] Rmbrs = new RectangleID[R.size()];
-	    for (int i = 0; i < R.size(); i++) {
-	      Rmbrs[i] = new RectangleID(i, R.get(i).getMBR());
-	    }
-	    final RectangleID[] Smbrs = new RectangleID[S.size()];
-	    for (int i = 0; i < S.size(); i++) {
-	      Smbrs[i] = new RectangleID(i, S.get(i).getMBR());
-	    }	    
-	    
-	    final IntWritable count = new IntWritable();
-	    int filterCount = SpatialJoin_rectangles(Rmbrs, Smbrs, new OutputCollector<RectangleID, RectangleID>() {
-	        @Override
-	        public void collect(RectangleID r1, RectangleID r2)
-	            throws IOException {
-	          //if (R.get(r1.id).isIntersected(S.get(r2.id))) {
-	            if (output != null)
-	              output.collect(R.get(r1.id), S.get(r2.id));
-	            count.set(count.get() + 1);
-	          //}
-	        }
-	    }, reporter);
-	      
-	      LOG.info("Filtered result size "+filterCount+", refined result size "+count.get());
-	      
-	      return count.get();
-	}
+  /**
+   * The MBRs of a set of shapes stored in parallel primitive arrays and sorted
+   * by x1. The plane-sweep join scans these arrays instead of calling
+   * {@link Shape#getMBR()} on every comparison, which allocates a new object
+   * for most shapes, e.g., points and polygons.
+   */
+  static class SortedMBRs implements IndexedSortable {
+    final double[] x1, y1, x2, y2;
+    /**The index of each MBR in the input array*/
+    final int[] ids;
+    /**Number of MBRs. Shapes with no MBR, e.g., empty geometries, are skipped*/
+    final int size;
+
+    SortedMBRs(Shape[] shapes) {
+      x1 = new double[shapes.length];
+      y1 = new double[shapes.length];
+      x2 = new double[shapes.length];
+      y2 = new double[shapes.length];
+      ids = new int[shapes.length];
+      int n = 0;
+      for (int i = 0; i < shapes.length; i++) {
+        Rectangle mbr = shapes[i].getMBR();
+        if (mbr == null)
+          continue;
+        x1[n] = mbr.x1;
+        y1[n] = mbr.y1;
+        x2[n] = mbr.x2;
+        y2[n] = mbr.y2;
+        ids[n] = i;
+        n++;
+      }
+      this.size = n;
+      new QuickSort().sort(this, 0, size);
+    }
+
+    @Override
+    public int compare(int i, int j) {
+      if (x1[i] == x1[j])
+        return 0;
+      return x1[i] < x1[j] ? -1 : 1;
+    }
+
+    @Override
+    public void swap(int i, int j) {
+      double t;
+      t = x1[i]; x1[i] = x1[j]; x1[j] = t;
+      t = y1[i]; y1[i] = y1[j]; y1[j] = t;
+      t = x2[i]; x2[i] = x2[j]; x2[j] = t;
+      t = y2[i]; y2[i] = y2[j]; y2[j] = t;
+      int id = ids[i]; ids[i] = ids[j]; ids[j] = id;
+    }
+  }
 
-  
   /**
+   * The plane-sweep join kernel used by all variants of the spatial join.
+   * The MBRs of both inputs are first copied to primitive arrays and sorted
+   * by x1. The sweep then runs over these arrays and only the pairs with
+   * overlapping MBRs reach the shapes themselves. The input arrays are not
+   * modified.
    * @param R
    * @param S
+   * @param refine - when <code>true</code>, pairs with overlapping MBRs are
+   *  tested with {@link Shape#isIntersected(Shape)}. Otherwise, the pairs with
+   *  overlapping MBRs are reported as is.
+   * @param skipEqual - skip pairs of equal objects, e.g., for a self join
    * @param output
-   * @return
-   * @throws IOException
+   * @param reporter
+   * @return - number of reported pairs
    */
-  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
-      List<S1> R, List<S2> S, ResultCollector2<S1, S2> output, Reporter reporter)
-      throws IOException {
+  private static <S1 extends Shape, S2 extends Shape> int planeSweep(
+      final S1[] R, final S2[] S, boolean refine, boolean skipEqual,
+      ResultCollector2<S1, S2> output, Reporter reporter) {
     int count = 0;
+    SortedMBRs r = new SortedMBRs(R);
+    SortedMBRs s = new SortedMBRs(S);
 
-    Comparator<Shape> comparator = new Comparator<Shape>() {
-      @Override
-      public int compare(Shape o1, Shape o2) {
-    	if (o1.getMBR().x1 == o2.getMBR().x1)
-    		return 0;
-        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
-      }
-    };
-
-    long t1 = System.currentTimeMillis();
-    LOG.info("Joining lists "+ R.size()+" with "+S.size());
-    Collections.sort(R, comparator);
-    Collections.sort(S, comparator);
-
-		int i = 0, j = 0;
-
+    int i = 0, j = 0;
     try {
-      while (i < R.size() && j < S.size()) {
-        S1 r;
-        S2 s;
-        if (comparator.compare(R.get(i), S.get(j)) < 0) {
-          r = R.get(i);
-          int jj = j;
-
-          while ((jj < S.size())
-              && ((s = S.get(jj)).getMBR().x1 <= r.getMBR().x2)) {
-            // Check if r and s are overlapping but not the same object
-            // for self join
-            if (r.isIntersected(s) && !r.equals(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
+      while (i < r.size && j < s.size) {
+        if (r.x1[i] < s.x1[j]) {
+          double rx1 = r.x1[i], ry1 = r.y1[i], rx2 = r.x2[i], ry2 = r.y2[i];
+          for (int jj = j; jj < s.size && s.x1[jj] <= rx2; jj++) {
+            if (refine ? (s.y1[jj] <= ry2 && ry1 <= s.y2[jj]) :
+              (rx2 > s.x1[jj] && s.x2[jj] > rx1 && ry2 > s.y1[jj] && s.y2[jj] > ry1)) {
+              if (joinPair(R[r.ids[i]], S[s.ids[jj]], refine, skipEqual, output))
+                count++;
             }
-            jj++;
-            if (reporter !=  null)
-              reporter.progress();
           }
           i++;
         } else {
-          s = S.get(j);
-          int ii = i;
-
-          while ((ii < R.size())
-              && ((r = R.get(ii)).getMBR().x1 <= s.getMBR().x2)) {
-            if (r.isIntersected(s) && !r.equals(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
+          double sx1 = s.x1[j], sy1 = s.y1[j], sx2 = s.x2[j], sy2 = s.y2[j];
+          for (int ii = i; ii < r.size && r.x1[ii] <= sx2; ii++) {
+            if (refine ? (r.y1[ii] <= sy2 && sy1 <= r.y2[ii]) :
+              (r.x2[ii] > sx1 && sx2 > r.x1[ii] && r.y2[ii] > sy1 && sy2 > r.y1[ii])) {
+              if (joinPair(R[r.ids[ii]], S[s.ids[j]], refine, skipEqual, output))
+                count++;
             }
-            ii++;
-            if (reporter !=  null)
-              reporter.progress();
           }
           j++;
         }
-        if (reporter !=  null)
+        if (reporter != null)
           reporter.progress();
       }
     } catch (RuntimeException e) {
       e.printStackTrace();
     }
+    return count;
+  }
+
+  /**
+   * Reports a pair of shapes with overlapping MBRs if it passes the refine step
+   * @param r
+   * @param s
+   * @param refine
+   * @param skipEqual
+   * @param output
+   * @return - whether the pair is reported or not
+   */
+  private static <S1 extends Shape, S2 extends Shape> boolean joinPair(S1 r,
+      S2 s, boolean refine, boolean skipEqual, ResultCollector2<S1, S2> output) {
+    if (refine && !r.isIntersected(s))
+      return false;
+    if (skipEqual && r.equals(s))
+      return false;
+    if (output != null)
+      output.collect(r, s);
+    return true;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
+      final List<S1> R, final List<S2> S, final ResultCollector2<S1, S2> output,
+      Reporter reporter) throws IOException {
+    long t1 = System.currentTimeMillis();
+    LOG.info("Start spatial join plan sweep algorithm !!!");
+    int count = planeSweep((S1[]) R.toArray(new Shape[R.size()]),
+        (S2[]) S.toArray(new Shape[S.size()]), false, false, output, reporter);
+    long t2 = System.currentTimeMillis();
+    LOG.info("Finished plane sweep filter only in "+(t2-t1)+" millis and found "+count+" pairs");
+    return count;
+  }
+
+  /**
+   * Joins two lists of shapes using the plane-sweep algorithm. Pairs of equal
+   * objects are not reported to support self joins.
+   * @param R
+   * @param S
+   * @param output
+   * @return
+   * @throws IOException
+   */
+  @SuppressWarnings("unchecked")
+  public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
+      List<S1> R, List<S2> S, ResultCollector2<S1, S2> output, Reporter reporter)
+      throws IOException {
+    long t1 = System.currentTimeMillis();
+    LOG.info("Joining lists "+ R.size()+" with "+S.size());
+    int count = planeSweep((S1[]) R.toArray(new Shape[R.size()]),
+        (S2[]) S.toArray(new Shape[S.size()]), true, true, output, reporter);
     long t2 = System.currentTimeMillis();
     LOG.info("Finished plane sweep in "+(t2-t1)+" millis and found "+count+" pairs");
     return count;
-	}
+  }
 
-  
   public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweepFilterOnly(
-	      final S1[] R, final S2[] S, ResultCollector2<S1, S2> output, Reporter reporter) {
-	    int count = 0;
-
-	    final Comparator<Shape> comparator = new Comparator<Shape>() {
-	      @Override
-	      public int compare(Shape o1, Shape o2) {
-	    	if (o1.getMBR().x1 == o2.getMBR().x1)
-	    		return 0;
-	        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
-	      }
-	    };
-	    
-	    long t1 = System.currentTimeMillis();
-	    LOG.info("Joining arrays "+ R.length+" with "+S.length);
-	    Arrays.sort(R, comparator);
-	    Arrays.sort(S, comparator);
-
-	    int i = 0, j = 0;
-
-	    try {
-	      while (i < R.length && j < S.length) {
-	        S1 r;
-	        S2 s;
-	        if (comparator.compare(R[i], S[j]) < 0) {
-	          r = R[i];
-	          int jj = j;
-
-	          while ((jj < S.length)
-	              && ((s = S[jj]).getMBR().x1 <= r.getMBR().x2)) {
-	            if (r.getMBR().isIntersected(s.getMBR())) {
-	              if (output != null)
-	                output.collect(r, s);
-	              count++;
-	            }
-	            jj++;
-	            
-	            if (reporter != null)
-	              reporter.progress();
-	          }
-	          i++;
-	        } else {
-	          s = S[j];
-	          int ii = i;
-
-	          while ((ii < R.length)
-	              && ((r = R[ii]).getMBR().x1 <= s.getMBR().x2)) {
-	            if (r.getMBR().isIntersected(s.getMBR())) {
-	              if (output != null)
-	                output.collect(r, s);
-	              count++;
-	            }
-	            ii++;
-	          }
-	          j++;
-	          if (reporter != null)
-	            reporter.progress();
-	        }
-	        if (reporter != null)
-	          reporter.progress();
-	      }
-	    } catch (RuntimeException e) {
-	      e.printStackTrace();
-	    }
-	    long t2 = System.currentTimeMillis();
-	    LOG.info("Finished plane sweep filter only in "+(t2-t1)+" millis and found "+count+" pairs");
-	    return count;
-	  }
+      final S1[] R, final S2[] S, ResultCollector2<S1, S2> output, Reporter reporter) {
+    long t1 = System.currentTimeMillis();
+    LOG.info("Joining arrays "+ R.length+" with "+S.length);
+    int count = planeSweep(R, S, false, false, output, reporter);
+    long t2 = System.currentTimeMillis();
+    LOG.info("Finished plane sweep filter only in "+(t2-t1)+" millis and found "+count+" pairs");
+    return count;
+  }
 
-  
   public static<S1 extends Shape, S2 extends Shape> int SpatialJoin_planeSweep(
       final S1[] R, final S2[] S, ResultCollector2<S1, S2> output, Reporter reporter) {
-    int count = 0;
-
-    final Comparator<Shape> comparator = new Comparator<Shape>() {
-      @Override
-      public int compare(Shape o1, Shape o2) {
-    	if (o1.getMBR().x1 == o2.getMBR().x1)
-    		return 0;
-        return o1.getMBR().x1 < o2.getMBR().x1 ? -1 : 1;
-      }
-    };
-    
     long t1 = System.currentTimeMillis();
     LOG.info("Joining arrays "+ R.length+" with "+S.length);
-    Arrays.sort(R, comparator);
-    Arrays.sort(S, comparator);
-
-    int i = 0, j = 0;
-
-    try {
-      while (i < R.length && j < S.length) {
-        S1 r;
-        S2 s;
-        if (comparator.compare(R[i], S[j]) < 0) {
-          r = R[i];
-          int jj = j;
-
-          while ((jj < S.length)
-              && ((s = S[jj]).getMBR().x1 <= r.getMBR().x2)) {
-            if (r.isIntersected(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
-            }
-            jj++;
-            if (reporter != null)
-              reporter.progress();
-          }
-          i++;
-        } else {
-          s = S[j];
-          int ii = i;
-
-          while ((ii < R.length)
-              && ((r = R[ii]).getMBR().x1 <= s.getMBR().x2)) {
-            if (r.isIntersected(s)) {
-              if (output != null)
-                output.collect(r, s);
-              count++;
-            }
-            ii++;
-            if (reporter != null)
-              reporter.progress();
-          }
-          j++;
-        }
-        if (reporter != null)
-          reporter.progress();
-      }
-    } catch (RuntimeException e) {
-      e.printStackTrace();
-    }
+    int count = planeSweep(R, S, true, false, output, reporter);
     long t2 = System.currentTimeMillis();
     LOG.info("Finished plane sweep in "+(t2-t1)+" millis and found "+count+" pairs");
     return count;
@@ -625,6 +563,61 @@ public class SpatialAlgorithms {
     return allPoints;
   }
 
+  /**
+   * Remove duplicate points given as coordinates only. The two arrays are
+   * sorted by (x, y) and the unique points are moved to the beginning of the
+   * arrays. Two points are considered duplicate if both the horizontal and
+   * vertical distances are within a given threshold distance.
+   * @param xs
+   * @param ys
+   * @param threshold
+   * @return - the number of unique points
+   */
+  public static int deduplicatePoints(final double[] xs, final double[] ys,
+      final float threshold) {
+    LOG.info("Deduplicating a list of "+xs.length+" points");
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        double t = xs[i];
+        xs[i] = xs[j];
+        xs[j] = t;
+        t = ys[i];
+        ys[i] = ys[j];
+        ys[j] = t;
+      }
+
+      @Override
+      public int compare(int i, int j) {
+        double dx = xs[i] - xs[j];
+        if (dx < 0) return -1;
+        if (dx > 0) return 1;
+        double dy = ys[i] - ys[j];
+        if (dy < 0) return -1;
+        if (dy > 0) return 1;
+        return 0;
+      }
+    }, 0, xs.length);
+
+    // Each point is compared to its predecessor in the original order
+    int numUnique = xs.length == 0 ? 0 : 1;
+    double prevX = xs.length == 0 ? 0 : xs[0];
+    double prevY = xs.length == 0 ? 0 : ys[0];
+    for (int i = 1; i < xs.length; i++) {
+      double x = xs[i], y = ys[i];
+      if (Math.abs(prevX - x) >= threshold || Math.abs(prevY - y) >= threshold) {
+        xs[numUnique] = x;
+        ys[numUnique] = y;
+        numUnique++;
+      }
+      prevX = x;
+      prevY = y;
+    }
+    if (numUnique < xs.length)
+      LOG.info("Removed "+(xs.length - numUnique)+" duplicate points");
+    return numUnique;
+  }
+
   /**
    * Flatten geometries by extracting all internal geometries inside each
    * geometry.
@@ -906,6 +899,113 @@ public class SpatialAlgorithms {
     return resultSize;
   }
   
+  /**
+   * Computes the union of a group of geometries using a cascaded union.
+   * Geometries are sorted by the Z-order of the centers of their envelopes so
+   * that nearby geometries are adjacent. After that, they are unioned bottom up
+   * in a balanced binary tree where each level unions pairs of adjacent results
+   * of the level below it. The unions at each level are independent and run in
+   * parallel. This keeps intermediate geometries small compared to unioning
+   * all geometries into one growing result.
+   * @param geoms
+   * @param prog
+   * @param parallelism - the maximum number of threads to use
+   * @return
+   */
+  public static Geometry cascadedUnion(Geometry[] geoms, final Progressable prog,
+      int parallelism) {
+    if (geoms.length == 0)
+      return null;
+    if (geoms.length == 1)
+      return geoms[0];
+    // Sort geometries by the Z-order of their centers
+    final Geometry[] sorted = geoms.clone();
+    final long[] zs = new long[sorted.length];
+    double[] centerXs = new double[sorted.length];
+    double[] centerYs = new double[sorted.length];
+    double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+    double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+    for (int i = 0; i < sorted.length; i++) {
+      Envelope env = sorted[i].getEnvelopeInternal();
+      centerXs[i] = (env.getMinX() + env.getMaxX()) / 2;
+      centerYs[i] = (env.getMinY() + env.getMaxY()) / 2;
+      minX = Math.min(minX, centerXs[i]);
+      minY = Math.min(minY, centerYs[i]);
+      maxX = Math.max(maxX, centerXs[i]);
+      maxY = Math.max(maxY, centerYs[i]);
+    }
+    final int Resolution = 1 << 30;
+    double width = Math.max(maxX - minX, Double.MIN_VALUE);
+    double height = Math.max(maxY - minY, Double.MIN_VALUE);
+    for (int i = 0; i < sorted.length; i++) {
+      long ix = (long) ((centerXs[i] - minX) * (Resolution - 1) / width);
+      long iy = (long) ((centerYs[i] - minY) * (Resolution - 1) / height);
+      zs[i] = ZCurvePartitioner.computeZOrder(ix, iy);
+    }
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        Geometry tg = sorted[i];
+        sorted[i] = sorted[j];
+        sorted[j] = tg;
+        long tz = zs[i];
+        zs[i] = zs[j];
+        zs[j] = tz;
+      }
+
+      @Override
+      public int compare(int i, int j) {
+        return zs[i] < zs[j] ? -1 : (zs[i] > zs[j] ? 1 : 0);
+      }
+    }, 0, sorted.length);
+
+    // Union the tree level by level
+    Geometry[] level = sorted;
+    while (level.length > 1) {
+      final Geometry[] currentLevel = level;
+      final Geometry[] nextLevel = new Geometry[(level.length + 1) / 2];
+      try {
+        Parallel.forEach(level.length / 2, new RunnableRange<Object>() {
+          @Override
+          public Object run(int i1, int i2) {
+            for (int i = i1; i < i2; i++) {
+              nextLevel[i] = unionPair(currentLevel[2 * i], currentLevel[2 * i + 1]);
+              if (prog != null)
+                prog.progress();
+            }
+            return null;
+          }
+        }, parallelism);
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupted while computing the union", e);
+      }
+      if (level.length % 2 == 1)
+        nextLevel[nextLevel.length - 1] = level[level.length - 1];
+      level = nextLevel;
+    }
+    return level[0];
+  }
+
+  /**
+   * Unions two geometries. Falls back to {@link #safeUnion(List, Progressable)}
+   * if the union operation fails.
+   * @param g1
+   * @param g2
+   * @return
+   */
+  private static Geometry unionPair(Geometry g1, Geometry g2) {
+    try {
+      return g1.union(g2);
+    } catch (Exception e) {
+      LOG.warn("Error in union, trying a safe union", e);
+      try {
+        return safeUnion(Arrays.asList(g1, g2), null);
+      } catch (IOException e1) {
+        throw new RuntimeException("Error in union", e1);
+      }
+    }
+  }
+  
   /**
    * Computes the union of multiple groups of polygons. The algorithm runs in
    * the following steps.
@@ -915,8 +1015,8 @@ public class SpatialAlgorithms {
    *  <li>Polygons are grouped into groups of overlapping polygons using
    *  {@link #groupPolygons(Geometry[], Progressable)} so that we
    *   can compute the answer of each group separately</li>
-   *  <li>The union of each group is computed using the {@link #unionGroup(Geometry[], Progressable, ResultCollector)}
-   *   function</li>
+   *  <li>The union of each group is computed using the
+   *   {@link #cascadedUnion(Geometry[], Progressable, int)} function</li>
    * @param geoms
    * @param prog
    * @param output
@@ -925,6 +1025,22 @@ public class SpatialAlgorithms {
    */
   public static int multiUnion(Geometry[] geoms, final Progressable prog,
       ResultCollector<Geometry> output) throws IOException {
+    return multiUnion(geoms, prog, output, 1);
+  }
+
+  /**
+   * Computes the union of multiple groups of polygons as in
+   * {@link #multiUnion(Geometry[], Progressable, ResultCollector)} using
+   * multiple threads to union each group.
+   * @param geoms
+   * @param prog
+   * @param output
+   * @param parallelism - the maximum number of threads to use
+   * @return
+   * @throws IOException
+   */
+  public static int multiUnion(Geometry[] geoms, final Progressable prog,
+      ResultCollector<Geometry> output, int parallelism) throws IOException {
     final Geometry[] basicShapes = flattenGeometries(geoms);
     prog.progress();
     
@@ -933,7 +1049,18 @@ public class SpatialAlgorithms {
     
     int resultSize = 0;
     for (Geometry[] group : groups) {
-      resultSize += unionGroup(group, prog, output);
+      Geometry groupUnion = cascadedUnion(group, prog, parallelism);
+      if (groupUnion instanceof GeometryCollection) {
+        for (int n = 0; n < groupUnion.getNumGeometries(); n++) {
+          resultSize++;
+          if (output != null)
+            output.collect(groupUnion.getGeometryN(n));
+        }
+      } else if (groupUnion != null) {
+        resultSize++;
+        if (output != null)
+          output.collect(groupUnion);
+      }
       prog.progress();
     }
     
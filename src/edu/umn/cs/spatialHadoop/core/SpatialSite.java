@@ -10,6 +10,7 @@ package edu.umn.cs.spatialHadoop.core;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
@@ -31,8 +32,10 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.fs.RawLocalFileSystem;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.CompressionCodec;
@@ -47,6 +50,7 @@ import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.indexing.RTree;
+import edu.umn.cs.spatialHadoop.io.MappedInputStream;
 import edu.umn.cs.spatialHadoop.mapred.RandomShapeGenerator.DistributionType;
 import edu.umn.cs.spatialHadoop.mapred.ShapeIterRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
@@ -86,6 +90,17 @@ public class SpatialSite {
   public static final String RTREE_BUILD_MODE =
       "spatialHadoop.storage.RTreeBuildMode";
   
+  /**
+   * The layout of leaf nodes in the RTree. Could be "text" or "binary".
+   * @see RTree#LEAF_LAYOUT_BINARY
+   */
+  public static final String RTREE_LEAF_LAYOUT =
+      "spatialHadoop.storage.RTreeLeafLayout";
+  
+  /**Whether RTree files on the local file system are memory mapped or not*/
+  public static final String RTREE_MEMORY_MAPPED =
+      "spatialHadoop.storage.RTreeMemoryMapped";
+  
   /**Configuration line name for replication overhead*/
   public static final String INDEXING_OVERHEAD =
       "spatialHadoop.storage.IndexingOverhead";
@@ -574,6 +589,42 @@ public class SpatialSite {
     return cells.values().toArray(new CellInfo[cells.size()]);
   }
 
+  /**
+   * Returns the RTree leaf layout configured in the given configuration.
+   * @param conf
+   * @return - either {@link RTree#LEAF_LAYOUT_TEXT} or
+   *   {@link RTree#LEAF_LAYOUT_BINARY}
+   */
+  public static int getRTreeLeafLayout(Configuration conf) {
+    return conf.get(RTREE_LEAF_LAYOUT, "text").equals("binary") ?
+        RTree.LEAF_LAYOUT_BINARY : RTree.LEAF_LAYOUT_TEXT;
+  }
+
+  /**
+   * Opens a file that contains R-trees. If the file is stored in the local
+   * file system and memory mapping is enabled, the file is memory mapped so
+   * that R-tree nodes and records are read directly from the page cache.
+   * Otherwise, the file is opened as a regular stream.
+   * @param fs
+   * @param file
+   * @param conf
+   * @return
+   * @throws IOException
+   */
+  public static FSDataInputStream openRTreeFile(FileSystem fs, Path file,
+      Configuration conf) throws IOException {
+    if (conf.getBoolean(RTREE_MEMORY_MAPPED, true)) {
+      File localFile = null;
+      if (fs instanceof LocalFileSystem)
+        localFile = ((LocalFileSystem) fs).pathToFile(file);
+      else if (fs instanceof RawLocalFileSystem)
+        localFile = ((RawLocalFileSystem) fs).pathToFile(file);
+      if (localFile != null && localFile.length() <= Integer.MAX_VALUE)
+        return new FSDataInputStream(MappedInputStream.map(localFile));
+    }
+    return fs.open(file);
+  }
+
   public static <S extends Shape> RTree<S> loadRTree(FileSystem fs, Path file, S shape) throws IOException {
     RTree<S> rtree = new RTree<S>();
     rtree.setStockObject(shape);
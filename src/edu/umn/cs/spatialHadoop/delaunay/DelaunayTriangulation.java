@@ -20,6 +20,7 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
@@ -45,6 +46,7 @@ import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.operations.FileMBR;
+import edu.umn.cs.spatialHadoop.util.DoubleArray;
 import edu.umn.cs.spatialHadoop.util.MemoryReporter;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
@@ -156,7 +158,9 @@ public class DelaunayTriangulation {
   /**
    * Reduce function for DT. Merges some intermediate DTs vertically into
    * columns and writes back the result as one trianguation to be merged at the
-   * final step. 
+   * final step. The intermediate DTs are spilled to the local disk and merged
+   * one at a time so that the reducer memory does not depend on the input
+   * size.
    * @author Ahmed Eldawy
    *
    */
@@ -165,28 +169,40 @@ public class DelaunayTriangulation {
     
     @Override
     protected void reduce(IntWritable dummy, Iterable<SimpleGraph> values,
-        Context context) throws IOException, InterruptedException {
-      List<SimpleGraph> triangulations = new ArrayList<SimpleGraph>();
+        final Context context) throws IOException, InterruptedException {
       Rectangle overallMBR = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
           -Double.MAX_VALUE, -Double.MAX_VALUE);
-      for (SimpleGraph t : values) {
-        overallMBR.expand(t.mbr);
-        triangulations.add(t);
-      }      
-      
-      GSDTAlgorithm algo = GSDTAlgorithm.mergeTriangulations(triangulations, context);
-      
-      SimpleGraph finalPart = new SimpleGraph();
-      SimpleGraph nonfinalPart = new SimpleGraph();
-      algo.splitIntoFinalAndNonFinalGraphs(overallMBR, finalPart, nonfinalPart);
-      
-      // Write final part directly to the output path
-      context.getCounter(DelaunayCounters.REDUCE_FINAL_SITES).increment(finalPart.getNumSites());
-      context.write(Boolean.TRUE, finalPart);
-      
-      // Write non final part to the final merge phase
-      context.getCounter(DelaunayCounters.REDUCE_NONFINAL_SITES).increment(nonfinalPart.getNumSites());
-      context.write(Boolean.FALSE, nonfinalPart);
+      // Spill all triangulations to disk to merge them in bounded memory
+      SpilledTriangulationMerger merger = new SpilledTriangulationMerger(context);
+      try {
+        for (SimpleGraph t : values) {
+          overallMBR.expand(t.mbr);
+          merger.add(t);
+        }
+        
+        // Write final parts directly to the output path as they are found
+        SimpleGraph nonfinalPart = merger.merge(overallMBR,
+            new OutputCollector<Boolean, SimpleGraph>() {
+          @Override
+          public void collect(Boolean key, SimpleGraph finalPart)
+              throws IOException {
+            context.getCounter(DelaunayCounters.REDUCE_FINAL_SITES).increment(finalPart.getNumSites());
+            try {
+              context.write(key, finalPart);
+            } catch (InterruptedException e) {
+              throw new IOException("Interrupted while writing final part", e);
+            }
+          }
+        });
+        
+        // Write non final part to the final merge phase
+        if (nonfinalPart != null) {
+          context.getCounter(DelaunayCounters.REDUCE_NONFINAL_SITES).increment(nonfinalPart.getNumSites());
+          context.write(Boolean.FALSE, nonfinalPart);
+        }
+      } finally {
+        merger.close();
+      }
     }
   }
   
@@ -249,7 +265,10 @@ public class DelaunayTriangulation {
     Job job = Job.getInstance(params);
     SpatialInputFormat3.setInputPaths(job, inPaths);
     final List<InputSplit> splits = inputFormat.getSplits(job);
-    final Point[][] allLists = new Point[splits.size()][];
+    // Coordinates are read directly into primitive arrays to avoid the
+    // overhead of keeping one object per point
+    final double[][] allXs = new double[splits.size()][];
+    final double[][] allYs = new double[splits.size()][];
     
     // 2- Read all input points in memory
     LOG.info("Reading points from "+splits.size()+" splits");
@@ -259,7 +278,8 @@ public class DelaunayTriangulation {
         try {
           int numPoints = 0;
           for (int i = i1; i < i2; i++) {
-            List<Point> points = new ArrayList<Point>();
+            DoubleArray xs = new DoubleArray();
+            DoubleArray ys = new DoubleArray();
             FileSplit fsplit = (FileSplit) splits.get(i);
             final RecordReader<Rectangle, Iterable<Point>> reader =
                 inputFormat.createRecordReader(fsplit, null);
@@ -275,12 +295,14 @@ public class DelaunayTriangulation {
             while (reader.nextKeyValue()) {
               Iterable<Point> pts = reader.getCurrentValue();
               for (Point p : pts) {
-                points.add(p.clone());
+                xs.add(p.x);
+                ys.add(p.y);
               }
             }
             reader.close();
-            numPoints += points.size();
-            allLists[i] = points.toArray(new Point[points.size()]);
+            numPoints += xs.size();
+            allXs[i] = xs.toArray();
+            allYs[i] = ys.toArray();
           }
           return numPoints;
         } catch (IOException e) {
@@ -297,22 +319,29 @@ public class DelaunayTriangulation {
       totalNumPoints += numPoints;
     
     LOG.info("Read "+totalNumPoints+" points and merging into one list");
-    Point[] allPoints = new Point[totalNumPoints];
+    double[] xs = new double[totalNumPoints];
+    double[] ys = new double[totalNumPoints];
     int pointer = 0;
     
-    for (int iList = 0; iList < allLists.length; iList++) {
-      System.arraycopy(allLists[iList], 0, allPoints, pointer, allLists[iList].length);
-      pointer += allLists[iList].length;
-      allLists[iList] = null; // To let the GC collect it
+    for (int iList = 0; iList < allXs.length; iList++) {
+      System.arraycopy(allXs[iList], 0, xs, pointer, allXs[iList].length);
+      System.arraycopy(allYs[iList], 0, ys, pointer, allYs[iList].length);
+      pointer += allXs[iList].length;
+      allXs[iList] = allYs[iList] = null; // To let the GC collect it
     }
     
     if (params.getBoolean("dedup", true)) {
       float threshold = params.getFloat("threshold", 1E-5f);
-      allPoints = SpatialAlgorithms.deduplicatePoints(allPoints, threshold);
+      int numUniquePoints = SpatialAlgorithms.deduplicatePoints(xs, ys, threshold);
+      if (numUniquePoints < xs.length) {
+        xs = Arrays.copyOf(xs, numUniquePoints);
+        ys = Arrays.copyOf(ys, numUniquePoints);
+      }
     }
     
-    LOG.info("Computing DT for "+allPoints.length+" points");
-    GSDTAlgorithm dtAlgorithm = new GSDTAlgorithm(allPoints, null);
+    LOG.info("Computing DT for "+xs.length+" points");
+    GSDTAlgorithm dtAlgorithm = new GSDTAlgorithm(xs, ys, null,
+        params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
     LOG.info("DT computed");
     
     List<Geometry> finalRegions = new ArrayList<Geometry>();
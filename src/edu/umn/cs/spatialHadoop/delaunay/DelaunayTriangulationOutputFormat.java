@@ -2,8 +2,6 @@ package edu.umn.cs.spatialHadoop.delaunay;
 
 import java.io.IOException;
 import java.io.PrintStream;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -15,6 +13,7 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapreduce.JobContext;
 import org.apache.hadoop.mapreduce.OutputCommitter;
 import org.apache.hadoop.mapreduce.RecordWriter;
@@ -25,8 +24,6 @@ import org.apache.hadoop.util.Progressable;
 
 import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.io.Text2;
-import edu.umn.cs.spatialHadoop.util.Parallel;
-import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 /**
  * Writes the results of the {@link DelaunayTriangulation} operation and merges
@@ -75,15 +72,16 @@ public class DelaunayTriangulationOutputFormat extends
     public static void writeFinalTriangulation(PrintStream ps, SimpleGraph t,
         Progressable progress) {
       Text text = new Text2();
+      Point tempPoint = new Point();
       for (int i = 0; i < t.edgeStarts.length; i++) {
-        Point startNode = t.sites[t.edgeStarts[i]];
+        Point startNode = t.getSite(t.edgeStarts[i], tempPoint);
         text.clear();
         startNode.toText(text);
         ps.print(text); // Write start node
 
         ps.print('\t'); // Field separator
         
-        Point endNode = t.sites[t.edgeEnds[i]];
+        Point endNode = t.getSite(t.edgeEnds[i], tempPoint);
         text.clear();
         endNode.toText(text);
         ps.println(text); // Write end node and new line
@@ -136,52 +134,42 @@ public class DelaunayTriangulationOutputFormat extends
         }
       });
       
+      // Spill all non-final triangulations to the local disk and merge them
+      // one at a time writing final parts as soon as they are found
+      SpilledTriangulationMerger merger = new SpilledTriangulationMerger(task);
       try {
-        List<List<SimpleGraph>> allLists = Parallel.forEach(nonFinalFiles.length, new RunnableRange<List<SimpleGraph>>() {
+        for (FileStatus nonFinalFile : nonFinalFiles) {
+          FSDataInputStream in = fs.open(nonFinalFile.getPath());
+          SimpleGraph t = new SimpleGraph();
+          while (in.available() > 0) {
+            t.readFields(in);
+            merger.add(t);
+          }
+          in.close();
+        }
+        
+        System.out.println("Merging "+nonFinalFiles.length+" non-final files");
+        Path finalAnswerPath = new Path(outPath, "lastPart.final");
+        final PrintStream ps = new PrintStream(fs.create(finalAnswerPath));
+        SimpleGraph lastPart = merger.merge(null,
+            new OutputCollector<Boolean, SimpleGraph>() {
           @Override
-          public List<SimpleGraph> run(int i1, int i2) {
-            try {
-              List<SimpleGraph> triangulations = new ArrayList<SimpleGraph>();
-              for (int i = i1; i < i2; i++) {
-                FSDataInputStream in = fs.open(nonFinalFiles[i].getPath());
-                while (in.available() > 0) {
-                  SimpleGraph t = new SimpleGraph();
-                  t.readFields(in);
-                  triangulations.add(t);
-                }
-                in.close();
-              }
-              return triangulations;
-            } catch (IOException e) {
-              throw new RuntimeException("Error reading non-final triangulations", e);
-            }
+          public void collect(Boolean key, SimpleGraph finalPart) {
+            TriangulationRecordWriter.writeFinalTriangulation(ps, finalPart, task);
           }
         });
-        
-        List<SimpleGraph> allTriangulations = new ArrayList<SimpleGraph>();
-        for (List<SimpleGraph> list : allLists)
-          allTriangulations.addAll(list);
-        SimpleGraph finalAnswer;
-        if (allTriangulations.size() == 1) {
-          finalAnswer = allTriangulations.get(0);
-        } else {
-          System.out.println("Merging "+allTriangulations.size()+" triangulations");
-          finalAnswer = GSDTAlgorithm.mergeTriangulations(
-              allTriangulations, task).getFinalAnswerAsGraph();
-        }
-        // Write the final answer to the output and delete intermediate files
+        // Nothing is left to be merged so the remaining part is final too
         System.out.println("Writing final output");
-        Path finalAnswerPath = new Path(outPath, "lastPart.final");
-        PrintStream ps = new PrintStream(fs.create(finalAnswerPath));
-        TriangulationRecordWriter.writeFinalTriangulation(ps, finalAnswer, task);
+        if (lastPart != null)
+          TriangulationRecordWriter.writeFinalTriangulation(ps, lastPart, task);
         ps.close();
         
         System.out.println("Cleaning up");
         // Delete intermediate files
         for (FileStatus nonFinalFile : nonFinalFiles)
           fs.delete(nonFinalFile.getPath(), false);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
+      } finally {
+        merger.close();
       }
     }
   }
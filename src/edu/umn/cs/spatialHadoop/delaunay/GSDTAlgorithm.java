@@ -25,6 +25,8 @@ import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.util.BitArray;
 import edu.umn.cs.spatialHadoop.util.IntArray;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 /**
  * The divide and conquer Delaunay Triangulation (DT) algorithm as proposed in
@@ -40,7 +42,10 @@ public class GSDTAlgorithm {
   
   static final Log LOG = LogFactory.getLog(GSDTAlgorithm.class);
   
-  /** The original input set of points */
+  /**
+   * The original input set of points or <code>null</code> if the sites are
+   * given as coordinates only
+   */
   Point[] points;
 
   /** Coordinates of all sites */
@@ -49,7 +54,7 @@ public class GSDTAlgorithm {
   /**
    * All neighboring sites. Two neighbor sites have a common edge in the DT
    */
-  IntArray[] neighbors;
+  NeighborTable neighbors;
 
   /**
    * Stores the final answer that contains the complete DT
@@ -61,6 +66,11 @@ public class GSDTAlgorithm {
    */
   private Progressable progress;
 
+  /**
+   * Number of threads used to compute independent triangulations
+   */
+  private int parallelism = 1;
+
   /**
    * A class that stores a set of triangles for part of the sites.
    * @author Ahmed Eldawy
@@ -89,8 +99,8 @@ public class GSDTAlgorithm {
     IntermediateTriangulation(int s1, int s2) {
       site1 = s1;
       site2 = s2;
-      neighbors[s1].add(s2);
-      neighbors[s2].add(s1);
+      neighbors.add(s1, s2);
+      neighbors.add(s2, s1);
       convexHull = new int[] {s1, s2};
     }
     
@@ -104,14 +114,14 @@ public class GSDTAlgorithm {
     IntermediateTriangulation(int s1, int s2, int s3) {
       site1 = s1;
       site2 = s3;
-      neighbors[s1].add(s2); neighbors[s2].add(s1); // edge: s1 -- s2
-      neighbors[s2].add(s3); neighbors[s3].add(s2); // edge: s3 -- s3
+      neighbors.add(s1, s2); neighbors.add(s2, s1); // edge: s1 -- s2
+      neighbors.add(s2, s3); neighbors.add(s3, s2); // edge: s3 -- s3
       if (calculateCircumCircleCenter(s1, s2, s3) == null) {
         // Degenerate case, three points are collinear
         convexHull = new int[] {s1, s3};
       } else {
         // Normal case
-        neighbors[s1].add(s3); neighbors[s3].add(s1); // edge: s1 -- s3
+        neighbors.add(s1, s3); neighbors.add(s3, s1); // edge: s1 -- s3
         convexHull = new int[] {s1, s2, s3};
       }
     }
@@ -120,7 +130,7 @@ public class GSDTAlgorithm {
      * Create an intermediate triangulation out of a triangulation created
      * somewhere else (may be another machine). It stores all the edges in the
      * neighbors array and adjusts the node IDs in edges to match their new
-     * position in the {@link GSDTAlgorithm#points} array
+     * position in the {@link GSDTAlgorithm#xs} and {@link GSDTAlgorithm#ys} arrays
      * 
      * @param t
      *          The triangulation that needs to be added
@@ -131,10 +141,10 @@ public class GSDTAlgorithm {
     public IntermediateTriangulation(SimpleGraph t, int pointShift) {
       // Assume that points have already been copied
       this.site1 = pointShift;
-      this.site2 = pointShift + t.sites.length - 1;
+      this.site2 = pointShift + t.getNumSites() - 1;
       
       // Calculate the convex hull
-      int[] thisPoints = new int[t.sites.length];
+      int[] thisPoints = new int[t.getNumSites()];
       for (int i = 0; i < thisPoints.length; i++)
         thisPoints[i] = i + pointShift;
       this.convexHull = convexHull(thisPoints);
@@ -143,8 +153,8 @@ public class GSDTAlgorithm {
       for (int i = 0; i < t.edgeStarts.length; i++) {
         int adjustedStart = t.edgeStarts[i] + pointShift;
         int adjustedEnd = t.edgeEnds[i] + pointShift;
-        neighbors[adjustedStart].add(adjustedEnd);
-        neighbors[adjustedEnd].add(adjustedStart);
+        neighbors.add(adjustedStart, adjustedEnd);
+        neighbors.add(adjustedEnd, adjustedStart);
       }
     }
   }
@@ -155,7 +165,23 @@ public class GSDTAlgorithm {
    * @param R
    */
   public <P extends Point> GSDTAlgorithm(P[] points, Progressable progress) {
+    this(points, progress, 1);
+  }
+
+  /**
+   * Computes the DT of the given points using multiple threads. The
+   * triangulations at each level of the merge tree are independent as they
+   * cover disjoint ranges of sites, so they are merged in parallel. The
+   * number of merges drops by half at each level which makes the merges near
+   * the root run on fewer threads.
+   * @param points
+   * @param progress
+   * @param parallelism - the maximum number of threads to use
+   */
+  public <P extends Point> GSDTAlgorithm(P[] points, Progressable progress,
+      int parallelism) {
     this.progress = progress;
+    this.parallelism = Math.max(1, parallelism);
     this.points = new Point[points.length];
     System.arraycopy(points, 0, this.points, 0, points.length);
     Arrays.sort(this.points, new Comparator<Point>() {
@@ -172,31 +198,90 @@ public class GSDTAlgorithm {
     });
     this.xs = new double[this.points.length];
     this.ys = new double[this.points.length];
-    this.neighbors = new IntArray[this.points.length];
     for (int i = 0; i < this.points.length; i++) {
       xs[i] = this.points[i].x;
       ys[i] = this.points[i].y;
-      neighbors[i] = new IntArray();
     }
-    
+    triangulate();
+  }
+
+  /**
+   * Computes the DT of sites given as coordinates only. No objects are
+   * created for the sites which reduces the memory overhead for large inputs.
+   * The two arrays are sorted in place and kept by this object so they should
+   * not be modified afterwards.
+   * @param xs
+   * @param ys
+   * @param progress
+   * @param parallelism - the maximum number of threads to use
+   */
+  public GSDTAlgorithm(final double[] xs, final double[] ys,
+      Progressable progress, int parallelism) {
+    this.progress = progress;
+    this.parallelism = Math.max(1, parallelism);
+    this.xs = xs;
+    this.ys = ys;
+    new QuickSort().sort(new IndexedSortable() {
+      @Override
+      public void swap(int i, int j) {
+        double t = xs[i];
+        xs[i] = xs[j];
+        xs[j] = t;
+        t = ys[i];
+        ys[i] = ys[j];
+        ys[j] = t;
+      }
+
+      @Override
+      public int compare(int i, int j) {
+        double dx = xs[i] - xs[j];
+        if (dx < 0) return -1;
+        if (dx > 0) return 1;
+        double dy = ys[i] - ys[j];
+        if (dy < 0) return -1;
+        if (dy > 0) return 1;
+        return 0;
+      }
+    }, 0, xs.length);
+    triangulate();
+  }
+
+  /**
+   * Computes the DT of all sites which are already sorted by (x, y).
+   */
+  private void triangulate() {
+    final int numSites = xs.length;
+    this.neighbors = new NeighborTable(numSites);
+
     // Compute the answer
-    IntermediateTriangulation[] triangulations = new IntermediateTriangulation[points.length / 3 + (points.length % 3 == 0 ? 0 : 1)];
+    final IntermediateTriangulation[] triangulations = new IntermediateTriangulation[numSites / 3 + (numSites % 3 == 0 ? 0 : 1)];
     // Compute the trivial Delaunay triangles of every three consecutive points
-    int i, t = 0;
-    for (i = 0; i < points.length - 4; i += 3) {
-      // Compute DT for three points
-      triangulations[t++] =  new IntermediateTriangulation(i, i+1, i+2);
-      if (progress != null && (t & 0xff) == 0)
-        progress.progress();
+    int numTriangles = numSites > 4 ? (numSites - 2) / 3 : 0;
+    try {
+      Parallel.forEach(numTriangles, new RunnableRange<Object>() {
+        @Override
+        public Object run(int t1, int t2) {
+          for (int t = t1; t < t2; t++) {
+            // Compute DT for three points
+            triangulations[t] = new IntermediateTriangulation(3 * t, 3 * t + 1, 3 * t + 2);
+            if (progress != null && (t & 0xff) == 0)
+              progress.progress();
+          }
+          return null;
+        }
+      }, this.parallelism);
+    } catch (InterruptedException e) {
+      throw new RuntimeException("Interrupted while computing triangles", e);
     }
-    if (points.length - i == 4) {
+    int i = numTriangles * 3, t = numTriangles;
+    if (numSites - i == 4) {
       // Compute DT for every two points
        triangulations[t++] = new IntermediateTriangulation(i, i+1);
        triangulations[t++] = new IntermediateTriangulation(i+2, i+3);
-    } else if (points.length - i == 3) {
+    } else if (numSites - i == 3) {
       // Compute for three points
       triangulations[t++] = new IntermediateTriangulation(i, i+1, i+2);
-    } else if (points.length - i == 2) {
+    } else if (numSites - i == 2) {
       // Two points, connect with a line
       triangulations[t++] = new IntermediateTriangulation(i, i+1);
     } else {
@@ -206,6 +291,7 @@ public class GSDTAlgorithm {
     if (progress != null)
       progress.progress();
     this.finalAnswer = mergeAllTriangulations(triangulations);
+    this.neighbors.compact();
   }
   
   /**
@@ -219,40 +305,52 @@ public class GSDTAlgorithm {
     this.progress = progress;
     // Copy all triangulations
     int totalPointCount = 0;
-    for (SimpleGraph t : ts)
-      totalPointCount += t.sites.length;
+    boolean hasSiteObjects = false;
+    for (SimpleGraph t : ts) {
+      totalPointCount += t.getNumSites();
+      hasSiteObjects = hasSiteObjects || t.sites != null;
+    }
     
-    this.points = new Point[totalPointCount];
+    // Site objects are kept only if at least one triangulation has them
+    if (hasSiteObjects)
+      this.points = new Point[totalPointCount];
     // Initialize xs, ys and neighbors array
     this.xs = new double[totalPointCount];
     this.ys = new double[totalPointCount];
-    this.neighbors = new IntArray[totalPointCount];
-    for (int i = 0; i < this.neighbors.length; i++)
-      this.neighbors[i] = new IntArray();
+    this.neighbors = new NeighborTable(totalPointCount);
     
     IntermediateTriangulation[] triangulations = new IntermediateTriangulation[ts.length];
     int currentPointsCount = 0;
     for (int it = 0; it < ts.length; it++) {
       SimpleGraph t = ts[it];
+      int numSites = t.getNumSites();
       // Copy sites from that triangulation
-      System.arraycopy(t.sites, 0, this.points, currentPointsCount, t.sites.length);
-      
-      // Set xs and ys for all points
-      for (int i = currentPointsCount; i < currentPointsCount + t.sites.length; i++) {
-        this.xs[i] = points[i].x;
-        this.ys[i] = points[i].y;
+      if (t.sites != null) {
+        System.arraycopy(t.sites, 0, this.points, currentPointsCount, numSites);
+        for (int i = 0; i < numSites; i++) {
+          this.xs[currentPointsCount + i] = t.sites[i].x;
+          this.ys[currentPointsCount + i] = t.sites[i].y;
+        }
+      } else {
+        System.arraycopy(t.xs, 0, this.xs, currentPointsCount, numSites);
+        System.arraycopy(t.ys, 0, this.ys, currentPointsCount, numSites);
+        if (this.points != null) {
+          for (int i = 0; i < numSites; i++)
+            this.points[currentPointsCount + i] = new Point(t.xs[i], t.ys[i]);
+        }
       }
       
       // Create a corresponding partial answer
       triangulations[it] = new IntermediateTriangulation(t, currentPointsCount);
       
-      currentPointsCount += t.sites.length;
+      currentPointsCount += numSites;
     }
 
     
     if (progress != null)
       progress.progress();
     this.finalAnswer = mergeAllTriangulations(triangulations);
+    this.neighbors.compact();
   }
   
   /**
@@ -354,15 +452,16 @@ public class GSDTAlgorithm {
     int baseR = baseEdge[1];
   
     // Add the first base edge
-    neighbors[baseL].add(baseR);
-    neighbors[baseR].add(baseL);
+    neighbors.add(baseL, baseR);
+    neighbors.add(baseR, baseL);
     // Trace the base LR edge up to the top
     boolean finished = false;
     do { // Until the finished flag is raised
       // Search for the potential candidate on the right
       double anglePotential = -1, angleNextPotential = -1;
       int potentialCandidate = -1, nextPotentialCandidate = -1;
-      for (int rNeighbor : neighbors[baseR]) {
+      for (int iNeighbor = 0; iNeighbor < neighbors.size(baseR); iNeighbor++) {
+        int rNeighbor = neighbors.get(baseR, iNeighbor);
         if (rNeighbor >= R.site1 && rNeighbor <= R.site2) {
           // Check this RR edge
           double cwAngle = calculateCWAngle(baseL, baseR, rNeighbor);
@@ -385,8 +484,8 @@ public class GSDTAlgorithm {
         if (circleCenter == null) {
           // Degnerate case of three collinear points
           // Delete the RR edge between baseR and rPotentialCandidate and restart
-          neighbors[baseR].remove(potentialCandidate);
-          neighbors[potentialCandidate].remove(baseR);
+          neighbors.remove(baseR, potentialCandidate);
+          neighbors.remove(potentialCandidate, baseR);
         } else {
           if (nextPotentialCandidate == -1) {
             // The only potential candidate, accept it right away
@@ -402,8 +501,8 @@ public class GSDTAlgorithm {
             double d2 = dx * dx + dy * dy;
             if (d1 < d2) {
               // Delete the RR edge between baseR and rPotentialCandidate and restart
-              neighbors[baseR].remove(potentialCandidate);
-              neighbors[potentialCandidate].remove(baseR);
+              neighbors.remove(baseR, potentialCandidate);
+              neighbors.remove(potentialCandidate, baseR);
               continue;
             } else {
               rCandidate = potentialCandidate;
@@ -415,7 +514,8 @@ public class GSDTAlgorithm {
       // Search for the potential candidate on the left
       anglePotential = -1; angleNextPotential = -1;
       potentialCandidate = -1; nextPotentialCandidate = -1;
-      for (int lNeighbor : neighbors[baseL]) {
+      for (int iNeighbor = 0; iNeighbor < neighbors.size(baseL); iNeighbor++) {
+        int lNeighbor = neighbors.get(baseL, iNeighbor);
         if (lNeighbor >= L.site1 && lNeighbor <= L.site2) {
           // Check this LL edge
           double ccwAngle = Math.PI * 2 - calculateCWAngle(baseR, baseL, lNeighbor);
@@ -438,8 +538,8 @@ public class GSDTAlgorithm {
         if (circleCenter == null) {
           // Degenerate case, the potential candidate is collinear with base edge
           // Delete the LL edge between baseL and potentialCandidate and restart
-          neighbors[baseL].remove(potentialCandidate);
-          neighbors[potentialCandidate].remove(baseL);
+          neighbors.remove(baseL, potentialCandidate);
+          neighbors.remove(potentialCandidate, baseL);
         } else {
           if (nextPotentialCandidate == -1) {
             // The only potential candidate, accept it right away
@@ -455,8 +555,8 @@ public class GSDTAlgorithm {
             double d2 = dx * dx + dy * dy;
             if (d1 < d2) {
               // Delete the LL edge between baseL and potentialCandidate and restart
-              neighbors[baseL].remove(potentialCandidate);
-              neighbors[potentialCandidate].remove(baseL);
+              neighbors.remove(baseL, potentialCandidate);
+              neighbors.remove(potentialCandidate, baseL);
               continue;
             } else {
               lCandidate = potentialCandidate;
@@ -488,15 +588,15 @@ public class GSDTAlgorithm {
         // Make lPotentialCandidate and baseR the new base line
         baseL = lCandidate;
         // Add the new base edge
-        neighbors[baseL].add(baseR);
-        neighbors[baseR].add(baseL);
+        neighbors.add(baseL, baseR);
+        neighbors.add(baseR, baseL);
       } else if (rCandidate != -1) {
         // Right candidate has been chosen
         // Make baseL and rPotentialCandidate the new base line
         baseR = rCandidate;
         // Add the new base edge
-        neighbors[baseL].add(baseR);
-        neighbors[baseR].add(baseL);
+        neighbors.add(baseL, baseR);
+        neighbors.add(baseR, baseL);
       } else {
         // No candidates, merge finished
         finished = true;
@@ -568,19 +668,30 @@ public class GSDTAlgorithm {
         LOG.info("Merging "+triangulations.length+" triangulations");
         reportTime = currentTime;
       }
-      // Merge every pair of DTs
-      IntermediateTriangulation[] newTriangulations = new IntermediateTriangulation[triangulations.length / 2 + (triangulations.length & 1)];
-      int t2 = 0;
-      int t1;
-      for (t1 = 0; t1 < triangulations.length - 1; t1 += 2) {
-        IntermediateTriangulation dt1 = triangulations[t1];
-        IntermediateTriangulation dt2 = triangulations[t1+1];
-        newTriangulations[t2++] = merge(dt1, dt2);
-        if (progress != null)
-          progress.progress();
+      // Merge every pair of DTs. Each merge modifies only the neighbors of
+      // the sites in its two triangulations, so all merges can run in parallel
+      final IntermediateTriangulation[] currentTriangulations = triangulations;
+      final IntermediateTriangulation[] newTriangulations = new IntermediateTriangulation[triangulations.length / 2 + (triangulations.length & 1)];
+      int numMerges = triangulations.length / 2;
+      try {
+        Parallel.forEach(numMerges, new RunnableRange<Object>() {
+          @Override
+          public Object run(int i1, int i2) {
+            for (int i = i1; i < i2; i++) {
+              IntermediateTriangulation dt1 = currentTriangulations[2 * i];
+              IntermediateTriangulation dt2 = currentTriangulations[2 * i + 1];
+              newTriangulations[i] = merge(dt1, dt2);
+              if (progress != null)
+                progress.progress();
+            }
+            return null;
+          }
+        }, parallelism);
+      } catch (InterruptedException e) {
+        throw new RuntimeException("Interrupted while merging triangulations", e);
       }
-      if (t1 < triangulations.length)
-        newTriangulations[t2++] = triangulations[t1];
+      if (numMerges < newTriangulations.length)
+        newTriangulations[numMerges] = triangulations[triangulations.length - 1];
       triangulations = newTriangulations;
     }
     return triangulations[0];
@@ -593,22 +704,30 @@ public class GSDTAlgorithm {
   public SimpleGraph getFinalAnswerAsGraph() {
     SimpleGraph graph = new SimpleGraph();
 
-    graph.sites = this.points.clone();
-    int numEdges = 0;
+    if (this.points != null) {
+      graph.sites = this.points.clone();
+    } else {
+      graph.xs = this.xs;
+      graph.ys = this.ys;
+    }
     graph.mbr = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
         -Double.MAX_VALUE, -Double.MAX_VALUE);
-    for (int s1 = 0; s1 < this.neighbors.length; s1++) {
-      numEdges += this.neighbors[s1].size();
-      graph.mbr.expand(graph.sites[s1]);
+    for (int s1 = 0; s1 < xs.length; s1++) {
+      graph.mbr.x1 = Math.min(graph.mbr.x1, xs[s1]);
+      graph.mbr.y1 = Math.min(graph.mbr.y1, ys[s1]);
+      // Same as expanding with the MBR of a point
+      graph.mbr.x2 = Math.max(graph.mbr.x2, xs[s1] + Math.ulp(xs[s1]));
+      graph.mbr.y2 = Math.max(graph.mbr.y2, ys[s1] + Math.ulp(ys[s1]));
     }
-    graph.safeSites = new BitArray(graph.sites.length);
+    graph.safeSites = new BitArray(xs.length);
     graph.safeSites.fill(true);
-    numEdges /= 2; // We store each undirected edge once
+    int numEdges = (int) (neighbors.totalSize() / 2); // We store each undirected edge once
     graph.edgeStarts = new int[numEdges];
     graph.edgeEnds = new int[numEdges];
 
-    for (int s1 = 0; s1 < this.neighbors.length; s1++) {
-      for (int s2 : this.neighbors[s1]) {
+    for (int s1 = 0; s1 < xs.length; s1++) {
+      for (int iNeighbor = 0; iNeighbor < neighbors.size(s1); iNeighbor++) {
+        int s2 = neighbors.get(s1, iNeighbor);
         if (s1 < s2) {
           numEdges--;
           graph.edgeStarts[numEdges] = s1;
@@ -622,6 +741,29 @@ public class GSDTAlgorithm {
   
     return graph;
   }
+
+  /**
+   * Returns the site at the given position. If the sites were given as
+   * coordinates only, a new point is created.
+   * @param site
+   * @return
+   */
+  Point getSite(int site) {
+    return points != null ? points[site] : new Point(xs[site], ys[site]);
+  }
+
+  /**
+   * Makes the given graph share the sites of this triangulation.
+   * @param graph
+   */
+  private void setSites(SimpleGraph graph) {
+    if (points != null) {
+      graph.sites = points;
+    } else {
+      graph.xs = xs;
+      graph.ys = ys;
+    }
+  }
   
   /**
    * Computes the final answer as a set of Voronoi regions. Each region is
@@ -643,20 +785,21 @@ public class GSDTAlgorithm {
     // A factory that creates polygons
     final GeometryFactory Factory = new GeometryFactory();
     
-    for (int iSite = 0; iSite < points.length; iSite++) {
+    for (int iSite = 0; iSite < xs.length; iSite++) {
       // Compute the Voronoi region of this site as a polygon
       // Sort all neighbors in CCW order and compute the perependicular bisector
       // of each incident edge. The intersection of perpendicular bisectors form
       // the points of the polygon that represents the Voronoi region.
       // If the angle between two neighbors is larger than PI, this indicates
       // an open region
-      final IntArray siteNeighbors = neighbors[iSite];
+      final int site = iSite;
+      final int numNeighbors = neighbors.size(iSite);
 
       // Compute angles between the points and its neighbors
-      final double[] angles = new double[siteNeighbors.size()];
-      for (int iNeighbor = 0; iNeighbor < siteNeighbors.size(); iNeighbor++) {
-        double dx = points[siteNeighbors.get(iNeighbor)].x - points[iSite].x;
-        double dy = points[siteNeighbors.get(iNeighbor)].y - points[iSite].y;
+      final double[] angles = new double[numNeighbors];
+      for (int iNeighbor = 0; iNeighbor < numNeighbors; iNeighbor++) {
+        double dx = xs[neighbors.get(iSite, iNeighbor)] - xs[iSite];
+        double dy = ys[neighbors.get(iSite, iNeighbor)] - ys[iSite];
         double ccwAngle = Math.atan2(dy, dx);
         angles[iNeighbor] = ccwAngle < 0 ? ccwAngle += Math.PI * 2 : ccwAngle;
       }
@@ -666,7 +809,7 @@ public class GSDTAlgorithm {
         
         @Override
         public void swap(int i, int j) {
-          siteNeighbors.swap(i, j);
+          neighbors.swap(site, i, j);
           double t = angles[i];
           angles[i] = angles[j];
           angles[j] = t;
@@ -680,15 +823,15 @@ public class GSDTAlgorithm {
           return 0;
         }
       };
-      new QuickSort().sort(ccwSort, 0, siteNeighbors.size());
+      new QuickSort().sort(ccwSort, 0, numNeighbors);
       
       // Traverse neighbors in CCW order and compute intersections of
       // perpendicular bisectors
       List<Point> voronoiRegionPoints = new ArrayList<Point>();
 
       int firstPoint = -1; // -1 indicates a closed polygon with no first point
-      for (int iNeighbor1 = 0; iNeighbor1 < siteNeighbors.size(); iNeighbor1++) {
-        int iNeighbor2 = (iNeighbor1 + 1) % siteNeighbors.size();
+      for (int iNeighbor1 = 0; iNeighbor1 < numNeighbors; iNeighbor1++) {
+        int iNeighbor2 = (iNeighbor1 + 1) % numNeighbors;
         double ccwAngle = angles[iNeighbor2] - angles[iNeighbor1];
         if (ccwAngle < 0)
           ccwAngle += Math.PI * 2;
@@ -696,8 +839,8 @@ public class GSDTAlgorithm {
           // An open side of the Voronoi region
           // Compute the intersection of each perpendicular bisector to the
           // boundary
-          Point p1 = intersectPerpendicularBisector(iSite, siteNeighbors.get(iNeighbor1), biggerMBR);
-          Point p2 = intersectPerpendicularBisector(siteNeighbors.get(iNeighbor2), iSite, biggerMBR);
+          Point p1 = intersectPerpendicularBisector(iSite, neighbors.get(iSite, iNeighbor1), biggerMBR);
+          Point p2 = intersectPerpendicularBisector(neighbors.get(iSite, iNeighbor2), iSite, biggerMBR);
           voronoiRegionPoints.add(p1);
           voronoiRegionPoints.add(p2);
           // Mark p2 as the first point in the open line string
@@ -706,7 +849,7 @@ public class GSDTAlgorithm {
           // A closed side of the Voronoi region. Calculate the next point as
           // the center of the empty circle
           Point emptyCircleCenter = calculateCircumCircleCenter(iSite,
-              siteNeighbors.get(iNeighbor1), siteNeighbors.get(iNeighbor2));
+              neighbors.get(iSite, iNeighbor1), neighbors.get(iSite, iNeighbor2));
           voronoiRegionPoints.add(emptyCircleCenter);
         }
       }
@@ -763,7 +906,7 @@ public class GSDTAlgorithm {
         }
         geom = Factory.createLineString(coords);
       }
-      geom.setUserData(points[iSite]);
+      geom.setUserData(getSite(iSite));
       (unsafeSites.get(iSite) ? nonfinalRegions : finalRegions).add(geom);
     }
   }
@@ -794,12 +937,13 @@ public class GSDTAlgorithm {
     IntArray nonfinalEdgeStarts = new IntArray();
     IntArray nonfinalEdgeEnds = new IntArray();
 
-    for (int i = 0; i < points.length; i++) {
+    for (int i = 0; i < xs.length; i++) {
       if (progress != null)
         progress.progress();
       if (unsafeSites.get(i)) {
         // An unsafe site, all of its adjacent edges are also unsafe
-        for (int n : neighbors[i]) {
+        for (int iNeighbor = 0; iNeighbor < neighbors.size(i); iNeighbor++) {
+          int n = neighbors.get(i, iNeighbor);
           if (i < n) { // To ensure that an edge is written only once
             nonfinalEdgeStarts.add(i);
             nonfinalEdgeEnds.add(n);
@@ -808,7 +952,8 @@ public class GSDTAlgorithm {
       } else {
         // Found a safe site, all edges that are adjacent to another safe site
         // are final edges
-        for (int n : neighbors[i]) {
+        for (int iNeighbor = 0; iNeighbor < neighbors.size(i); iNeighbor++) {
+          int n = neighbors.get(i, iNeighbor);
           if (i < n) { // To ensure that an edge is written only once
             if (!unsafeSites.get(n)) {
               // Found a final edge
@@ -823,16 +968,16 @@ public class GSDTAlgorithm {
       }
     }
     
-    finalGraph.sites = this.points;
+    setSites(finalGraph);
     finalGraph.edgeStarts = finalEdgeStarts.toArray();
     finalGraph.edgeEnds = finalEdgeEnds.toArray();
     finalGraph.safeSites = unsafeSites.invert();
     finalGraph.compact();
 
-    nonfinalGraph.sites = this.points;
+    setSites(nonfinalGraph);
     nonfinalGraph.edgeStarts = nonfinalEdgeStarts.toArray();
     nonfinalGraph.edgeEnds = nonfinalEdgeEnds.toArray();
-    nonfinalGraph.safeSites = new BitArray(this.points.length); // No safe sites
+    nonfinalGraph.safeSites = new BitArray(xs.length); // No safe sites
     nonfinalGraph.compact();
   }
 
@@ -846,9 +991,9 @@ public class GSDTAlgorithm {
    */
   private BitArray detectUnsafeSites(Rectangle mbr) {
     // Nodes that has its adjacency list sorted by node ID to speed up the merge
-    BitArray sortedSites = new BitArray(points.length);
+    BitArray sortedSites = new BitArray(xs.length);
     // An unsafe site is a site that participates to at least one unsafe triangle 
-    BitArray unsafeSites = new BitArray(points.length);
+    BitArray unsafeSites = new BitArray(xs.length);
     // Sites that need to be checked whether they have unsafe triangles or not
     IntArray sitesToCheck = new IntArray();
     
@@ -862,30 +1007,33 @@ public class GSDTAlgorithm {
       if (progress != null)
         progress.progress();
       int siteToCheck = sitesToCheck.pop();
-      IntArray neighbors1 = neighbors[siteToCheck];
       // Sort the array to speedup merging neighbors
       if (!sortedSites.get(siteToCheck)) {
-        neighbors1.sort();
+        neighbors.sort(siteToCheck);
         sortedSites.set(siteToCheck, true);
       }
-      for (int neighborID : neighbors1) {
-        IntArray neighbors2 = neighbors[neighborID];
+      int size1 = neighbors.size(siteToCheck);
+      for (int iNeighbor = 0; iNeighbor < size1; iNeighbor++) {
+        int neighborID = neighbors.get(siteToCheck, iNeighbor);
         // Sort neighbor nodes, if needed
         if (!sortedSites.get(neighborID)) {
-          neighbors2.sort();
+          neighbors.sort(neighborID);
           sortedSites.set(neighborID, true);
         }
         // Find common nodes which form triangles
+        int size2 = neighbors.size(neighborID);
         int i1 = 0, i2 = 0;
-        while (i1 < neighbors1.size() && i2 < neighbors2.size()) {
-          if (neighbors1.get(i1) == neighbors2.get(i2)) {
+        while (i1 < size1 && i2 < size2) {
+          int n1 = neighbors.get(siteToCheck, i1);
+          int n2 = neighbors.get(neighborID, i2);
+          if (n1 == n2) {
             // Found a triangle. Check whether the triangle is safe or not
             // A safe triangle is a triangle with an empty circle that fits
             // completely inside partition boundaries. This means that this safe
             // triangle cannot be disrupted by any point in other partitions
             boolean safeTriangle = true;
-            // Found a triangle between unsafeNode, neighborID and neighbors1[i1]
-            Point emptyCircle = calculateCircumCircleCenter(siteToCheck, neighborID, neighbors1.get(i1));
+            // Found a triangle between unsafeNode, neighborID and n1
+            Point emptyCircle = calculateCircumCircleCenter(siteToCheck, neighborID, n1);
             if (emptyCircle == null || !mbr.contains(emptyCircle)) {
               // The center is outside the MBR, unsafe
               safeTriangle = false;
@@ -907,14 +1055,14 @@ public class GSDTAlgorithm {
                 sitesToCheck.add(neighborID);
                 unsafeSites.set(neighborID, true);
               }
-              if (!unsafeSites.get(neighbors1.get(i1))) {
-                sitesToCheck.add(neighbors1.get(i1));
-                unsafeSites.set(neighbors1.get(i1), true);
+              if (!unsafeSites.get(n1)) {
+                sitesToCheck.add(n1);
+                unsafeSites.set(n1, true);
               }
             }
             i1++;
             i2++;
-          } else if (neighbors1.get(i1) < neighbors2.get(i2)) {
+          } else if (n1 < n2) {
             i1++;
           } else {
             i2++;
@@ -929,8 +1077,9 @@ public class GSDTAlgorithm {
     final double threshold = 1E-6;
     List<Point> starts = new Vector<Point>();
     List<Point> ends = new Vector<Point>();
-    for (int s1 = 0; s1 < points.length; s1++) {
-      for (int s2 : neighbors[s1]) {
+    for (int s1 = 0; s1 < xs.length; s1++) {
+      for (int iNeighbor = 0; iNeighbor < neighbors.size(s1); iNeighbor++) {
+        int s2 = neighbors.get(s1, iNeighbor);
         if (s1 < s2) {
           starts.add(new Point(xs[s1], ys[s1]));
           ends.add(new Point(xs[s2], ys[s2]));
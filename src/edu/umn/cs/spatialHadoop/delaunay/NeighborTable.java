@@ -0,0 +1,206 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.delaunay;
+
+import java.util.Arrays;
+
+/**
+ * Stores the neighbors of all sites in a triangulation using a few primitive
+ * arrays rather than one object per site. While the triangulation is being
+ * built, each site has a fixed number of inline slots in one shared array and
+ * only sites with more neighbors than that get a separate overflow array.
+ * Once the triangulation is complete, {@link #compact()} packs all neighbors
+ * in the compressed sparse row (CSR) format, i.e., an array of offsets and a
+ * flat array of neighbor IDs.
+ * Modifying the neighbors of different sites from different threads is safe
+ * as long as each site is modified by one thread only.
+ */
+class NeighborTable {
+  /**Number of neighbors stored inline for each site before overflowing*/
+  static final int InlineCapacity = 8;
+
+  /**Number of neighbors of each site (while building)*/
+  private int[] sizes;
+  /**Inline neighbors where site i occupies the slots starting at i * InlineCapacity*/
+  private int[] inline;
+  /**All neighbors of sites that exceed the inline capacity, null for others*/
+  private int[][] overflow;
+
+  /**
+   * CSR offsets after compaction. The neighbors of site i are stored in
+   * the range [offsets[i], offsets[i+1]) of {@link #flat}.
+   */
+  private int[] offsets;
+  /**All neighbors of all sites after compaction*/
+  private int[] flat;
+
+  NeighborTable(int numSites) {
+    this.sizes = new int[numSites];
+    this.inline = new int[numSites * InlineCapacity];
+    this.overflow = new int[numSites][];
+  }
+
+  /**
+   * Number of sites in this table
+   * @return
+   */
+  int numSites() {
+    return offsets != null ? offsets.length - 1 : sizes.length;
+  }
+
+  /**
+   * Number of neighbors of the given site
+   * @param site
+   * @return
+   */
+  int size(int site) {
+    return offsets != null ? offsets[site + 1] - offsets[site] : sizes[site];
+  }
+
+  /**
+   * Returns the neighbor at the given position in the list of a site
+   * @param site
+   * @param i
+   * @return
+   */
+  int get(int site, int i) {
+    if (offsets != null)
+      return flat[offsets[site] + i];
+    int[] extra = overflow[site];
+    return extra != null ? extra[i] : inline[site * InlineCapacity + i];
+  }
+
+  /**
+   * Appends a neighbor to the list of a site
+   * @param site
+   * @param neighbor
+   */
+  void add(int site, int neighbor) {
+    checkModifiable();
+    int size = sizes[site];
+    int[] extra = overflow[site];
+    if (extra == null && size < InlineCapacity) {
+      inline[site * InlineCapacity + size] = neighbor;
+    } else {
+      if (extra == null) {
+        extra = new int[InlineCapacity * 2];
+        System.arraycopy(inline, site * InlineCapacity, extra, 0, size);
+        overflow[site] = extra;
+      } else if (size == extra.length) {
+        extra = Arrays.copyOf(extra, size * 2);
+        overflow[site] = extra;
+      }
+      extra[size] = neighbor;
+    }
+    sizes[site] = size + 1;
+  }
+
+  /**
+   * Removes the first occurrence of a neighbor from the list of a site while
+   * keeping the order of the remaining neighbors.
+   * @param site
+   * @param neighbor
+   * @return - whether the neighbor was found or not
+   */
+  boolean remove(int site, int neighbor) {
+    checkModifiable();
+    int size = sizes[site];
+    int[] array = overflow[site];
+    int start = 0;
+    if (array == null) {
+      array = inline;
+      start = site * InlineCapacity;
+    }
+    for (int i = start; i < start + size; i++) {
+      if (array[i] == neighbor) {
+        System.arraycopy(array, i + 1, array, i, start + size - (i + 1));
+        sizes[site] = size - 1;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Swaps two neighbors in the list of a site. Used to reorder neighbors
+   * after compaction.
+   * @param site
+   * @param i
+   * @param j
+   */
+  void swap(int site, int i, int j) {
+    checkCompact();
+    int base = offsets[site];
+    int t = flat[base + i];
+    flat[base + i] = flat[base + j];
+    flat[base + j] = t;
+  }
+
+  /**
+   * Sorts the neighbors of a site by their IDs.
+   * @param site
+   */
+  void sort(int site) {
+    checkCompact();
+    Arrays.sort(flat, offsets[site], offsets[site + 1]);
+  }
+
+  /**
+   * Total number of entries in all neighbor lists. Each undirected edge is
+   * counted twice.
+   * @return
+   */
+  long totalSize() {
+    if (offsets != null)
+      return offsets[offsets.length - 1];
+    long total = 0;
+    for (int size : sizes)
+      total += size;
+    return total;
+  }
+
+  /**
+   * Packs all neighbor lists in the CSR format and releases the arrays
+   * used while building. No neighbors can be added or removed afterwards.
+   */
+  void compact() {
+    if (offsets != null)
+      return;
+    long total = totalSize();
+    if (total > Integer.MAX_VALUE)
+      throw new RuntimeException("Too many edges to compact "+total);
+    int numSites = sizes.length;
+    int[] newOffsets = new int[numSites + 1];
+    int[] newFlat = new int[(int) total];
+    for (int site = 0; site < numSites; site++) {
+      int size = sizes[site];
+      int[] extra = overflow[site];
+      if (extra != null)
+        System.arraycopy(extra, 0, newFlat, newOffsets[site], size);
+      else
+        System.arraycopy(inline, site * InlineCapacity, newFlat, newOffsets[site], size);
+      newOffsets[site + 1] = newOffsets[site] + size;
+    }
+    this.offsets = newOffsets;
+    this.flat = newFlat;
+    this.sizes = null;
+    this.inline = null;
+    this.overflow = null;
+  }
+
+  private void checkModifiable() {
+    if (offsets != null)
+      throw new IllegalStateException("Cannot modify a compacted neighbor table");
+  }
+
+  private void checkCompact() {
+    if (offsets == null)
+      throw new IllegalStateException("Neighbor table should be compacted first");
+  }
+}
@@ -27,8 +27,13 @@ import edu.umn.cs.spatialHadoop.util.IntArray;
  *
  */
 public class SimpleGraph implements Writable {
-  /**A list of all vertices in this graph.*/
+  /**
+   * A list of all vertices in this graph or <code>null</code> if the vertices
+   * are stored as coordinates only in {@link #xs} and {@link #ys}.
+   */
   Point[] sites;
+  /**Coordinates of all vertices if they are not stored as objects*/
+  double[] xs, ys;
   /**A set of all edges, each connecting two points in the graph*/
   int[] edgeStarts, edgeEnds;
   /**Minimum bounding rectangles for all points*/
@@ -46,7 +51,29 @@ public class SimpleGraph implements Writable {
    * @return
    */
   public int getNumSites() {
-    return sites.length;
+    return sites != null ? sites.length : xs.length;
+  }
+
+  public double getX(int i) {
+    return sites != null ? sites[i].x : xs[i];
+  }
+
+  public double getY(int i) {
+    return sites != null ? sites[i].y : ys[i];
+  }
+
+  /**
+   * Returns the site at the given position. If sites are stored as coordinates
+   * only, the given point is filled in and returned.
+   * @param i
+   * @param temp
+   * @return
+   */
+  public Point getSite(int i, Point temp) {
+    if (sites != null)
+      return sites[i];
+    temp.set(xs[i], ys[i]);
+    return temp;
   }
   
   /**
@@ -54,7 +81,8 @@ public class SimpleGraph implements Writable {
    */
   void compact() {
     // Detect which nodes are connected and which are disconnected
-    BitArray connectedNodes = new BitArray(sites.length);
+    int numSites = getNumSites();
+    BitArray connectedNodes = new BitArray(numSites);
     int newSiteCount = 0;
     for (int i = 0; i < edgeStarts.length; i++) {
       if (!connectedNodes.get(edgeStarts[i])) {
@@ -71,15 +99,27 @@ public class SimpleGraph implements Writable {
     // Old node ID is a position in the current (soon to be old) sites array.
     // New node ID is a position in the new (soon to be created) sites array.
     int maxID = 0;
-    Point[] newSites = new Point[newSiteCount];
-    int[] newNodeIDs = new int[sites.length];
+    Point[] newSites = sites != null ? new Point[newSiteCount] : null;
+    double[] newXs = sites != null ? null : new double[newSiteCount];
+    double[] newYs = sites != null ? null : new double[newSiteCount];
+    int[] newNodeIDs = new int[numSites];
     BitArray newSafeSites = new BitArray(newSiteCount);
     this.mbr = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
         -Double.MAX_VALUE, -Double.MAX_VALUE);
-    for (int oldNodeID = 0; oldNodeID < sites.length; oldNodeID++) {
+    for (int oldNodeID = 0; oldNodeID < numSites; oldNodeID++) {
       if (connectedNodes.get(oldNodeID)) {
-        newSites[maxID] = sites[oldNodeID];
-        this.mbr.expand(newSites[maxID]);
+        double x = getX(oldNodeID), y = getY(oldNodeID);
+        if (newSites != null) {
+          newSites[maxID] = sites[oldNodeID];
+        } else {
+          newXs[maxID] = x;
+          newYs[maxID] = y;
+        }
+        this.mbr.x1 = Math.min(this.mbr.x1, x);
+        this.mbr.y1 = Math.min(this.mbr.y1, y);
+        // Same as expanding with the MBR of a point
+        this.mbr.x2 = Math.max(this.mbr.x2, x + Math.ulp(x));
+        this.mbr.y2 = Math.max(this.mbr.y2, y + Math.ulp(y));
         newSafeSites.set(maxID, safeSites.get(oldNodeID));
         newNodeIDs[oldNodeID] = maxID++;
       }
@@ -88,6 +128,8 @@ public class SimpleGraph implements Writable {
       throw new RuntimeException(String.format("Error in compaction. "
           + "Copied only %d sites instead of %d", maxID, newSiteCount));
     this.sites = newSites;
+    this.xs = newXs;
+    this.ys = newYs;
     
     // Update all edges accordingly
     for (int i = 0; i < edgeStarts.length; i++) {
@@ -99,10 +141,20 @@ public class SimpleGraph implements Writable {
   @Override
   public void write(DataOutput out) throws IOException {
     this.mbr.write(out);
-    out.writeInt(sites.length);
-    out.writeUTF(sites[0].getClass().getName());
-    for (Point site : sites)
-      site.write(out);
+    if (sites != null) {
+      out.writeInt(sites.length);
+      out.writeUTF(sites[0].getClass().getName());
+      for (Point site : sites)
+        site.write(out);
+    } else {
+      // Written in the same format of Point objects
+      out.writeInt(xs.length);
+      out.writeUTF(Point.class.getName());
+      for (int i = 0; i < xs.length; i++) {
+        out.writeDouble(xs[i]);
+        out.writeDouble(ys[i]);
+      }
+    }
     IntArray.writeIntArray(edgeStarts, out);
     IntArray.writeIntArray(edgeEnds, out);
     safeSites.write(out);
@@ -115,10 +167,22 @@ public class SimpleGraph implements Writable {
       int numSites = in.readInt();
       Class<? extends Point> siteClass =
           Class.forName(in.readUTF()).asSubclass(Point.class);
-      sites = new Point[numSites];
-      for (int i = 0; i < numSites; i++) {
-        sites[i] = siteClass.newInstance();
-        sites[i].readFields(in);
+      if (siteClass == Point.class) {
+        // Plain points are read as coordinates only to save memory
+        sites = null;
+        xs = new double[numSites];
+        ys = new double[numSites];
+        for (int i = 0; i < numSites; i++) {
+          xs[i] = in.readDouble();
+          ys[i] = in.readDouble();
+        }
+      } else {
+        xs = ys = null;
+        sites = new Point[numSites];
+        for (int i = 0; i < numSites; i++) {
+          sites[i] = siteClass.newInstance();
+          sites[i].readFields(in);
+        }
       }
       edgeStarts = IntArray.readIntArray(edgeStarts, in);
       edgeEnds = IntArray.readIntArray(edgeEnds, in);
@@ -137,14 +201,14 @@ public class SimpleGraph implements Writable {
    */
   public void draw() {
     System.out.println("group {");
-    for (Point s : sites) {
-      System.out.printf("circle %f, %f, 0.5\n", s.x, s.y);
+    for (int i = 0; i < getNumSites(); i++) {
+      System.out.printf("circle %f, %f, 0.5\n", getX(i), getY(i));
     }
     System.out.println("}");
     System.out.println("group {");
     for (int i = 0; i < edgeStarts.length; i++) {
-      System.out.printf("line %f, %f, %f, %f\n", sites[edgeStarts[i]].x,
-          sites[edgeStarts[i]].y, sites[edgeEnds[i]].x, sites[edgeEnds[i]].y);
+      System.out.printf("line %f, %f, %f, %f\n", getX(edgeStarts[i]),
+          getY(edgeStarts[i]), getX(edgeEnds[i]), getY(edgeEnds[i]));
     }
     System.out.println("}");
   }
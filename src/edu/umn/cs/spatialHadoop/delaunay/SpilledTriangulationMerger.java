@@ -0,0 +1,257 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.delaunay;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.util.Progressable;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+
+/**
+ * Merges partial triangulations region by region in bounded memory. Added
+ * triangulations are spilled to a local file and only their MBRs are kept in
+ * memory. The merge step arranges them in non-overlapping columns, merges
+ * each column bottom up and then merges the columns left to right, reading
+ * back one triangulation at a time. After each pairwise merge, the part that
+ * is proven final is written to the output and only the non-final part is
+ * carried to the next merge. Hence, the memory footprint depends on the size
+ * of the boundary of the merged region rather than the size of the input.
+ */
+class SpilledTriangulationMerger {
+  static final Log LOG = LogFactory.getLog(SpilledTriangulationMerger.class);
+
+  /**The location of one triangulation in the spill file*/
+  static class SpillEntry {
+    /**MBR of the triangulation*/
+    Rectangle mbr;
+    /**Position of the first byte in the spill file*/
+    long offset;
+    /**Length of the serialized triangulation in bytes*/
+    int length;
+
+    SpillEntry(Rectangle mbr, long offset, int length) {
+      this.mbr = mbr;
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**A local file that holds all added triangulations*/
+  private File spillFile;
+  private OutputStream spillOut;
+  /**Total number of bytes written to the spill file*/
+  private long spillSize;
+  /**A buffer used to serialize one triangulation at a time*/
+  private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+  /**All spilled triangulations in the order they were added*/
+  private List<SpillEntry> entries = new ArrayList<SpillEntry>();
+
+  private Progressable progress;
+
+  SpilledTriangulationMerger(Progressable progress) throws IOException {
+    this.progress = progress;
+    this.spillFile = File.createTempFile("triangulations", ".spill");
+    this.spillFile.deleteOnExit();
+    this.spillOut = new BufferedOutputStream(new FileOutputStream(spillFile));
+  }
+
+  /**
+   * Spills a triangulation to the local disk. The given object can be reused
+   * by the caller after this method returns.
+   * @param t
+   * @throws IOException
+   */
+  void add(SimpleGraph t) throws IOException {
+    if (t.getNumSites() == 0)
+      return;
+    buffer.reset();
+    t.write(new DataOutputStream(buffer));
+    buffer.writeTo(spillOut);
+    entries.add(new SpillEntry(t.mbr.clone(), spillSize, buffer.size()));
+    spillSize += buffer.size();
+  }
+
+  /**
+   * Merges all added triangulations and writes the final parts to the given
+   * output as soon as they are proven final.
+   * @param completeRegion - the region in which all sites are known to be
+   *   added to this merger or <code>null</code> if no more sites will ever
+   *   be added anywhere.
+   * @param output - receives the final parts with a key of
+   *   <code>true</code>
+   * @return - the non-final part of the merged triangulation or
+   *   <code>null</code> if nothing was added. If the complete region is
+   *   <code>null</code>, all edges of the returned part are final too.
+   * @throws IOException
+   */
+  SimpleGraph merge(Rectangle completeRegion,
+      OutputCollector<Boolean, SimpleGraph> output) throws IOException {
+    spillOut.close();
+    buffer = null;
+    List<List<SpillEntry>> columns = arrangeInColumns();
+    LOG.info("Merging "+entries.size()+" triangulations in "+columns.size()+" columns");
+
+    RandomAccessFile in = new RandomAccessFile(spillFile, "r");
+    try {
+      SimpleGraph merged = null;
+      for (int iColumn = 0; iColumn < columns.size(); iColumn++) {
+        List<SpillEntry> column = columns.get(iColumn);
+        double columnX1 = Double.MAX_VALUE, columnX2 = -Double.MAX_VALUE;
+        for (SpillEntry entry : column) {
+          columnX1 = Math.min(columnX1, entry.mbr.x1);
+          columnX2 = Math.max(columnX2, entry.mbr.x2);
+        }
+
+        // Merge the column bottom up. All sites in this column that are below
+        // the next triangulation have already been merged.
+        SimpleGraph mergedColumn = null;
+        for (int i = 0; i < column.size(); i++) {
+          SimpleGraph t = read(in, column.get(i));
+          if (mergedColumn == null) {
+            mergedColumn = t;
+          } else {
+            double y2 = i == column.size() - 1 ?
+                Double.MAX_VALUE : column.get(i + 1).mbr.y1;
+            mergedColumn = mergeAndSplit(mergedColumn, t,
+                new Rectangle(columnX1, -Double.MAX_VALUE, columnX2, y2),
+                completeRegion, output);
+          }
+        }
+
+        // Merge with the columns to the left. All sites to the left of the
+        // next column have already been merged.
+        if (merged == null) {
+          merged = mergedColumn;
+        } else {
+          double x2 = iColumn == columns.size() - 1 ?
+              Double.MAX_VALUE : columns.get(iColumn + 1).get(0).mbr.x1;
+          merged = mergeAndSplit(merged, mergedColumn,
+              new Rectangle(-Double.MAX_VALUE, -Double.MAX_VALUE, x2, Double.MAX_VALUE),
+              completeRegion, output);
+        }
+      }
+      return merged;
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Deletes the spill file
+   */
+  void close() {
+    try {
+      if (spillOut != null)
+        spillOut.close();
+    } catch (IOException e) {
+      LOG.warn("Error closing spill file "+spillFile, e);
+    }
+    spillFile.delete();
+  }
+
+  /**
+   * Groups the spilled triangulations in columns with disjoint x ranges.
+   * Columns are sorted from left to right and the triangulations in each
+   * column are sorted from bottom to top.
+   * @return
+   */
+  private List<List<SpillEntry>> arrangeInColumns() {
+    List<SpillEntry> sorted = new ArrayList<SpillEntry>(entries);
+    Collections.sort(sorted, new Comparator<SpillEntry>() {
+      @Override
+      public int compare(SpillEntry e1, SpillEntry e2) {
+        return Double.compare(e1.mbr.x1, e2.mbr.x1);
+      }
+    });
+    List<List<SpillEntry>> columns = new ArrayList<List<SpillEntry>>();
+    List<SpillEntry> column = null;
+    double columnX2 = 0;
+    for (SpillEntry entry : sorted) {
+      if (column == null || entry.mbr.x1 >= columnX2) {
+        column = new ArrayList<SpillEntry>();
+        columns.add(column);
+        columnX2 = entry.mbr.x2;
+      } else {
+        columnX2 = Math.max(columnX2, entry.mbr.x2);
+      }
+      column.add(entry);
+    }
+    Comparator<SpillEntry> yComparator = new Comparator<SpillEntry>() {
+      @Override
+      public int compare(SpillEntry e1, SpillEntry e2) {
+        return Double.compare(e1.mbr.y1, e2.mbr.y1);
+      }
+    };
+    for (List<SpillEntry> c : columns)
+      Collections.sort(c, yComparator);
+    return columns;
+  }
+
+  private SimpleGraph read(RandomAccessFile in, SpillEntry entry)
+      throws IOException {
+    byte[] data = new byte[entry.length];
+    in.seek(entry.offset);
+    in.readFully(data);
+    SimpleGraph t = new SimpleGraph();
+    t.readFields(new DataInputStream(new ByteArrayInputStream(data)));
+    if (progress != null)
+      progress.progress();
+    return t;
+  }
+
+  /**
+   * Merges two adjacent triangulations, writes the part that is final with
+   * respect to the given safe region and returns the non-final part.
+   * @param t1 - the triangulation to the left or bottom
+   * @param t2 - the triangulation to the right or top
+   * @param safeRegion - the region in which all sites have been merged
+   * @param completeRegion
+   * @param output
+   * @return
+   * @throws IOException
+   */
+  private SimpleGraph mergeAndSplit(SimpleGraph t1, SimpleGraph t2,
+      Rectangle safeRegion, Rectangle completeRegion,
+      OutputCollector<Boolean, SimpleGraph> output) throws IOException {
+    if (t1.getNumSites() == 0)
+      return t2;
+    if (t2.getNumSites() == 0)
+      return t1;
+    if (completeRegion != null) {
+      safeRegion = new Rectangle(Math.max(safeRegion.x1, completeRegion.x1),
+          Math.max(safeRegion.y1, completeRegion.y1),
+          Math.min(safeRegion.x2, completeRegion.x2),
+          Math.min(safeRegion.y2, completeRegion.y2));
+    }
+    GSDTAlgorithm algo = new GSDTAlgorithm(new SimpleGraph[] {t1, t2}, progress);
+    SimpleGraph finalPart = new SimpleGraph();
+    SimpleGraph nonfinalPart = new SimpleGraph();
+    algo.splitIntoFinalAndNonFinalGraphs(safeRegion, finalPart, nonfinalPart);
+    if (finalPart.edgeStarts.length > 0)
+      output.collect(Boolean.TRUE, finalPart);
+    return nonfinalPart;
+  }
+}
@@ -69,6 +69,32 @@ public class DDNumericDataGroup extends DataDescriptor {
       }
   }
   
+  /**
+   * Reads a rectangular window of a two-dimensional dataset into the given
+   * buffer in row-major order without decoding the parts of the dataset that
+   * are outside the window, if possible.
+   * @param buf - the buffer to read into. Its size should be at least
+   *  (row2 - row1) * (col2 - col1) * {@link #getDataSize()}
+   * @param row1 - the first row of the window (inclusive)
+   * @param col1 - the first column of the window (inclusive)
+   * @param row2 - the last row of the window (exclusive)
+   * @param col2 - the last column of the window (exclusive)
+   * @throws IOException
+   * @see DataDescriptor#readWindow(byte[], int[], int, int, int, int, int)
+   */
+  public void getWindowAsByteArray(byte[] buf, int row1, int col1, int row2,
+      int col2) throws IOException {
+    lazyLoad();
+    int[] dimensions = getDimensions();
+    int valueSize = getDataSize();
+    for (int i = 0; i < members.length; i++)
+      if (members[i].tagID == HDFConstants.DFTAG_SD) {
+        ((DDScientificData)hdfFile.retrieveElementByID(members[i])).readWindow(
+            buf, dimensions, valueSize, row1, col1, row2, col2);
+        return;
+      }
+  }
+
   /**
    * Returns the type of the underlying data
    * @return
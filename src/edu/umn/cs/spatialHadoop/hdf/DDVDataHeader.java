@@ -127,6 +127,36 @@ public class DDVDataHeader extends DataDescriptor {
     return fields;
   }
   
+  /**
+   * Returns all the values of an INT32 field in the given entry. Unlike
+   * {@link #getEntryAt(int)}, this method returns all the values of fields
+   * with an order greater than one, e.g., the origin of a chunk.
+   * @param i - the index of the entry
+   * @param iField - the index of the field in the entry
+   * @return
+   * @throws IOException
+   */
+  public int[] getInt32FieldAt(int i, int iField) throws IOException {
+    lazyLoad();
+    if (i >= nvert)
+      throw new ArrayIndexOutOfBoundsException(i);
+    if (types[iField] != HDFConstants.DFNT_INT32)
+      throw new RuntimeException("Field "+fieldNames[iField]+" is not of type INT32");
+    DDVSet vset = (DDVSet) hdfFile.retrieveElementByID(
+        new DDID(HDFConstants.DFTAG_VS, this.refNo));
+    byte[] data = vset.getData();
+    int offset = i * ivsize;
+    for (int jField = 0; jField < iField; jField++)
+      offset += sizes[jField];
+    int[] values = new int[order[iField]];
+    for (int j = 0; j < values.length; j++) {
+      values[j] = ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+          | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+      offset += 4;
+    }
+    return values;
+  }
+
   @Override
   public String toString() {
     try {
@@ -11,6 +11,7 @@ package edu.umn.cs.spatialHadoop.hdf;
 import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -406,6 +407,150 @@ public abstract class DataDescriptor {
     return totalBytesRead;
   }
   
+  /**
+   * Reads a rectangular window of a two-dimensional element into the given
+   * buffer in row-major order. Chunked elements are read chunk by chunk and
+   * only the chunks that overlap the window are decompressed. Compressed
+   * elements are decompressed only up to the last row of the window.
+   * Parts of the window that are not stored, e.g., missing chunks, are left
+   * unchanged in the buffer.
+   * @param buf - the buffer to read the window into
+   * @param dimensions - the number of rows and columns of the element
+   * @param valueSize - the size of one value in bytes
+   * @param row1 - the first row of the window (inclusive)
+   * @param col1 - the first column of the window (inclusive)
+   * @param row2 - the last row of the window (exclusive)
+   * @param col2 - the last column of the window (exclusive)
+   * @throws IOException
+   */
+  protected void readWindow(byte[] buf, int[] dimensions, int valueSize,
+      int row1, int col1, int row2, int col2) throws IOException {
+    int rowSize = dimensions[1] * valueSize;
+    int windowRowSize = (col2 - col1) * valueSize;
+    if (!extended) {
+      // Read the rows of the window directly from the file
+      for (int row = row1; row < row2; row++) {
+        hdfFile.inStream.seek(offset + (long) row * rowSize + col1 * valueSize);
+        hdfFile.inStream.readFully(buf, (row - row1) * windowRowSize, windowRowSize);
+      }
+      return;
+    }
+    hdfFile.inStream.seek(offset);
+    int extensionType = hdfFile.inStream.readUnsignedShort();
+    switch (extensionType) {
+    case HDFConstants.SPECIAL_COMP:
+      readCompressedWindow(buf, rowSize, valueSize, row1, col1, row2, col2);
+      break;
+    case HDFConstants.SPECIAL_CHUNKED:
+      readChunkedWindow(buf, row1, col1, row2, col2);
+      break;
+    default:
+      // Read the whole element and copy the window out of it
+      byte[] allData = new byte[dimensions[0] * rowSize];
+      readData(allData, 0, allData.length);
+      for (int row = row1; row < row2; row++)
+        System.arraycopy(allData, row * rowSize + col1 * valueSize,
+            buf, (row - row1) * windowRowSize, windowRowSize);
+    }
+  }
+
+  private void readCompressedWindow(byte[] buf, int rowSize, int valueSize,
+      int row1, int col1, int row2, int col2) throws IOException {
+    /*int compressionVersion = */hdfFile.inStream.readUnsignedShort();
+    /*int extendedLength = */hdfFile.inStream.readInt();
+    int linkedRefNo = hdfFile.inStream.readUnsignedShort();
+    /*int modelType = */hdfFile.inStream.readUnsignedShort();
+    int compressionType = hdfFile.inStream.readUnsignedShort();
+    if (compressionType != HDFConstants.COMP_CODE_DEFLATE)
+      throw new RuntimeException("Unsupported compression "+compressionType);
+    int deflateLevel = hdfFile.inStream.readUnsignedShort();
+    DDID linkedBlockID = new DDID(HDFConstants.DFTAG_COMPRESSED, linkedRefNo);
+    DDCompressedBlock dataBlock =
+        (DDCompressedBlock) hdfFile.retrieveElementByID(linkedBlockID);
+    DataInputStream decompressedData =
+        new DataInputStream(dataBlock.decompressDeflate(deflateLevel));
+    int windowRowSize = (col2 - col1) * valueSize;
+    // Skip all the rows above the window and stop after its last row
+    skipFully(decompressedData, (long) row1 * rowSize);
+    for (int row = row1; row < row2; row++) {
+      skipFully(decompressedData, col1 * valueSize);
+      decompressedData.readFully(buf, (row - row1) * windowRowSize, windowRowSize);
+      if (row < row2 - 1)
+        skipFully(decompressedData, rowSize - col1 * valueSize - windowRowSize);
+    }
+    decompressedData.close();
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) {
+        if (in.read() == -1)
+          throw new EOFException("Unexpected end of compressed data");
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  private void readChunkedWindow(byte[] buf, int row1, int col1, int row2,
+      int col2) throws IOException {
+    /*int sp_tag_head_len = */hdfFile.inStream.readInt();
+    /*int version = */hdfFile.inStream.readUnsignedByte();
+    /*int flag = */hdfFile.inStream.readInt();
+    /*int elem_total_length = */hdfFile.inStream.readInt();
+    /*int chunk_size = */hdfFile.inStream.readInt();
+    // Number type size. i.e., the size of the data type
+    int nt_size = hdfFile.inStream.readInt();
+    // ID of the chunk table
+    int tag = hdfFile.inStream.readUnsignedShort();
+    int ref = hdfFile.inStream.readUnsignedShort();
+    DDID chunkTableID = new DDID(tag, ref);
+    // Special table for 'ghost' chunks (not used)
+    hdfFile.inStream.readUnsignedShort();
+    hdfFile.inStream.readUnsignedShort();
+    int nDims = hdfFile.inStream.readUnsignedShort();
+    if (nDims != 2)
+      throw new RuntimeException("Cannot read a window of "+nDims+"-dimensional data");
+    int[] chunkLengths = new int[nDims];
+    for (int i = 0; i < nDims; i++) {
+      /*int flag = */hdfFile.inStream.readInt();
+      /*int dimensionLength = */hdfFile.inStream.readInt();
+      chunkLengths[i] = hdfFile.inStream.readInt();
+    }
+
+    DDVDataHeader chunkTable = (DDVDataHeader) hdfFile.retrieveElementByID(chunkTableID);
+    int numChunks = chunkTable.getEntryCount();
+    int windowRowSize = (col2 - col1) * nt_size;
+    byte[] chunkData = null;
+    for (int i_chunk = 0; i_chunk < numChunks; i_chunk++) {
+      // The origin of the chunk is given in chunks along each dimension
+      int[] origin = chunkTable.getInt32FieldAt(i_chunk, 0);
+      int chunkRow1 = origin[0] * chunkLengths[0];
+      int chunkCol1 = origin[1] * chunkLengths[1];
+      int r1 = Math.max(row1, chunkRow1);
+      int r2 = Math.min(row2, chunkRow1 + chunkLengths[0]);
+      int c1 = Math.max(col1, chunkCol1);
+      int c2 = Math.min(col2, chunkCol1 + chunkLengths[1]);
+      if (r1 >= r2 || c1 >= c2)
+        continue; // Chunk is outside the window. Skip without decompressing
+      Object[] chunkInformation = (Object[]) chunkTable.getEntryAt(i_chunk);
+      DDID chunkedID = new DDID((Integer)chunkInformation[1], (Integer)chunkInformation[2]);
+      DDChunkData chunkObject = (DDChunkData) hdfFile.retrieveElementByID(chunkedID);
+      if (chunkObject == null)
+        continue; // A chunk that was never written. Keep the fill values
+      if (chunkData == null)
+        chunkData = new byte[chunkLengths[0] * chunkLengths[1] * nt_size];
+      chunkObject.readData(chunkData, 0, chunkData.length);
+      for (int row = r1; row < r2; row++) {
+        System.arraycopy(chunkData,
+            ((row - chunkRow1) * chunkLengths[1] + (c1 - chunkCol1)) * nt_size,
+            buf, (row - row1) * windowRowSize + (c1 - col1) * nt_size,
+            (c2 - c1) * nt_size);
+      }
+    }
+  }
+
   protected int readData(byte[] buf, int bufOff, int bufLen) throws IOException {
     hdfFile.inStream.seek(offset);
     if (!extended) {
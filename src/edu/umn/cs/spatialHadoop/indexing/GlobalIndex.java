@@ -11,8 +11,10 @@ package edu.umn.cs.spatialHadoop.indexing;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.List;
+import java.util.PriorityQueue;
 
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.util.IndexedSortable;
@@ -23,11 +25,14 @@ import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
-import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
  * A very simple spatial index that provides some spatial operations based
- * on an array storage.
+ * on an array storage. When the index is loaded, an in-memory R-tree is
+ * packed over the MBRs of all shapes using the Sort-Tile-Recursive (STR)
+ * algorithm so that range, k-nearest neighbor and spatial join queries
+ * do not need to scan all shapes.
  * @author Ahmed Eldawy
  *
  * @param <S>
@@ -40,6 +45,27 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
   /**All underlying shapes in no specific order*/
   protected S[] shapes;
 
+  /**Maximum number of children of each node in the in-memory tree*/
+  private static final int NodeCapacity = 16;
+
+  /**MBRs of all shapes in the same order of the shapes array*/
+  private double[] shapeX1, shapeY1, shapeX2, shapeY2;
+
+  /**
+   * MBRs of all tree nodes. Nodes are stored level by level starting at the
+   * root which is stored at index zero.
+   */
+  private double[] nodeX1, nodeY1, nodeX2, nodeY2;
+
+  /**
+   * The range of children of each node [nodeStart, nodeEnd). Children of
+   * internal nodes are nodes while children of leaf nodes are shapes.
+   */
+  private int[] nodeStart, nodeEnd;
+
+  /**Index of the first leaf node. All nodes after it are leaves as well*/
+  private int firstLeaf;
+
   /**Whether partitions in this global index are compact (minimal) or not*/
   private boolean compact;
   
@@ -57,6 +83,152 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
     for (int i = 0; i < this.shapes.length; i++) {
       this.shapes[i] = (S) this.shapes[i].clone();
     }
+    buildTree();
+  }
+
+  /**
+   * Packs an R-tree over all shapes using the Sort-Tile-Recursive algorithm.
+   * The shapes array is reordered such that the shapes of each leaf node are
+   * stored consecutively.
+   */
+  private void buildTree() {
+    int count = shapes.length;
+    shapeX1 = new double[count];
+    shapeY1 = new double[count];
+    shapeX2 = new double[count];
+    shapeY2 = new double[count];
+    for (int i = 0; i < count; i++) {
+      Rectangle mbr = shapes[i].getMBR();
+      if (mbr == null) {
+        // An empty shape that does not overlap anything
+        shapeX1[i] = shapeY1[i] = Double.POSITIVE_INFINITY;
+        shapeX2[i] = shapeY2[i] = Double.NEGATIVE_INFINITY;
+      } else {
+        shapeX1[i] = mbr.x1; shapeY1[i] = mbr.y1;
+        shapeX2[i] = mbr.x2; shapeY2[i] = mbr.y2;
+      }
+    }
+    
+    // Build the tree bottom up. Level zero contains the leaves.
+    List<double[][]> levelMBRs = new ArrayList<double[][]>();
+    List<int[][]> levelChildren = new ArrayList<int[][]>();
+    double[][] mbrs = {shapeX1, shapeY1, shapeX2, shapeY2};
+    int[][] children = null;
+    int numNodes = 0;
+    while (count > 1 || (count == 1 && levelMBRs.isEmpty())) {
+      strSort(mbrs, children, children == null ? shapes : null, count);
+      int numParents = (count + NodeCapacity - 1) / NodeCapacity;
+      double[][] parentMBRs = new double[4][numParents];
+      int[][] parentChildren = new int[2][numParents];
+      for (int p = 0; p < numParents; p++) {
+        int start = p * NodeCapacity;
+        int end = Math.min(count, start + NodeCapacity);
+        parentChildren[0][p] = start;
+        parentChildren[1][p] = end;
+        double x1 = Double.POSITIVE_INFINITY, y1 = Double.POSITIVE_INFINITY;
+        double x2 = Double.NEGATIVE_INFINITY, y2 = Double.NEGATIVE_INFINITY;
+        for (int c = start; c < end; c++) {
+          x1 = Math.min(x1, mbrs[0][c]);
+          y1 = Math.min(y1, mbrs[1][c]);
+          x2 = Math.max(x2, mbrs[2][c]);
+          y2 = Math.max(y2, mbrs[3][c]);
+        }
+        parentMBRs[0][p] = x1; parentMBRs[1][p] = y1;
+        parentMBRs[2][p] = x2; parentMBRs[3][p] = y2;
+      }
+      levelMBRs.add(parentMBRs);
+      levelChildren.add(parentChildren);
+      mbrs = parentMBRs;
+      children = parentChildren;
+      count = numParents;
+      numNodes += numParents;
+    }
+    
+    // Store all levels top down in the node arrays
+    nodeX1 = new double[numNodes];
+    nodeY1 = new double[numNodes];
+    nodeX2 = new double[numNodes];
+    nodeY2 = new double[numNodes];
+    nodeStart = new int[numNodes];
+    nodeEnd = new int[numNodes];
+    int levelOffset = 0;
+    for (int level = levelMBRs.size() - 1; level >= 0; level--) {
+      mbrs = levelMBRs.get(level);
+      children = levelChildren.get(level);
+      int levelSize = mbrs[0].length;
+      // Children of internal nodes are stored right after this level
+      int childOffset = level == 0 ? 0 : levelOffset + levelSize;
+      System.arraycopy(mbrs[0], 0, nodeX1, levelOffset, levelSize);
+      System.arraycopy(mbrs[1], 0, nodeY1, levelOffset, levelSize);
+      System.arraycopy(mbrs[2], 0, nodeX2, levelOffset, levelSize);
+      System.arraycopy(mbrs[3], 0, nodeY2, levelOffset, levelSize);
+      for (int i = 0; i < levelSize; i++) {
+        nodeStart[levelOffset + i] = children[0][i] + childOffset;
+        nodeEnd[levelOffset + i] = children[1][i] + childOffset;
+      }
+      if (level == 0)
+        firstLeaf = levelOffset;
+      levelOffset += levelSize;
+    }
+  }
+
+  /**
+   * Sorts the given entries using the Sort-Tile-Recursive ordering. Entries
+   * are sorted by the x coordinate of their centers and then each vertical
+   * slice is sorted by the y coordinate so that each consecutive
+   * {@link #NodeCapacity} entries form one node.
+   * @param mbrs - the four coordinates x1, y1, x2, y2 of all entries
+   * @param children - child ranges of the entries or <code>null</code>
+   * @param payload - objects associated with the entries or <code>null</code>
+   * @param count - number of entries
+   */
+  private static void strSort(final double[][] mbrs, final int[][] children,
+      final Object[] payload, int count) {
+    class STRSortable implements IndexedSortable {
+      /**The axis to sort on. 0 for x and 1 for y*/
+      int axis;
+      
+      @Override
+      public int compare(int i, int j) {
+        double ci = mbrs[axis][i] + mbrs[axis + 2][i];
+        double cj = mbrs[axis][j] + mbrs[axis + 2][j];
+        return Double.compare(ci, cj);
+      }
+
+      @Override
+      public void swap(int i, int j) {
+        for (double[] coords : mbrs) {
+          double t = coords[i]; coords[i] = coords[j]; coords[j] = t;
+        }
+        if (children != null) {
+          for (int[] range : children) {
+            int t = range[i]; range[i] = range[j]; range[j] = t;
+          }
+        }
+        if (payload != null) {
+          Object t = payload[i]; payload[i] = payload[j]; payload[j] = t;
+        }
+      }
+    }
+    STRSortable sortable = new STRSortable();
+    IndexedSorter sorter = new QuickSort();
+    int numNodes = (count + NodeCapacity - 1) / NodeCapacity;
+    int numSlices = (int) Math.ceil(Math.sqrt(numNodes));
+    int sliceSize = numSlices * NodeCapacity;
+    sortable.axis = 0;
+    sorter.sort(sortable, 0, count);
+    sortable.axis = 1;
+    for (int start = 0; start < count; start += sliceSize)
+      sorter.sort(sortable, start, Math.min(count, start + sliceSize));
+  }
+
+  /**
+   * Checks whether the two rectangles overlap including their boundaries.
+   * @return
+   */
+  private static boolean overlaps(double ax1, double ay1, double ax2, double ay2,
+      double bx1, double by1, double bx2, double by2) {
+    return ax1 <= bx2 && bx1 <= ax2 && ay1 <= by2 && by1 <= ay2;
   }
 
   @Override
@@ -76,25 +248,118 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
       this.shapes[i] = (S) stockShape.clone();
       this.shapes[i].readFields(in);
     }
+    buildTree();
   }
   
   public int rangeQuery(Shape queryRange, ResultCollector<S> output) {
     int result_count = 0;
-    for (S shape : shapes) {
-      if (shape.isIntersected(queryRange)) {
-        result_count++;
-        if (output != null) {
-          output.collect(shape);
+    Rectangle mbr = queryRange.getMBR();
+    if (mbr == null) {
+      // Cannot prune using the tree. Test all shapes.
+      for (S shape : shapes) {
+        if (shape.isIntersected(queryRange)) {
+          result_count++;
+          if (output != null) {
+            output.collect(shape);
+          }
+        }
+      }
+      return result_count;
+    }
+    if (shapes.length == 0)
+      return 0;
+    IntArray toVisit = new IntArray();
+    toVisit.add(0);
+    while (!toVisit.isEmpty()) {
+      int node = toVisit.pop();
+      if (node < firstLeaf) {
+        for (int child = nodeStart[node]; child < nodeEnd[node]; child++) {
+          if (overlaps(nodeX1[child], nodeY1[child], nodeX2[child], nodeY2[child],
+              mbr.x1, mbr.y1, mbr.x2, mbr.y2))
+            toVisit.add(child);
+        }
+      } else {
+        for (int i = nodeStart[node]; i < nodeEnd[node]; i++) {
+          if (overlaps(shapeX1[i], shapeY1[i], shapeX2[i], shapeY2[i],
+              mbr.x1, mbr.y1, mbr.x2, mbr.y2) &&
+              shapes[i].isIntersected(queryRange)) {
+            result_count++;
+            if (output != null) {
+              output.collect(shapes[i]);
+            }
+          }
         }
       }
     }
     return result_count;
   }
   
+  /**
+   * Joins the shapes of two global indexes by traversing their in-memory
+   * trees synchronously. Only pairs of nodes with overlapping MBRs are
+   * expanded.
+   * @param s1
+   * @param s2
+   * @param output
+   * @return
+   */
   public static<S1 extends Shape, S2 extends Shape>
       int spatialJoin(GlobalIndex<S1> s1, GlobalIndex<S2> s2,
           final ResultCollector2<S1, S2> output) {
-    return SpatialAlgorithms.SpatialJoin_planeSweep(s1.shapes, s2.shapes, output, null);
+    if (s1.shapes.length == 0 || s2.shapes.length == 0)
+      return 0;
+    int count = 0;
+    // Pairs of nodes to visit stored as (node1, node2)
+    IntArray toVisit = new IntArray();
+    toVisit.add(0); toVisit.add(0);
+    while (!toVisit.isEmpty()) {
+      int n2 = toVisit.pop();
+      int n1 = toVisit.pop();
+      boolean leaf1 = n1 >= s1.firstLeaf;
+      boolean leaf2 = n2 >= s2.firstLeaf;
+      if (leaf1 && leaf2) {
+        for (int i = s1.nodeStart[n1]; i < s1.nodeEnd[n1]; i++) {
+          for (int j = s2.nodeStart[n2]; j < s2.nodeEnd[n2]; j++) {
+            if (overlaps(s1.shapeX1[i], s1.shapeY1[i], s1.shapeX2[i], s1.shapeY2[i],
+                s2.shapeX1[j], s2.shapeY1[j], s2.shapeX2[j], s2.shapeY2[j])) {
+              S1 r = s1.shapes[i];
+              S2 s = s2.shapes[j];
+              if (r.isIntersected(s)) {
+                if (output != null)
+                  output.collect(r, s);
+                count++;
+              }
+            }
+          }
+        }
+      } else if (!leaf1 && !leaf2) {
+        for (int c1 = s1.nodeStart[n1]; c1 < s1.nodeEnd[n1]; c1++) {
+          for (int c2 = s2.nodeStart[n2]; c2 < s2.nodeEnd[n2]; c2++) {
+            if (overlaps(s1.nodeX1[c1], s1.nodeY1[c1], s1.nodeX2[c1], s1.nodeY2[c1],
+                s2.nodeX1[c2], s2.nodeY1[c2], s2.nodeX2[c2], s2.nodeY2[c2])) {
+              toVisit.add(c1); toVisit.add(c2);
+            }
+          }
+        }
+      } else if (!leaf1) {
+        // Descend in the first tree only
+        for (int c1 = s1.nodeStart[n1]; c1 < s1.nodeEnd[n1]; c1++) {
+          if (overlaps(s1.nodeX1[c1], s1.nodeY1[c1], s1.nodeX2[c1], s1.nodeY2[c1],
+              s2.nodeX1[n2], s2.nodeY1[n2], s2.nodeX2[n2], s2.nodeY2[n2])) {
+            toVisit.add(c1); toVisit.add(n2);
+          }
+        }
+      } else {
+        // Descend in the second tree only
+        for (int c2 = s2.nodeStart[n2]; c2 < s2.nodeEnd[n2]; c2++) {
+          if (overlaps(s1.nodeX1[n1], s1.nodeY1[n1], s1.nodeX2[n1], s1.nodeY2[n1],
+              s2.nodeX1[c2], s2.nodeY1[c2], s2.nodeX2[c2], s2.nodeY2[c2])) {
+            toVisit.add(n1); toVisit.add(c2);
+          }
+        }
+      }
+    }
+    return count;
   }
   
   /**
@@ -143,91 +408,81 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
    * @return - The MBR of all objects or <code>null</code> if empty
    */
   public Rectangle getMBR() {
-    Iterator<S> i = this.iterator();
-    if (!i.hasNext())
+    if (shapes.length == 0)
       return null;
-    Rectangle globalMBR = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
-        -Double.MAX_VALUE, -Double.MAX_VALUE);
-    while (i.hasNext()) {
-      globalMBR.expand(i.next().getMBR());
+    // The root of the tree covers all objects
+    return new Rectangle(nodeX1[0], nodeY1[0], nodeX2[0], nodeY2[0]);
+  }
+
+  /**
+   * An entry in the priority queue of the k-nearest neighbor query. It is
+   * either a tree node keyed by its minimum distance to the query point or
+   * a shape keyed by its distance to the query point.
+   */
+  private static class NearestEntry implements Comparable<NearestEntry> {
+    double distance;
+    int index;
+    boolean isNode;
+
+    NearestEntry(double distance, int index, boolean isNode) {
+      this.distance = distance;
+      this.index = index;
+      this.isNode = isNode;
+    }
+
+    @Override
+    public int compareTo(NearestEntry other) {
+      return Double.compare(this.distance, other.distance);
     }
-    return globalMBR;
   }
 
+  /**
+   * Minimum distance between a point and a rectangle
+   * @return
+   */
+  private static double minDistance(double qx, double qy, double x1,
+      double y1, double x2, double y2) {
+    double dx = qx < x1 ? x1 - qx : (qx > x2 ? qx - x2 : 0);
+    double dy = qy < y1 ? y1 - qy : (qy > y2 ? qy - y2 : 0);
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * Finds the k shapes nearest to the given point using a best-first
+   * traversal of the in-memory tree. Results are reported in ascending
+   * order of their distance to the query point.
+   * @param qx
+   * @param qy
+   * @param k
+   * @param output
+   * @return
+   */
+  @SuppressWarnings("unchecked")
   public int knn(final double qx, final double qy, int k, ResultCollector2<S, Double> output) {
-    double query_area = (getMBR().getWidth() * getMBR().getHeight()) * k / size();
-    double query_radius = Math.sqrt(query_area / Math.PI);
-
-    boolean result_correct;
-    final Vector<Double> distances = new Vector<Double>();
-    final Vector<S> shapes = new Vector<S>();
-    // Find results in the range and increase this range if needed to ensure
-    // correctness of the answer
-    do {
-      // Initialize result and query range
-      distances.clear(); shapes.clear();
-      Rectangle queryRange = new Rectangle();
-      queryRange.x1 = qx - query_radius / 2;
-      queryRange.y1 = qy - query_radius / 2;
-      queryRange.x2 = qx + query_radius / 2;
-      queryRange.y2 = qy + query_radius / 2;
-      // Retrieve all results in range
-      rangeQuery(queryRange, new ResultCollector<S>() {
-        @Override
-        public void collect(S shape) {
-          distances.add(shape.distanceTo(qx, qy));
-          shapes.add((S) shape.clone());
-        }
-      });
-      if (shapes.size() <= k) {
-        // Didn't find k elements in range, double the range to get more items
-        if (shapes.size() == size() || shapes.size() == k) {
-          // Already returned all possible elements
-          result_correct = true;
-        } else {
-          query_radius *= 2;
-          result_correct = false;
+    if (shapes.length == 0)
+      return 0;
+    PriorityQueue<NearestEntry> queue = new PriorityQueue<NearestEntry>();
+    queue.add(new NearestEntry(0, 0, true));
+    int result_size = 0;
+    while (result_size < k && !queue.isEmpty()) {
+      NearestEntry top = queue.poll();
+      if (!top.isNode) {
+        // No remaining node or shape can be closer than this shape
+        result_size++;
+        if (output != null)
+          output.collect((S) shapes[top.index].clone(), top.distance);
+      } else if (top.index < firstLeaf) {
+        for (int child = nodeStart[top.index]; child < nodeEnd[top.index]; child++) {
+          queue.add(new NearestEntry(minDistance(qx, qy, nodeX1[child],
+              nodeY1[child], nodeX2[child], nodeY2[child]), child, true));
         }
       } else {
-        // Sort items by distance to get the kth neighbor
-        IndexedSortable s = new IndexedSortable() {
-          @Override
-          public void swap(int i, int j) {
-            double temp_distance = distances.elementAt(i);
-            distances.set(i, distances.elementAt(j));
-            distances.set(j, temp_distance);
-            
-            S temp_shape = shapes.elementAt(i);
-            shapes.set(i, shapes.elementAt(j));
-            shapes.set(j, temp_shape);
-          }
-          @Override
-          public int compare(int i, int j) {
-            // Note. Equality is not important to check because items with the
-            // same distance can be ordered anyway. 
-        	if (distances.elementAt(i) == distances.elementAt(j))
-        		return 0;
-            if (distances.elementAt(i) < distances.elementAt(j))
-              return -1;
-            return 1;
-          }
-        };
-        IndexedSorter sorter = new QuickSort();
-        sorter.sort(s, 0, shapes.size());
-        if (distances.elementAt(k - 1) > query_radius) {
-          result_correct = false;
-          query_radius = distances.elementAt(k);
-        } else {
-          result_correct = true;
+        for (int i = nodeStart[top.index]; i < nodeEnd[top.index]; i++) {
+          if (shapeX1[i] > shapeX2[i])
+            continue; // An empty shape
+          queue.add(new NearestEntry(shapes[i].distanceTo(qx, qy), i, false));
         }
       }
-    } while (!result_correct);
-    
-    int result_size = Math.min(k,  shapes.size());
-    if (output != null) {
-      for (int i = 0; i < result_size; i++) {
-        output.collect(shapes.elementAt(i), distances.elementAt(i));
-      }
     }
     return result_size;
   }
@@ -15,7 +15,6 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
-import java.lang.Thread.State;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.util.Map;
 import java.util.Vector;
@@ -85,8 +84,16 @@ public class IndexOutputFormat<S extends Shape>
      * instance of stream so that it can be closed later.
      */
     private Map<Integer, OutputStream> partitionsOutput = new ConcurrentHashMap<Integer, OutputStream>();
-    /**A temporary text to serialize objects to before writing to output file*/
-    private Text tempText = new Text2();
+    /**
+     * A temporary text to serialize objects to before writing to output file.
+     * One text is kept per thread so that many threads can write concurrently.
+     */
+    private ThreadLocal<Text> tempText = new ThreadLocal<Text>() {
+      @Override
+      protected Text initialValue() {
+        return new Text2();
+      }
+    };
     /**A list of all threads that are closing partitions in the background*/
     private Vector<Thread> closingThreads = new Vector<Thread>();
     /**The master file contains information about all written partitions*/
@@ -96,7 +103,7 @@ public class IndexOutputFormat<S extends Shape>
     /**Whether records are replicated in the index or distributed*/
     private boolean replicated;
     /**Type of shapes written to the output. Needed to build local indexes*/
-    private S shape;
+    private volatile S shape;
     /**Local indexer used to index each partition (optional)*/
     private LocalIndexer localIndexer;
 
@@ -153,6 +160,12 @@ public class IndexOutputFormat<S extends Shape>
       this.masterFile = outFS.create(masterFilePath);
     }
     
+    /**
+     * Writes a shape to the given partition. Objects can be written to
+     * different partitions from multiple threads concurrently. The shape is
+     * serialized outside any lock and only writing its bytes to the partition
+     * file is synchronized on that partition.
+     */
     @Override
     public void write(IntWritable partitionID, S value) throws IOException {
       int id = partitionID.get();
@@ -162,18 +175,25 @@ public class IndexOutputFormat<S extends Shape>
         this.closePartition(partitionToClose);
       } else {
         // An actual object that we need to write
-        OutputStream output = getOrCreateDataOutput(id);
-        tempText.clear();
-        value.toText(tempText);
-        byte[] bytes = tempText.getBytes();
-        output.write(bytes, 0, tempText.getLength());
-        output.write(NEW_LINE);
-        Partition partition = partitionsInfo.get(id);
-        partition.recordCount++;
-        partition.size += tempText.getLength() + NEW_LINE.length;
-        partition.expand(value);
-        if (shape == null)
-          shape = (S) value.clone();
+        Text text = tempText.get();
+        text.clear();
+        value.toText(text);
+        byte[] bytes = text.getBytes();
+        Partition partition = getOrCreatePartition(id);
+        synchronized (partition) {
+          OutputStream output = partitionsOutput.get(id);
+          output.write(bytes, 0, text.getLength());
+          output.write(NEW_LINE);
+          partition.recordCount++;
+          partition.size += text.getLength() + NEW_LINE.length;
+          partition.expand(value);
+        }
+        if (shape == null) {
+          synchronized (this) {
+            if (shape == null)
+              shape = (S) value.clone();
+          }
+        }
       }
     }
 
@@ -268,57 +288,66 @@ public class IndexOutputFormat<S extends Shape>
       tempFiles.remove(id);
 
       if (closingThreads.size() < MaxClosingThreads) {
-        // Start the thread in the background and make sure it started before
-        // adding it to the list of threads to avoid an exception when other
-        // thread tries to start it after it is in the queue
-        closeThread.start();
-        try {
-          while (closeThread.getState() == State.NEW) {
-            Thread.sleep(1000);
-            LOG.info("Waiting for thread #"+closeThread.getId()+" to start");
-          }
-        } catch (InterruptedException e) {}
+        // Add the thread to the list before starting it so that it can always
+        // remove itself when done. Hold its lock so that other threads do not
+        // try to start it after it is in the queue
+        synchronized (closeThread) {
+          closingThreads.add(closeThread);
+          closeThread.start();
+        }
+      } else {
+        closingThreads.add(closeThread);
       }
-      closingThreads.add(closeThread);
     }
 
     /**
-     * Returns a DataOutput for the given partition. If a file is already open
-     * for that partition, the corresponding DataOutput is returned. Otherwise,
-     * a new file is created for that partition and the corresponding DataOutput
-     * is returned.
+     * Returns the information of the given partition. If a file is already open
+     * for that partition, its information is returned. Otherwise,
+     * a new file is created for that partition and its information
+     * is returned. The output stream of the partition is stored in
+     * {@link #partitionsOutput} before the partition information is published.
      * 
      * @param id - the ID of the partition
      * @return
      * @throws IOException 
      */
-    private OutputStream getOrCreateDataOutput(int id) throws IOException {
-      OutputStream out = partitionsOutput.get(id);
-      if (out == null) {
-        // First time to write in this partition. Store its information
-        Partition partition = new Partition();
+    private Partition getOrCreatePartition(int id) throws IOException {
+      Partition partition = partitionsInfo.get(id);
+      if (partition == null)
+        partition = createPartition(id);
+      return partition;
+    }
 
-        if (localIndexer == null) {
-          // No local index needed. Write to the final file directly
-          Path path = getPartitionFile(id);
-          out = outFS.create(path);
-          partition.filename = path.getName();
-        } else {
-          // Write to a temporary file that will later get indexed
-          File tempFile = File.createTempFile(String.format("part-%05d", id), "lindex");
-          out = new BufferedOutputStream(new FileOutputStream(tempFile));
-          tempFiles.put(id, tempFile);
-        }
-        partition.cellId = id;
-        // Set the rectangle to the opposite universe so that we can keep
-        // expanding it to get the MBR of this partition
-        partition.set(Double.MAX_VALUE, Double.MAX_VALUE,
-            -Double.MAX_VALUE, -Double.MAX_VALUE);
-        // Store in the hashtables for further user
-        partitionsOutput.put(id,  out);
-        partitionsInfo.put(id, partition);
+    private synchronized Partition createPartition(int id) throws IOException {
+      Partition existing = partitionsInfo.get(id);
+      if (existing != null) {
+        // Created by another thread while this thread was waiting for the lock
+        return existing;
+      }
+      // First time to write in this partition. Store its information
+      Partition partition = new Partition();
+      OutputStream out;
+
+      if (localIndexer == null) {
+        // No local index needed. Write to the final file directly
+        Path path = getPartitionFile(id);
+        out = outFS.create(path);
+        partition.filename = path.getName();
+      } else {
+        // Write to a temporary file that will later get indexed
+        File tempFile = File.createTempFile(String.format("part-%05d", id), "lindex");
+        out = new BufferedOutputStream(new FileOutputStream(tempFile));
+        tempFiles.put(id, tempFile);
       }
-      return out;
+      partition.cellId = id;
+      // Set the rectangle to the opposite universe so that we can keep
+      // expanding it to get the MBR of this partition
+      partition.set(Double.MAX_VALUE, Double.MAX_VALUE,
+          -Double.MAX_VALUE, -Double.MAX_VALUE);
+      // Store in the hashtables for further user
+      partitionsOutput.put(id,  out);
+      partitionsInfo.put(id, partition);
+      return partition;
     }
 
     /**
@@ -52,6 +52,8 @@ import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.operations.FileMBR;
 import edu.umn.cs.spatialHadoop.operations.Sampler;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 /**
  * @author Ahmed Eldawy
@@ -344,7 +346,7 @@ public class Indexer {
     
     // Copy splits to a final array to be used in parallel
     final FileSplit[] fsplits = splits.toArray(new FileSplit[splits.size()]);
-    boolean replicate = PartitionerReplicate.get(sindex);
+    final boolean replicate = PartitionerReplicate.get(sindex);
     
     // Set input file MBR if not already set
     Rectangle inputMBR = (Rectangle) OperationsParams.getShape(conf, "mbr");
@@ -358,48 +360,67 @@ public class Indexer {
 
     final IndexRecordWriter<Shape> recordWriter = new IndexRecordWriter<Shape>(
         partitioner, replicate, sindex, outPath, conf);
-    for (FileSplit fsplit : fsplits) {
-      RecordReader<Rectangle, Iterable<Shape>> reader = inputFormat.createRecordReader(fsplit, null);
-      if (reader instanceof SpatialRecordReader3) {
-        ((SpatialRecordReader3)reader).initialize(fsplit, conf);
-      } else if (reader instanceof RTreeRecordReader3) {
-        ((RTreeRecordReader3)reader).initialize(fsplit, conf);
-      } else if (reader instanceof HDFRecordReader) {
-        ((HDFRecordReader)reader).initialize(fsplit, conf);
-      } else {
-        throw new RuntimeException("Unknown record reader");
+    // Parse splits and assign their records to partitions in parallel. All
+    // threads write to the same record writer which is thread-safe.
+    int parallelism = params.getInt("parallel", Runtime.getRuntime().availableProcessors());
+    Parallel.forEach(fsplits.length, new RunnableRange<Object>() {
+      @Override
+      public Object run(int i1, int i2) {
+        try {
+          for (int i = i1; i < i2; i++) {
+            indexSplit(fsplits[i]);
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return null;
       }
 
-      final IntWritable partitionID = new IntWritable();
+      private void indexSplit(FileSplit fsplit) throws IOException, InterruptedException {
+        RecordReader<Rectangle, Iterable<Shape>> reader = inputFormat.createRecordReader(fsplit, null);
+        if (reader instanceof SpatialRecordReader3) {
+          ((SpatialRecordReader3)reader).initialize(fsplit, conf);
+        } else if (reader instanceof RTreeRecordReader3) {
+          ((RTreeRecordReader3)reader).initialize(fsplit, conf);
+        } else if (reader instanceof HDFRecordReader) {
+          ((HDFRecordReader)reader).initialize(fsplit, conf);
+        } else {
+          throw new RuntimeException("Unknown record reader");
+        }
 
-      while (reader.nextKeyValue()) {
-        Iterable<Shape> shapes = reader.getCurrentValue();
-        if (replicate) {
-          for (final Shape s : shapes) {
-            partitioner.overlapPartitions(s, new ResultCollector<Integer>() {
-              @Override
-              public void collect(Integer id) {
-                partitionID.set(id);
-                try {
-                  recordWriter.write(partitionID, s);
-                } catch (IOException e) {
-                  throw new RuntimeException(e);
+        final IntWritable partitionID = new IntWritable();
+
+        while (reader.nextKeyValue()) {
+          Iterable<Shape> shapes = reader.getCurrentValue();
+          if (replicate) {
+            for (final Shape s : shapes) {
+              partitioner.overlapPartitions(s, new ResultCollector<Integer>() {
+                @Override
+                public void collect(Integer id) {
+                  partitionID.set(id);
+                  try {
+                    recordWriter.write(partitionID, s);
+                  } catch (IOException e) {
+                    throw new RuntimeException(e);
+                  }
                 }
+              });
+            }
+          } else {
+            for (final Shape s : shapes) {
+              int pid = partitioner.overlapPartition(s);
+              if (pid != -1) {
+                partitionID.set(pid);
+                recordWriter.write(partitionID, s);
               }
-            });
-          }
-        } else {
-          for (final Shape s : shapes) {
-            int pid = partitioner.overlapPartition(s);
-            if (pid != -1) {
-              partitionID.set(pid);
-              recordWriter.write(partitionID, s);
             }
           }
         }
+        reader.close();
       }
-      reader.close();
-    }
+    }, parallelism);
     recordWriter.close(null);
     
     // Write the WKT formatted master file
@@ -17,13 +17,12 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Map;
-import java.util.PriorityQueue;
 import java.util.Queue;
-import java.util.Stack;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -52,9 +51,12 @@ import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
+import edu.umn.cs.spatialHadoop.io.MappedInputStream;
 import edu.umn.cs.spatialHadoop.io.MemoryInputStream;
 import edu.umn.cs.spatialHadoop.io.Text2;
 import edu.umn.cs.spatialHadoop.io.TextSerializable;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+import edu.umn.cs.spatialHadoop.util.LongMinHeap;
 
 /**
  * A disk-based R-tree that can be loaded using a bulk loading method and
@@ -77,6 +79,22 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   /**Size of a node. Offset of first child + dimensions (x, y, width, height)*/
   public static final int NodeSize = 4 + 8 * 4;
 
+  /**
+   * Size of the key of one record in the binary leaf layout.
+   * Record MBR (x1, y1, x2, y2) + offset of the record text
+   */
+  public static final int KeySize = 8 * 4 + 4;
+
+  /**Leaf layout where records are stored as newline-delimited text only*/
+  public static final int LEAF_LAYOUT_TEXT = 0;
+
+  /**
+   * Leaf layout where the MBRs of all records are packed in a binary key
+   * section followed by the text of the records. Queries test the packed MBRs
+   * and only parse the records that pass the test.
+   */
+  public static final int LEAF_LAYOUT_BINARY = 1;
+
   /** An instance of T that can be used to deserialize objects from disk */
   T stockObject;
   
@@ -97,10 +115,25 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   
   /**Number of elements in the tree*/
   private int elementCount;
+
+  /**Layout of the data in leaf nodes, either text or binary*/
+  private int leafLayout;
+
+  /**
+   * Offset of the first byte after the tree structure. In the binary layout,
+   * this is where the record keys start.
+   */
+  private int dataStart;
   
   /**Input stream to tree data*/
   private FSDataInputStream data;
 
+  /**
+   * The contents of the data stream when it is memory mapped. Positions in
+   * this buffer are the same as positions in {@link #data}.
+   */
+  private ByteBuffer mappedData;
+
   /**The start offset of the tree in the data stream*/
   private long treeStartOffset;
   
@@ -114,6 +147,12 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   /**A cached copy of data offset for each node.*/
   private int[] dataOffset;
 
+  /**
+   * IDs of the children of each internal node sorted by the x1 coordinate of
+   * their MBRs. Computed lazily as needed by the plane-sweep spatial join.
+   */
+  private int[][] sortedChildren;
+
   public RTree() {
   }
   
@@ -144,6 +183,22 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   public static void bulkLoadWrite(final byte[] element_bytes,
       final int offset, final int len, final int degree, DataOutput dataOut,
       final Shape stockObject, final boolean fast_sort) {
+    bulkLoadWrite(element_bytes, offset, len, degree, dataOut, stockObject,
+        fast_sort, LEAF_LAYOUT_TEXT);
+  }
+
+  /**
+   * Builds the RTree given a serialized list of elements and writes it to
+   * the given output using the given leaf layout.
+   * @see #bulkLoadWrite(byte[], int, int, int, DataOutput, Shape, boolean)
+   * @param leafLayout
+   *          - either {@link #LEAF_LAYOUT_TEXT} or {@link #LEAF_LAYOUT_BINARY}.
+   *          The binary layout adds {@link #KeySize} bytes per record but
+   *          allows queries to skip parsing records that do not match.
+   */
+  public static void bulkLoadWrite(final byte[] element_bytes,
+      final int offset, final int len, final int degree, DataOutput dataOut,
+      final Shape stockObject, final boolean fast_sort, int leafLayout) {
     try {
 
       int elementCount = 0;
@@ -399,7 +454,10 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           }
         }, null, TreeHeaderSize + nodes.size() * NodeSize);
         for (int i_leaf = nonLeafNodeCount, i=0; i_leaf < nodes.size(); i_leaf++) {
-          nodes.elementAt(i_leaf).offsetOfFirstElement = (int)fakeOut.getPos();
+          // In the binary layout, leaves point to the index of the first
+          // record key rather than the offset of the first record
+          nodes.elementAt(i_leaf).offsetOfFirstElement =
+              leafLayout == LEAF_LAYOUT_BINARY ? i : (int)fakeOut.getPos();
           if (i != nodes.elementAt(i_leaf).index1) throw new RuntimeException();
           double x1, y1, x2, y2;
           
@@ -465,17 +523,35 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       // Start writing the tree
       // write tree header (including size)
       // Total tree size. (== Total bytes written - 8 bytes for the size itself)
-      dataOut.writeInt(TreeHeaderSize + NodeSize * nodeCount + len);
+      int dataStart = TreeHeaderSize + NodeSize * nodeCount;
+      int keysSize = leafLayout == LEAF_LAYOUT_BINARY ? KeySize * elementCount : 0;
+      dataOut.writeInt(dataStart + keysSize + len);
       // Tree height
       dataOut.writeInt(height);
-      // Degree
-      dataOut.writeInt(degree);
+      // Degree. The leaf layout is stored in the most significant byte
+      dataOut.writeInt(degree | (leafLayout << 24));
       dataOut.writeInt(elementCount);
       
       // write nodes
       for (SplitStruct node : nodes) {
         node.write(dataOut);
       }
+      if (leafLayout == LEAF_LAYOUT_BINARY) {
+        // write the key (MBR + record offset) of each element
+        int recordOffset = dataStart + keysSize;
+        for (int element_i = 0; element_i < elementCount; element_i++) {
+          int eol = skipToEOL(element_bytes, offsets[element_i]);
+          line.set(element_bytes, offsets[element_i], eol - offsets[element_i] - 1);
+          stockObject.fromText(line);
+          Rectangle mbr = stockObject.getMBR();
+          dataOut.writeDouble(mbr.x1);
+          dataOut.writeDouble(mbr.y1);
+          dataOut.writeDouble(mbr.x2);
+          dataOut.writeDouble(mbr.y2);
+          dataOut.writeInt(recordOffset);
+          recordOffset += eol - offsets[element_i];
+        }
+      }
       // write elements
       for (int element_i = 0; element_i < elementCount; element_i++) {
         int eol = skipToEOL(element_bytes, offsets[element_i]);
@@ -513,6 +589,8 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     if (height == 0)
       return;
     degree = in.readInt();
+    leafLayout = degree >>> 24;
+    degree &= 0xFFFFFF;
     elementCount = in.readInt();
     
     // Keep only tree structure in memory
@@ -525,16 +603,22 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       this.nodes[node_id] = new Rectangle();
       this.nodes[node_id].readFields(in);
     }
-    this.dataOffset[nodeCount] = treeSize;
+    // In the binary layout, data offsets are indexes of record keys
+    this.dataOffset[nodeCount] =
+        leafLayout == LEAF_LAYOUT_BINARY ? elementCount : treeSize;
+    this.dataStart = TreeHeaderSize + NodeSize * nodeCount;
 
     if (in instanceof FSDataInputStream) {
       // A random input stream, can keep the data on disk
       this.data = (FSDataInputStream) in;
+      InputStream wrapped = this.data.getWrappedStream();
+      if (wrapped instanceof MappedInputStream)
+        this.mappedData = ((MappedInputStream) wrapped).getBuffer();
     } else {
       // A sequential input stream, need to read all data now
-      int treeDataSize = this.dataOffset[nodeCount] - this.dataOffset[0];
+      int treeDataSize = this.treeSize - this.dataStart;
       // Adjust the offset of data to be zero
-      this.treeStartOffset = -this.dataOffset[0];
+      this.treeStartOffset = -this.dataStart;
       byte[] treeData = new byte[treeDataSize];
       in.readFully(treeData, 0, treeDataSize);
       this.data = new FSDataInputStream(new MemoryInputStream(treeData));
@@ -562,10 +646,15 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       return skippedBytes;
     }
     int degree = dataIn.readInt(); skippedBytes += 4;
+    int leafLayout = degree >>> 24;
+    degree &= 0xFFFFFF;
     int nodeCount = (int) ((powInt(degree, height) - 1) / (degree - 1));
-    /*int elementCount = */dataIn.readInt(); skippedBytes += 4;
-    // Skip all nodes
-    dataIn.skipBytes(nodeCount * NodeSize); skippedBytes += nodeCount * NodeSize;
+    int elementCount = dataIn.readInt(); skippedBytes += 4;
+    // Skip all nodes (and record keys) to reach the text of the records
+    int structureSize = nodeCount * NodeSize;
+    if (leafLayout == LEAF_LAYOUT_BINARY)
+      structureSize += elementCount * KeySize;
+    dataIn.skipBytes(structureSize); skippedBytes += structureSize;
     return skippedBytes;
   }
   
@@ -587,10 +676,14 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       return header_size;
     }
     int degree = in.readInt(); header_size += 4;
+    int leafLayout = degree >>> 24;
+    degree &= 0xFFFFFF;
     int nodeCount = (int) ((Math.pow(degree, height) - 1) / (degree - 1));
-    /*int elementCount = */in.readInt(); header_size += 4;
-    // Add the size of all nodes
+    int elementCount = in.readInt(); header_size += 4;
+    // Add the size of all nodes (and record keys)
     header_size += nodeCount * NodeSize;
+    if (leafLayout == LEAF_LAYOUT_BINARY)
+      header_size += elementCount * KeySize;
     return header_size;
   }
   
@@ -732,14 +825,16 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     T _stockObject;
     
     /**A reader to read lines from the tree*/
-    LineReader reader;
+    RecordLineReader reader;
     
     RTreeIterator() throws IOException {
-      offset = TreeHeaderSize + NodeSize * RTree.this.nodeCount;
+      offset = RTree.this.dataStart;
+      if (RTree.this.leafLayout == LEAF_LAYOUT_BINARY)
+        offset += KeySize * RTree.this.elementCount;
       _stockObject = (T) RTree.this.stockObject.clone();
       line = new Text();
-      RTree.this.data.seek(offset + RTree.this.treeStartOffset);
-      reader = new LineReader(RTree.this.data);
+      reader = new RecordLineReader();
+      reader.seek(offset);
     }
 
     @Override
@@ -767,6 +862,165 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     }
   }
   
+  /**
+   * Reads the text lines of records stored in the tree. If the tree data is
+   * memory mapped, lines are copied directly from the mapped buffer.
+   * Otherwise, a {@link LineReader} is created over the data stream each
+   * time the reader is positioned.
+   */
+  class RecordLineReader {
+    /**A view of the mapped data with its own position*/
+    private ByteBuffer mapped;
+    
+    /**Reads lines from the data stream when it is not mapped*/
+    private LineReader lineReader;
+    
+    /**Holds the bytes of one line read from the mapped data*/
+    private byte[] lineBytes;
+    
+    RecordLineReader() {
+      if (RTree.this.mappedData != null) {
+        this.mapped = RTree.this.mappedData.duplicate();
+        this.lineBytes = new byte[1024];
+      }
+    }
+    
+    /**
+     * Positions the reader at the given offset in the tree
+     * @param offset - offset relative to the tree start
+     * @throws IOException
+     */
+    void seek(int offset) throws IOException {
+      long pos = offset + RTree.this.treeStartOffset;
+      if (mapped != null) {
+        mapped.position((int) pos);
+      } else {
+        RTree.this.data.seek(pos);
+        // Should not close the line reader because we do not want to close
+        // the underlying data stream now. In case future searches are done
+        lineReader = new LineReader(RTree.this.data);
+      }
+    }
+    
+    /**
+     * Reads the next line without its end of line characters.
+     * @param line
+     * @return - number of bytes consumed including the end of line
+     * @throws IOException
+     */
+    int readLine(Text line) throws IOException {
+      if (mapped == null)
+        return lineReader.readLine(line);
+      int start = mapped.position();
+      int limit = mapped.limit();
+      int eol = start;
+      byte b;
+      while (eol < limit && (b = mapped.get(eol)) != '\n' && b != '\r')
+        eol++;
+      int lineLength = eol - start;
+      if (lineBytes.length < lineLength)
+        lineBytes = new byte[Math.max(lineLength, lineBytes.length * 2)];
+      mapped.get(lineBytes, 0, lineLength);
+      line.set(lineBytes, 0, lineLength);
+      // Skip the end of line (LF, CR, or CRLF)
+      int next = eol;
+      if (next < limit && mapped.get(next) == '\r')
+        next++;
+      if (next < limit && mapped.get(next) == '\n')
+        next++;
+      mapped.position(next);
+      return next - start;
+    }
+  }
+  
+  /**
+   * Reads the packed keys of one leaf node stored in the binary layout and
+   * locates the text of the records whose MBRs overlap a filter rectangle.
+   * Only the text of these candidate records is read from the data stream.
+   */
+  class LeafKeysReader {
+    /**Raw bytes of the keys of the current leaf (and the key after it)*/
+    private byte[] keyBytes = new byte[0];
+    
+    /**Raw text of the records spanning all candidates of the current leaf*/
+    private byte[] recordBytes = new byte[0];
+    
+    /**Offset of the first byte in recordBytes relative to the tree start*/
+    private int recordBytesOffset;
+    
+    /**Start and end offsets of each candidate record relative to tree start*/
+    private int[] candidateStart = new int[0], candidateEnd = new int[0];
+    
+    /**
+     * Reads the keys of the given leaf node and the text of all records that
+     * overlap the given filter rectangle.
+     * @param nodeID - the ID of a leaf node
+     * @param filter - records with MBRs disjoint with this rectangle are
+     *   skipped. If <code>null</code>, all records are retrieved.
+     * @return - number of candidate records found
+     * @throws IOException
+     */
+    int load(int nodeID, Rectangle filter) throws IOException {
+      int firstRecord = RTree.this.dataOffset[nodeID];
+      int lastRecord = RTree.this.dataOffset[nodeID + 1];
+      int numKeys = lastRecord - firstRecord;
+      // Read one more key (when available) to know where the last record ends
+      int keysToRead = lastRecord < RTree.this.elementCount ? numKeys + 1 : numKeys;
+      if (keyBytes.length < keysToRead * KeySize)
+        keyBytes = new byte[keysToRead * KeySize];
+      if (candidateStart.length < numKeys) {
+        candidateStart = new int[numKeys];
+        candidateEnd = new int[numKeys];
+      }
+      RTree.this.data.seek(RTree.this.treeStartOffset + RTree.this.dataStart +
+          (long)firstRecord * KeySize);
+      RTree.this.data.readFully(keyBytes, 0, keysToRead * KeySize);
+      ByteBuffer keys = ByteBuffer.wrap(keyBytes, 0, keysToRead * KeySize);
+      
+      int numCandidates = 0;
+      for (int i = 0; i < numKeys; i++) {
+        int keyPos = i * KeySize;
+        if (filter != null) {
+          double x1 = keys.getDouble(keyPos);
+          double y1 = keys.getDouble(keyPos + 8);
+          double x2 = keys.getDouble(keyPos + 16);
+          double y2 = keys.getDouble(keyPos + 24);
+          if (!(filter.x2 > x1 && x2 > filter.x1 && filter.y2 > y1 && y2 > filter.y1))
+            continue;
+        }
+        candidateStart[numCandidates] = keys.getInt(keyPos + 32);
+        candidateEnd[numCandidates] = i + 1 < keysToRead ?
+            keys.getInt(keyPos + KeySize + 32) : RTree.this.treeSize;
+        numCandidates++;
+      }
+      
+      if (numCandidates > 0) {
+        // Read the text of all candidates in one shot
+        recordBytesOffset = candidateStart[0];
+        int recordBytesLength = candidateEnd[numCandidates - 1] - recordBytesOffset;
+        if (recordBytes.length < recordBytesLength)
+          recordBytes = new byte[recordBytesLength];
+        RTree.this.data.seek(RTree.this.treeStartOffset + recordBytesOffset);
+        RTree.this.data.readFully(recordBytes, 0, recordBytesLength);
+      }
+      return numCandidates;
+    }
+    
+    /**
+     * Sets the given text to the record of the given candidate without the
+     * trailing end of line characters.
+     * @param i - the index of the candidate record
+     * @param line - the text to set
+     */
+    void getCandidate(int i, Text line) {
+      int start = candidateStart[i] - recordBytesOffset;
+      int end = candidateEnd[i] - recordBytesOffset;
+      while (end > start && (recordBytes[end - 1] == '\n' || recordBytes[end - 1] == '\r'))
+        end--;
+      line.set(recordBytes, start, end - start);
+    }
+  }
+  
   /**
    * Skip bytes until the end of line
    * @param bytes
@@ -836,15 +1090,20 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     if (height == 0)
       return 0;
 
-    Stack<Integer> toBeSearched = new Stack<Integer>();
+    IntArray toBeSearched = new IntArray();
     // Start from the given node
-    toBeSearched.push(start);
+    toBeSearched.add(start);
     if (start >= nodeCount) {
-      toBeSearched.push(end);
+      toBeSearched.add(end);
     }
 
     // Holds one data line from tree data
     Text line = new Text2();
+    // Reads record keys of leaf nodes in the binary layout
+    LeafKeysReader leafReader =
+        leafLayout == LEAF_LAYOUT_BINARY ? new LeafKeysReader() : null;
+    // Reads records of leaf nodes in the text layout
+    RecordLineReader lineReader = null;
     
     while (!toBeSearched.isEmpty()) {
       int searchNumber = toBeSearched.pop();
@@ -854,7 +1113,19 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         int nodeID = searchNumber;
         if (query_mbr.isIntersected(nodes[nodeID])) {
           boolean is_leaf = nodeID >= nonLeafNodeCount;
-          if (is_leaf) {
+          if (is_leaf && leafReader != null) {
+            // Parse only the objects with MBRs overlapping the query
+            int numCandidates = leafReader.load(nodeID, query_mbr);
+            for (int i = 0; i < numCandidates; i++) {
+              leafReader.getCandidate(i, line);
+              stockObject.fromText(line);
+              if (stockObject.isIntersected(query_shape)) {
+                resultSize++;
+                if (output != null)
+                  output.collect(stockObject);
+              }
+            }
+          } else if (is_leaf) {
             // Check all objects under this node
             int start_offset = this.dataOffset[nodeID];
             int end_offset = this.dataOffset[nodeID + 1];
@@ -873,11 +1144,9 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         int end_offset = searchNumber;
         int start_offset = toBeSearched.pop();
         // All data offsets are relative to tree start (typically 4)
-        this.data.seek(start_offset + this.treeStartOffset);
-        // Should not close the line reader because we do not want to close
-        // the underlying data stream now. In case future searches are done
-        @SuppressWarnings("resource")
-        LineReader lineReader = new LineReader(data);
+        if (lineReader == null)
+          lineReader = new RecordLineReader();
+        lineReader.seek(start_offset);
         while (start_offset < end_offset) {
           start_offset += lineReader.readLine(line);
           stockObject.fromText(line);
@@ -911,7 +1180,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     private Shape queryShape;
     
     /**Nodes or parts of the file to be searched*/
-    private Stack<Integer> toBeSearched = new Stack<Integer>();
+    private IntArray toBeSearched = new IntArray();
     
     /**Used to deserialize node information*/
     private Rectangle nodeMBR = new Rectangle();
@@ -923,15 +1192,23 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     private int firstOffset, lastOffset;
     
     /**If searching within a node, lineReader points to result items*/
-    LineReader lineReader;
+    RecordLineReader lineReader;
+    
+    /**Reads record keys of leaf nodes in the binary layout*/
+    private LeafKeysReader leafReader;
+    
+    /**Next candidate to check and number of candidates in the current leaf*/
+    private int nextCandidate, numCandidates;
 
 
     public SearchIterator(Shape queryShape) {
       this.queryShape = queryShape;
       this.queryMBR = queryShape.getMBR();
-      toBeSearched.push(0); // Start from the root
+      toBeSearched.add(0); // Start from the root
       this.resultShape = (T) stockObject.clone();
       this.nextResultShape = (T) stockObject.clone();
+      if (leafLayout == LEAF_LAYOUT_BINARY)
+        this.leafReader = new LeafKeysReader();
       prepareNextResult();
     }
     
@@ -973,6 +1250,9 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
             return;
           }
         }
+        // Case 1b: Searching within the candidates of a binary leaf node
+        if (searchCandidates())
+          return;
         // Case 2: Searching in nodes
         while (!toBeSearched.isEmpty()) {
           int searchNumber = toBeSearched.pop();
@@ -982,7 +1262,13 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
             int nodeID = searchNumber;
             if (queryMBR.isIntersected(nodes[nodeID])) {
               boolean is_leaf = nodeID >= nonLeafNodeCount;
-              if (is_leaf) {
+              if (is_leaf && leafReader != null) {
+                // Check only objects with MBRs overlapping the query
+                numCandidates = leafReader.load(nodeID, queryMBR);
+                nextCandidate = 0;
+                if (searchCandidates())
+                  return;
+              } else if (is_leaf) {
                 // Check all objects under this node
                 int start_offset = RTree.this.dataOffset[nodeID];
                 int end_offset = RTree.this.dataOffset[nodeID + 1];
@@ -994,23 +1280,24 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
                   toBeSearched.add(nodeID * RTree.this.degree + iChild + 1);
                 }
               }
-            } else {
-              // searchNumber is the end offset of data search. Start offset is next
-              // in stack
-              lastOffset = searchNumber;
-              firstOffset = toBeSearched.pop();
-
-              data.seek(firstOffset + treeStartOffset);
-              lineReader = new LineReader(data);
-              while (firstOffset < lastOffset) {
-                firstOffset += lineReader.readLine(line);
-                nextResultShape.fromText(line);
-                if (nextResultShape.isIntersected(queryShape)) {
-                  return;
-                }
+            }
+          } else {
+            // searchNumber is the end offset of data search. Start offset is next
+            // in stack
+            lastOffset = searchNumber;
+            firstOffset = toBeSearched.pop();
+
+            if (lineReader == null)
+              lineReader = new RecordLineReader();
+            lineReader.seek(firstOffset);
+            while (firstOffset < lastOffset) {
+              firstOffset += lineReader.readLine(line);
+              nextResultShape.fromText(line);
+              if (nextResultShape.isIntersected(queryShape)) {
+                return;
               }
             }
-          }          
+          }
         }
         // No more results in the tree
         nextResultShape = null;
@@ -1021,6 +1308,20 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       }
     }
     
+    /**
+     * Checks the remaining candidates of the current binary leaf node.
+     * @return - <code>true</code> if a result was found and stored in
+     *   nextResultShape.
+     */
+    private boolean searchCandidates() {
+      while (nextCandidate < numCandidates) {
+        leafReader.getCandidate(nextCandidate++, line);
+        nextResultShape.fromText(line);
+        if (nextResultShape.isIntersected(queryShape))
+          return true;
+      }
+      return false;
+    }
   }
   
   /**
@@ -1186,6 +1487,39 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     }
   }
 
+  /**
+   * Returns the IDs of the children of the given internal node sorted by the
+   * x1 coordinate of their MBRs. The sorted order is computed once per node
+   * and cached for subsequent calls.
+   * @param nodeID
+   * @return
+   */
+  private int[] getChildrenSortedByX(int nodeID) {
+    if (sortedChildren == null)
+      sortedChildren = new int[nonLeafNodeCount][];
+    int[] children = sortedChildren[nodeID];
+    if (children == null) {
+      final int[] sorted = new int[degree];
+      for (int i = 0; i < degree; i++)
+        sorted[i] = nodeID * degree + i + 1;
+      new QuickSort().sort(new IndexedSortable() {
+        @Override
+        public int compare(int i, int j) {
+          return Double.compare(nodes[sorted[i]].x1, nodes[sorted[j]].x1);
+        }
+
+        @Override
+        public void swap(int i, int j) {
+          int t = sorted[i];
+          sorted[i] = sorted[j];
+          sorted[j] = t;
+        }
+      }, 0, degree);
+      children = sortedChildren[nodeID] = sorted;
+    }
+    return children;
+  }
+
   /**
    * Performs a spatial join between records in two R-trees
    * @param R
@@ -1205,10 +1539,10 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       final ResultCollector2<S1, S2> output,
       final Reporter reporter)
       throws IOException {
-    PriorityQueue<Long> nodesToJoin = new PriorityQueue<Long>(R.nodeCount+S.nodeCount);
+    LongMinHeap nodesToJoin = new LongMinHeap(R.nodeCount+S.nodeCount);
     
     // Start with the two roots
-    nodesToJoin.add(0L);
+    nodesToJoin.push(0L);
 
     // Caches to keep the retrieved data records. Helpful when it reaches the
     // leaves and starts to read objects from the two trees
@@ -1221,13 +1555,30 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     
     int result_count = 0;
 
-    LineReader r_lr = null, s_lr = null;
+    RTree<S1>.RecordLineReader r_lr = R.new RecordLineReader();
+    RTree<S2>.RecordLineReader s_lr = S.new RecordLineReader();
+    boolean s_lr_positioned = false;
     // Last offset read from r and s
     int r_last_offset = 0;
     int s_last_offset = 0;
     
-    while (nodesToJoin.size() > 0) {
-      long nodes_to_join = nodesToJoin.remove();
+    // Leaf nodes stored in the binary layout are filtered using record keys
+    // and are not cached as the parsed records depend on the other node
+    RTree<S1>.LeafKeysReader r_leaf_reader = null;
+    Shape[] r_binary_records = null;
+    if (R.leafLayout == LEAF_LAYOUT_BINARY) {
+      r_leaf_reader = R.new LeafKeysReader();
+      r_binary_records = new Shape[R.degree * 2];
+    }
+    RTree<S2>.LeafKeysReader s_leaf_reader = null;
+    Shape[] s_binary_records = null;
+    if (S.leafLayout == LEAF_LAYOUT_BINARY) {
+      s_leaf_reader = S.new LeafKeysReader();
+      s_binary_records = new Shape[S.degree * 2];
+    }
+    
+    while (!nodesToJoin.isEmpty()) {
+      long nodes_to_join = nodesToJoin.pop();
       int r_node = (int) (nodes_to_join >>> 32);
       int s_node = (int) (nodes_to_join & 0xFFFFFFFF);
       
@@ -1239,15 +1590,33 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       
       if (!r_leaf && !s_leaf) {
         // Both are internal nodes, read child nodes under them
-        // Find overlaps using a simple cross join (TODO: Use plane-sweep)
-        for (int i = 0; i < R.degree; i++) {
-          int new_r_node = r_node * R.degree + i + 1;
-          for (int j = 0; j < S.degree; j++) {
-            int new_s_node = s_node * S.degree + j + 1;
-            if (R.nodes[new_r_node].isIntersected(S.nodes[new_s_node])) {
-              long new_pair = (((long)new_r_node) << 32) | new_s_node;
-              nodesToJoin.add(new_pair);
+        // Find overlaps using a plane-sweep over children sorted by x1
+        int[] r_children = R.getChildrenSortedByX(r_node);
+        int[] s_children = S.getChildrenSortedByX(s_node);
+        int i = 0, j = 0;
+        while (i < r_children.length && j < s_children.length) {
+          Rectangle r_mbr = R.nodes[r_children[i]];
+          Rectangle s_mbr = S.nodes[s_children[j]];
+          if (r_mbr.x1 < s_mbr.x1) {
+            // Sweep the children of S that start before r ends
+            for (int jj = j; jj < s_children.length &&
+                S.nodes[s_children[jj]].x1 <= r_mbr.x2; jj++) {
+              if (r_mbr.isIntersected(S.nodes[s_children[jj]])) {
+                long new_pair = (((long)r_children[i]) << 32) | s_children[jj];
+                nodesToJoin.push(new_pair);
+              }
+            }
+            i++;
+          } else {
+            // Sweep the children of R that start before s ends
+            for (int ii = i; ii < r_children.length &&
+                R.nodes[r_children[ii]].x1 <= s_mbr.x2; ii++) {
+              if (R.nodes[r_children[ii]].isIntersected(s_mbr)) {
+                long new_pair = (((long)r_children[ii]) << 32) | s_children[j];
+                nodesToJoin.push(new_pair);
+              }
             }
+            j++;
           }
         }
       } else if (r_leaf && !s_leaf) {
@@ -1257,7 +1626,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           int new_s_node = s_node * S.degree + j + 1;
           if (R.nodes[r_node].isIntersected(S.nodes[new_s_node])) {
             long new_pair = (((long)r_node) << 32) | new_s_node;
-            nodesToJoin.add(new_pair);
+            nodesToJoin.push(new_pair);
           }
         }
       } else if (!r_leaf && s_leaf) {
@@ -1267,7 +1636,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           int new_r_node = r_node * R.degree + i + 1;
           if (R.nodes[new_r_node].isIntersected(S.nodes[s_node])) {
             long new_pair = (((long)new_r_node) << 32) | s_node;
-            nodesToJoin.add(new_pair);
+            nodesToJoin.push(new_pair);
           }
         }
       } else if (r_leaf && s_leaf) {
@@ -1278,8 +1647,12 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         int s_end_offset = S.dataOffset[s_node+1];
         
         // Read or retrieve r_records
-        Shape[] r_records = r_records_cache.get(r_start_offset);
-        if (r_records == null) {
+        Shape[] r_records;
+        if (r_leaf_reader != null) {
+          // Parse only the records that overlap the other leaf node
+          r_records = R.readLeafRecords(r_leaf_reader, r_node, S.nodes[s_node],
+              r_binary_records, line);
+        } else if ((r_records = r_records_cache.get(r_start_offset)) == null) {
           int cache_key = r_start_offset;
           r_records = r_records_cache.popUnusedEntry();
           if (r_records == null) {
@@ -1287,11 +1660,8 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           }
 
           // Need to read it from stream
-          if (r_last_offset != r_start_offset) {
-            long seekTo = r_start_offset + R.treeStartOffset;
-            R.data.seek(seekTo);
-            r_lr = new LineReader(R.data);
-          }
+          if (r_last_offset != r_start_offset)
+            r_lr.seek(r_start_offset);
           int record_i = 0;
           while (r_start_offset < r_end_offset) {
             r_start_offset += r_lr.readLine(line);
@@ -1308,16 +1678,19 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         }
 
         // Read or retrieve s_records
-        Shape[] s_records = s_records_cache.get(s_start_offset);
-        if (s_records == null) {
+        Shape[] s_records;
+        if (s_leaf_reader != null) {
+          // Parse only the records that overlap the other leaf node
+          s_records = S.readLeafRecords(s_leaf_reader, s_node, R.nodes[r_node],
+              s_binary_records, line);
+        } else if ((s_records = s_records_cache.get(s_start_offset)) == null) {
           int cache_key = s_start_offset;
 
           // Need to read it from stream
-          if (s_lr == null || s_last_offset != s_start_offset) {
+          if (!s_lr_positioned || s_last_offset != s_start_offset) {
             // Need to reposition s_lr (LineReader of S)
-            long seekTo = s_start_offset + S.treeStartOffset;
-            S.data.seek(seekTo);
-            s_lr = new LineReader(S.data);
+            s_lr.seek(s_start_offset);
+            s_lr_positioned = true;
           }
           s_records = s_records_cache.popUnusedEntry();
           if (s_records == null) {
@@ -1358,6 +1731,33 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     return result_count;
   }
   
+  /**
+   * Parses the records of a leaf node stored in the binary layout whose MBRs
+   * overlap the given filter rectangle.
+   * @param reader - used to read the keys and records of the leaf node
+   * @param nodeID - the ID of the leaf node
+   * @param filter - the rectangle used to filter records
+   * @param records - an array to store the parsed records in. Entries that
+   *   follow the last record are set to null.
+   * @param line - a temporary text used to parse records
+   * @return - the given array of records
+   * @throws IOException
+   */
+  private Shape[] readLeafRecords(LeafKeysReader reader, int nodeID,
+      Rectangle filter, Shape[] records, Text line) throws IOException {
+    int numCandidates = reader.load(nodeID, filter);
+    for (int i = 0; i < numCandidates; i++) {
+      reader.getCandidate(i, line);
+      if (records[i] == null)
+        records[i] = stockObject.clone();
+      records[i].fromText(line);
+    }
+    // Nullify other records
+    for (int i = numCandidates; i < records.length; i++)
+      records[i] = null;
+    return records;
+  }
+  
   public static<S1 extends Shape, S2 extends Shape> int spatialJoin(
       final RTree<S1> R,
       final RTree<S2> S,
@@ -1382,6 +1782,16 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
    * @return - storage overhead in bytes
    */
   public static int calculateStorageOverhead(int elementCount, int degree){
+    return calculateStorageOverhead(elementCount, degree, LEAF_LAYOUT_TEXT);
+  }
+
+  /**
+   * Calculate the storage overhead required to build an RTree for the given
+   * number of nodes using the given leaf layout.
+   * @return - storage overhead in bytes
+   */
+  public static int calculateStorageOverhead(int elementCount, int degree,
+      int leafLayout) {
     // Update storage overhead
     int height = Math.max(1, 
         (int) Math.ceil(Math.log(elementCount)/Math.log(degree)));
@@ -1392,6 +1802,8 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     }
     int nodeCount = (int) ((Math.pow(degree, height) - 1) / (degree - 1));
     int storage_overhead = 4 + TreeHeaderSize + nodeCount * NodeSize;
+    if (leafLayout == LEAF_LAYOUT_BINARY)
+      storage_overhead += elementCount * KeySize;
     return storage_overhead;
   }
 
@@ -63,7 +63,7 @@ public class RTreeLocalIndexer implements LocalIndexer {
     int degree = 4096 / RTree.NodeSize;
     boolean fastAlgorithm = conf.get(SpatialSite.RTREE_BUILD_MODE, "fast").equals("fast");
     RTree.bulkLoadWrite(cellData, 0, cellData.length, degree, cellStream,
-        shape.clone(), fastAlgorithm);
+        shape.clone(), fastAlgorithm, SpatialSite.getRTreeLeafLayout(conf));
     cellStream.close();
   }
 
@@ -0,0 +1,145 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * A seekable input stream over a {@link ByteBuffer}, typically a memory
+ * mapped local file. Reads are served directly from the buffer, i.e., from
+ * the page cache for mapped files, without any system calls. It can be
+ * wrapped in an {@link org.apache.hadoop.fs.FSDataInputStream} and used
+ * wherever a file system stream is expected.
+ */
+public class MappedInputStream extends InputStream
+    implements Seekable, PositionedReadable {
+
+  /**The buffer that holds all data. Its position is the stream position*/
+  private final ByteBuffer buffer;
+
+  public MappedInputStream(ByteBuffer buffer) {
+    this.buffer = buffer.duplicate();
+    this.buffer.position(0);
+  }
+
+  /**
+   * Maps the given local file in memory in read-only mode. The mapping stays
+   * valid after this method returns and is released when the returned
+   * stream is garbage collected.
+   * @param file
+   * @return
+   * @throws IOException - if the file cannot be mapped, e.g., if it is larger
+   *  than 2GB.
+   */
+  public static MappedInputStream map(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE)
+        throw new IOException("File too large to map "+file+" ("+size+" bytes)");
+      return new MappedInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+    } finally {
+      // The mapping remains valid after the channel is closed
+      raf.close();
+    }
+  }
+
+  /**
+   * Returns a view of the underlying buffer. Positions in the returned buffer
+   * are the same as positions in this stream.
+   * @return
+   */
+  public ByteBuffer getBuffer() {
+    ByteBuffer view = buffer.duplicate();
+    view.position(0);
+    return view;
+  }
+
+  @Override
+  public int read() throws IOException {
+    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0)
+      return 0;
+    if (!buffer.hasRemaining())
+      return -1;
+    len = Math.min(len, buffer.remaining());
+    buffer.get(b, off, len);
+    return len;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+    buffer.position(buffer.position() + skipped);
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return buffer.remaining();
+  }
+
+  @Override
+  public long getPos() throws IOException {
+    return buffer.position();
+  }
+
+  @Override
+  public void seek(long pos) throws IOException {
+    if (pos < 0 || pos > buffer.limit())
+      throw new EOFException("Cannot seek to "+pos+" in a buffer of size "+buffer.limit());
+    buffer.position((int) pos);
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+
+  @Override
+  public int read(long position, byte[] b, int offset, int length)
+      throws IOException {
+    if (position >= buffer.limit())
+      return -1;
+    length = (int) Math.min(length, buffer.limit() - position);
+    ByteBuffer view = buffer.duplicate();
+    view.position((int) position);
+    view.get(b, offset, length);
+    return length;
+  }
+
+  @Override
+  public void readFully(long position, byte[] b, int offset, int length)
+      throws IOException {
+    if (position + length > buffer.limit())
+      throw new EOFException("Cannot read "+length+" bytes at "+position);
+    ByteBuffer view = buffer.duplicate();
+    view.position((int) position);
+    view.get(b, offset, length);
+  }
+
+  @Override
+  public void readFully(long position, byte[] b) throws IOException {
+    readFully(position, b, 0, b.length);
+  }
+}
@@ -0,0 +1,154 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Parses fields out of a {@link Text} by advancing an offset over its bytes.
+ * Unlike the consume methods in {@link TextSerializerHelper}, parsing a field
+ * neither allocates objects nor shifts the remaining bytes of the text. This
+ * makes parsing a line linear in its length. Call {@link #consume()} when
+ * done to remove all parsed fields from the text, e.g., to let a subclass
+ * continue parsing the rest of the line.
+ */
+public class TextCursor {
+  /**The text being parsed*/
+  private Text text;
+
+  /**The underlying bytes of the text*/
+  private byte[] bytes;
+
+  /**Number of valid bytes in the text*/
+  private int length;
+
+  /**Offset of the next byte to parse*/
+  private int pos;
+
+  public TextCursor() {
+  }
+
+  public TextCursor(Text text) {
+    set(text);
+  }
+
+  /**
+   * Starts parsing the given text from its first byte.
+   * @param text
+   * @return - this cursor
+   */
+  public TextCursor set(Text text) {
+    this.text = text;
+    this.bytes = text.getBytes();
+    this.length = text.getLength();
+    this.pos = 0;
+    return this;
+  }
+
+  /**
+   * Returns the offset of the next byte to parse
+   * @return
+   */
+  public int getPosition() {
+    return pos;
+  }
+
+  /**
+   * Whether there are more bytes to parse or not
+   * @return
+   */
+  public boolean hasMore() {
+    return pos < length;
+  }
+
+  /**
+   * Skips the given number of bytes, e.g., to skip a separator.
+   * @param n
+   */
+  public void skip(int n) {
+    pos = Math.min(length, pos + n);
+  }
+
+  /**
+   * Parses a double at the current position. If the byte after the double is
+   * the given separator, it is skipped as well.
+   * @param separator
+   * @return
+   */
+  public double nextDouble(char separator) {
+    int start = pos;
+    while (pos < length && TextSerializerHelper.DoubleChars[bytes[pos] & 0xFF])
+      pos++;
+    double d = TextSerializerHelper.deserializeDouble(bytes, start, pos - start);
+    skipSeparator(separator);
+    return d;
+  }
+
+  /**
+   * Parses a decimal long at the current position. If the byte after the
+   * long is the given separator, it is skipped as well.
+   * @param separator
+   * @return
+   */
+  public long nextLong(char separator) {
+    int start = pos;
+    while (pos < length && TextSerializerHelper.DecimalChars[bytes[pos] & 0xFF])
+      pos++;
+    long l = TextSerializerHelper.deserializeLong(bytes, start, pos - start);
+    skipSeparator(separator);
+    return l;
+  }
+
+  /**
+   * Parses a decimal int at the current position. If the byte after the
+   * int is the given separator, it is skipped as well.
+   * @param separator
+   * @return
+   */
+  public int nextInt(char separator) {
+    int start = pos;
+    while (pos < length && TextSerializerHelper.DecimalChars[bytes[pos] & 0xFF])
+      pos++;
+    int i = TextSerializerHelper.deserializeInt(bytes, start, pos - start);
+    skipSeparator(separator);
+    return i;
+  }
+
+  /**
+   * Parses a hexadecimal long at the current position. If the byte after the
+   * long is the given separator, it is skipped as well.
+   * @param separator
+   * @return
+   */
+  public long nextHexLong(char separator) {
+    int start = pos;
+    while (pos < length && TextSerializerHelper.HexadecimalChars[bytes[pos] & 0xFF])
+      pos++;
+    long l = TextSerializerHelper.deserializeHexLong(bytes, start, pos - start);
+    skipSeparator(separator);
+    return l;
+  }
+
+  private void skipSeparator(char separator) {
+    if (pos < length && bytes[pos] == separator)
+      pos++;
+  }
+
+  /**
+   * Removes all parsed bytes from the underlying text with at most one copy
+   * and resets the cursor to the beginning of the remaining bytes.
+   */
+  public void consume() {
+    if (pos >= length)
+      text.clear();
+    else if (pos > 0)
+      text.set(bytes, pos, length - pos);
+    set(text);
+  }
+}
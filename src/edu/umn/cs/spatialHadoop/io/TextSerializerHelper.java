@@ -36,6 +36,17 @@ public final class TextSerializerHelper {
   
   final static boolean[] HexadecimalChars;
   final static boolean[] DecimalChars;
+  /**All chars that can appear in a serialized double*/
+  final static boolean[] DoubleChars;
+  
+  /**Powers of ten that are exactly representable as doubles*/
+  private final static double[] ExactPowersOf10 = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+    1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+  
+  /**Maximum number of significant digits that fit exactly in a double*/
+  private final static int MaxExactDigits = 15;
   
   /**64 bytes to append to a string if necessary*/
   final static byte[] ToAppend = new byte[64];
@@ -53,6 +64,11 @@ public final class TextSerializerHelper {
     }
     HexadecimalChars['-'] = true;
     DecimalChars['-'] = true;
+    DoubleChars = new boolean[256];
+    for (char i = '0'; i <= '9'; i++)
+      DoubleChars[i] = true;
+    DoubleChars['e'] = DoubleChars['E'] = true;
+    DoubleChars['-'] = DoubleChars['+'] = DoubleChars['.'] = true;
     
     Arrays.fill(ToAppend, (byte)' ');
   }
@@ -141,49 +157,120 @@ public final class TextSerializerHelper {
    * characters read for deserialization are removed from the given text.
    * If separator is non-zero, a long is read and consumed up to the first
    * occurrence of this separator. The separator is also consumed.
+   * To parse several fields from the same text, use {@link TextCursor}
+   * which avoids shifting the text after each field.
    * @param text
    * @param separator
    * @return
    */
   public static long consumeHexLong(Text text, char separator) {
-    int i = 0;
-    byte[] bytes = text.getBytes();
-    // Skip until the separator or end of text
-    while (i < text.getLength() && HexadecimalChars[bytes[i]])
-      i++;
-    long l = deserializeHexLong(bytes, 0, i);
-    // If the first char after the long is the separator, skip it
-    if (i < text.getLength() && bytes[i] == separator)
-      i++;
-    // Shift bytes after the long
-    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
-    text.set(bytes, 0, text.getLength() - i);
+    TextCursor cursor = new TextCursor(text);
+    long l = cursor.nextHexLong(separator);
+    cursor.consume();
     return l;
   }
   
+  /**
+   * Parses a double from the given byte array (string). The double starts at
+   * offset and is len characters long. Numbers with up to 15 significant
+   * digits and a small exponent are parsed directly from the bytes with
+   * exact rounding. Other numbers fall back to {@link Double#parseDouble(String)}.
+   * @param buf
+   * @param offset
+   * @param len
+   * @return
+   */
+  public static double deserializeDouble(byte[] buf, int offset, int len) {
+    int i = offset;
+    int end = offset + len;
+    boolean negative = false;
+    if (i < end && (buf[i] == '-' || buf[i] == '+'))
+      negative = buf[i++] == '-';
+    long mantissa = 0;
+    int significantDigits = 0;
+    int exponent = 0;
+    boolean digitsFound = false;
+    // Integer part
+    while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+      digitsFound = true;
+      int digit = buf[i++] - '0';
+      if (mantissa != 0 || digit != 0)
+        significantDigits++;
+      if (significantDigits <= MaxExactDigits)
+        mantissa = mantissa * 10 + digit;
+    }
+    // Fraction part
+    if (i < end && buf[i] == '.') {
+      i++;
+      while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+        digitsFound = true;
+        int digit = buf[i++] - '0';
+        if (mantissa != 0 || digit != 0)
+          significantDigits++;
+        if (significantDigits <= MaxExactDigits)
+          mantissa = mantissa * 10 + digit;
+        exponent--;
+      }
+    }
+    // Exponent part
+    if (digitsFound && i < end && (buf[i] == 'e' || buf[i] == 'E')) {
+      i++;
+      boolean negativeExponent = false;
+      if (i < end && (buf[i] == '-' || buf[i] == '+'))
+        negativeExponent = buf[i++] == '-';
+      int exponentValue = 0;
+      int exponentStart = i;
+      while (i < end && buf[i] >= '0' && buf[i] <= '9') {
+        if (exponentValue < 10000)
+          exponentValue = exponentValue * 10 + (buf[i] - '0');
+        i++;
+      }
+      if (i == exponentStart)
+        digitsFound = false; // Malformed exponent
+      exponent += negativeExponent ? -exponentValue : exponentValue;
+    }
+    
+    if (digitsFound && i == end && significantDigits <= MaxExactDigits) {
+      if (mantissa == 0)
+        return negative ? -0.0 : 0.0;
+      // The mantissa is exact. Multiplying or dividing by an exact power of
+      // ten rounds only once which gives the correctly rounded result
+      double d = mantissa;
+      if (exponent == 0)
+        return negative ? -d : d;
+      if (exponent < 0 && exponent >= -22) {
+        d /= ExactPowersOf10[-exponent];
+        return negative ? -d : d;
+      }
+      if (exponent > 0 && exponent <= 22 + MaxExactDigits - significantDigits) {
+        if (exponent > 22) {
+          // Still exact as the result has no more than MaxExactDigits digits
+          d *= ExactPowersOf10[exponent - 22];
+          exponent = 22;
+        }
+        d *= ExactPowersOf10[exponent];
+        return negative ? -d : d;
+      }
+    }
+    // Slow path for long or malformed numbers
+    return Double.parseDouble(new String(buf, offset, len));
+  }
   
   /**
    * Deserializes and consumes a double from the given text. Consuming means all
    * characters read for deserialization are removed from the given text.
    * If separator is non-zero, a double is read and consumed up to the first
    * occurrence of this separator. The separator is also consumed.
+   * To parse several fields from the same text, use {@link TextCursor}
+   * which avoids shifting the text after each field.
    * @param text
    * @param separator
    * @return
    */
   public static double consumeDouble(Text text, char separator) {
-    int i = 0;
-    byte[] bytes = text.getBytes();
-    // Skip until the separator or end of text
-    while (i < text.getLength()
-        && ((bytes[i] >= '0' && bytes[i] <= '9') || bytes[i] == 'e'
-            || bytes[i] == 'E' || bytes[i] == '-' || bytes[i] == '+' || bytes[i] == '.'))
-      i++;
-    double d = Double.parseDouble(new String(bytes, 0, i));
-    if (i < text.getLength() && bytes[i] == separator)
-      i++;
-    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
-    text.set(bytes, 0, text.getLength() - i);
+    TextCursor cursor = new TextCursor(text);
+    double d = cursor.nextDouble(separator);
+    cursor.consume();
     return d;
   }
   
@@ -261,18 +348,9 @@ public final class TextSerializerHelper {
   }
   
   public static long consumeLong(Text text, char separator) {
-    int i = 0;
-    byte[] bytes = text.getBytes();
-    // Skip until the separator or end of text
-    while (i < text.getLength() && DecimalChars[bytes[i]])
-      i++;
-    long l = deserializeLong(bytes, 0, i);
-    // If the first char after the long is the separator, skip it
-    if (i < text.getLength() && bytes[i] == separator)
-      i++;
-    // Shift bytes after the long
-    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
-    text.set(bytes, 0, text.getLength() - i);
+    TextCursor cursor = new TextCursor(text);
+    long l = cursor.nextLong(separator);
+    cursor.consume();
     return l;
   }
   
@@ -335,18 +413,9 @@ public final class TextSerializerHelper {
   }
   
   public static int consumeInt(Text text, char separator) {
-    int i = 0;
-    byte[] bytes = text.getBytes();
-    // Skip until the separator or end of text
-    while (i < text.getLength() && DecimalChars[bytes[i]])
-      i++;
-    int l = deserializeInt(bytes, 0, i);
-    // If the first char after the long is the separator, skip it
-    if (i < text.getLength() && bytes[i] == separator)
-      i++;
-    // Shift bytes after the long
-    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
-    text.set(bytes, 0, text.getLength() - i);
+    TextCursor cursor = new TextCursor(text);
+    int l = cursor.nextInt(separator);
+    cursor.consume();
     return l;
   }
  
@@ -499,8 +568,27 @@ public final class TextSerializerHelper {
       text.append(new byte[] {(byte) toAppend}, 0, 1);
   }
   
-  private static final WKTReader wktReader = new WKTReader(new GeometryFactory());
-  private static final WKBReader wkbReader = new WKBReader(new GeometryFactory());
+  /**Geometry factory shared by all readers. It is immutable and thread-safe*/
+  private static final GeometryFactory geometryFactory = new GeometryFactory();
+  
+  /**
+   * JTS readers keep parsing state and are not thread-safe. Each thread gets
+   * its own reader to parse geometries in parallel without locking.
+   */
+  private static final ThreadLocal<WKTReader> wktReader = new ThreadLocal<WKTReader>() {
+    @Override
+    protected WKTReader initialValue() {
+      return new WKTReader(geometryFactory);
+    }
+  };
+  
+  /**@see #wktReader*/
+  private static final ThreadLocal<WKBReader> wkbReader = new ThreadLocal<WKBReader>() {
+    @Override
+    protected WKBReader initialValue() {
+      return new WKBReader(geometryFactory);
+    }
+  };
   
   public static void serializeGeometry(Text text, Geometry geom, char toAppend) {
     String wkt = geom.toText();
@@ -510,7 +598,15 @@ public final class TextSerializerHelper {
       text.append(new byte[] {(byte) toAppend}, 0, 1);
   }
   
-  public static synchronized Geometry consumeGeometryJTS(Text text, char separator) {
+  /**
+   * Deserializes and consumes a JTS geometry from the given text. The geometry
+   * is either a well-known text (WKT) or a hex string of a well-known binary
+   * (WKB). This method is thread-safe and does not block other threads.
+   * @param text
+   * @param separator
+   * @return - the parsed geometry or <code>null</code> if it cannot be parsed
+   */
+  public static Geometry consumeGeometryJTS(Text text, char separator) {
     // Check whether this text is a Well Known Text (WKT) or a hexed string
     boolean wkt = false;
     byte[] bytes = text.getBytes();
@@ -549,19 +645,19 @@ public final class TextSerializerHelper {
       String wkt_text = new String(bytes, 0, i_end);
       
       try {
-        geom = wktReader.read(wkt_text);
+        geom = wktReader.get().read(wkt_text);
       } catch (ParseException e) {
         throw new RuntimeException("Error parsing WKT '"+wkt_text+"'", e);
       }
     } else {
       i_end = 0;
-      while (i_end < text.getLength() && IsHex[bytes[i_end]])
+      while (i_end < text.getLength() && IsHex[bytes[i_end] & 0xFF])
         i_end++;
       if (i_end > 1) {
         String hex_string = new String(bytes, 0, i_end);
         byte[] binary = hexToBytes(hex_string);
         try {
-          geom = wkbReader.read(binary);
+          geom = wkbReader.get().read(binary);
         } catch (ParseException e) {
           throw new RuntimeException("Error parsing Hex seting '"+hex_string+"'", e);
         }
@@ -111,7 +111,7 @@ public class RTreeRecordReader3<V extends Shape> extends
     this.start = fsplit.getStart();
     this.end = this.start + split.getLength();
     this.fs = this.path.getFileSystem(conf);
-    this.directIn = fs.open(this.path);
+    this.directIn = SpatialSite.openRTreeFile(fs, this.path, conf);
     codec = new CompressionCodecFactory(conf).getCodec(this.path);
     
     if (codec != null) {
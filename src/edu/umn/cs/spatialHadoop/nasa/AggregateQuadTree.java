@@ -53,6 +53,7 @@ import edu.umn.cs.spatialHadoop.hdf.HDFFile;
 import edu.umn.cs.spatialHadoop.io.RandomCompressedInputStream;
 import edu.umn.cs.spatialHadoop.io.RandomCompressedOutputStream;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
@@ -655,11 +656,11 @@ public class AggregateQuadTree {
     long[] timestamps = new long[cardinality];
     for (int i = 0; i < cardinality; i++)
       timestamps[i] = in.readLong();
-    Vector<Integer> selectedStarts = new Vector<Integer>();
-    Vector<Integer> selectedEnds = new Vector<Integer>();
+    IntArray selectedStarts = new IntArray();
+    IntArray selectedEnds = new IntArray();
     StockQuadTree stockQuadTree = getOrCreateStockQuadTree(resolution);
     // Nodes to be searched. Contains node positions in the array of nodes
-    Stack<Integer> nodes_2b_searched = new Stack<Integer>();
+    IntArray nodes_2b_searched = new IntArray();
     nodes_2b_searched.add(0); // Root node (ID=1)
     Rectangle node_mbr = new Rectangle();
     while (!nodes_2b_searched.isEmpty()) {
@@ -668,7 +669,7 @@ public class AggregateQuadTree {
       if (query_mbr.contains(node_mbr)) {
         // Add this node to the selection list and stop this branch
         if (!selectedEnds.isEmpty()
-            && selectedEnds.lastElement() == stockQuadTree.nodesStartPosition[node_pos]) {
+            && selectedEnds.peek() == stockQuadTree.nodesStartPosition[node_pos]) {
           // Merge with an adjacent range
           selectedEnds.set(selectedEnds.size() - 1, stockQuadTree.nodesEndPosition[node_pos]);
         } else {
@@ -691,7 +692,7 @@ public class AggregateQuadTree {
             if (query_mbr.contains(record_coords)) {
               // matched a record.
               if (!selectedEnds.isEmpty()
-                  && selectedEnds.lastElement() == record_pos) {
+                  && selectedEnds.peek() == record_pos) {
                 // Merge with an adjacent range
                 selectedEnds.set(selectedEnds.size() - 1, record_pos + 1);
               } else {
@@ -768,12 +769,12 @@ public class AggregateQuadTree {
     int resolution = in.readInt();
     short fillValue = in.readShort();
     int cardinality = in.readInt();
-    final Vector<Integer> selectedNodesPos = new Vector<Integer>();
-    final Vector<Integer> selectedStarts = new Vector<Integer>();
-    final Vector<Integer> selectedEnds = new Vector<Integer>();
+    final IntArray selectedNodesPos = new IntArray();
+    final IntArray selectedStarts = new IntArray();
+    final IntArray selectedEnds = new IntArray();
     StockQuadTree stockQuadTree = getOrCreateStockQuadTree(resolution);
     // Nodes to be searched. Contains node positions in the array of nodes
-    Stack<Integer> nodes_2b_searched = new Stack<Integer>();
+    IntArray nodes_2b_searched = new IntArray();
     nodes_2b_searched.add(0); // Root node (ID=1)
     Rectangle node_mbr = new Rectangle();
     while (!nodes_2b_searched.isEmpty()) {
@@ -795,7 +796,7 @@ public class AggregateQuadTree {
             if (query_mbr.contains(record_coords)) {
               // matched a record.
               if (!selectedEnds.isEmpty()
-                  && selectedEnds.lastElement() == record_pos) {
+                  && selectedEnds.peek() == record_pos) {
                 // Merge with an adjacent range
                 selectedEnds.set(selectedEnds.size() - 1, record_pos + 1);
               } else {
@@ -830,13 +831,8 @@ public class AggregateQuadTree {
         
         @Override
         public void swap(int i, int j) {
-          int temp = selectedStarts.get(i);
-          selectedStarts.set(i, selectedStarts.get(j));
-          selectedStarts.set(j, temp);
-          
-          temp = selectedEnds.get(i);
-          selectedEnds.set(i, selectedEnds.get(j));
-          selectedEnds.set(j, temp);
+          selectedStarts.swap(i, j);
+          selectedEnds.swap(i, j);
         }
       };
       new QuickSort().sort(sortable, 0, selectedStarts.size());
@@ -876,15 +872,14 @@ public class AggregateQuadTree {
         
         @Override
         public void swap(int i, int j) {
-          int temp = selectedNodesPos.get(i);
-          selectedNodesPos.set(i, selectedNodesPos.get(j));
-          selectedNodesPos.set(j, temp);
+          selectedNodesPos.swap(i, j);
         }
       };
       new QuickSort().sort(nodeSortable, 0, selectedNodesPos.size());
       
       Node selectedNode = new Node();
-      for (int node_pos : selectedNodesPos) {
+      for (int i = 0; i < selectedNodesPos.size(); i++) {
+        int node_pos = selectedNodesPos.get(i);
         long nodePosition = nodesStartPosition + node_pos * NodeSize;
         in.seek(nodePosition);
         selectedNode.readFields(in);
@@ -35,6 +35,7 @@ import edu.umn.cs.spatialHadoop.hdf.DDVGroup;
 import edu.umn.cs.spatialHadoop.hdf.DataDescriptor;
 import edu.umn.cs.spatialHadoop.hdf.HDFConstants;
 import edu.umn.cs.spatialHadoop.hdf.HDFFile;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
 
 /**
@@ -49,6 +50,13 @@ public class HDFRecordReader<S extends NASAShape>
   
   /**Configuration line for the path to water mask*/
   public static final String WATER_MASK_PATH = "HDFRecordReader.WaterMaskPath";
+
+  /**
+   * Configuration line to decode only the window of the dataset that overlaps
+   * the query range, if one is set. The whole dataset is still decoded if
+   * holes are recovered because recovery uses whole rows and columns.
+   */
+  public static final String WindowedDecoding = "HDFRecordReader.Windowed";
   
   /**Information about the dataset being read*/
   private NASADataset nasaDataset;
@@ -68,6 +76,13 @@ public class HDFRecordReader<S extends NASAShape>
   
   /**Number of bytes per data entry*/
   private int valueSize;
+
+  /**
+   * The window of the dataset stored in {@link #unparsedDataArray} in terms
+   * of rows and columns. Covers the whole dataset unless windowed decoding
+   * is used.
+   */
+  private int windowRow, windowCol, windowWidth, windowHeight;
   
   /**Position to read next in the data array*/
   private int position;
@@ -172,19 +187,31 @@ public class HDFRecordReader<S extends NASAShape>
         DDNumericDataGroup numericDataGroup = (DDNumericDataGroup) dd;
         valueSize = numericDataGroup.getDataSize();
         resolution = numericDataGroup.getDimensions()[0];
-        unparsedDataArray = new byte[valueSize * resolution * resolution];
+        nasaDataset.resolution = resolution;
+        computeWindow(conf, fillValueFound);
+        unparsedDataArray = new byte[valueSize * windowWidth * windowHeight];
         if (fillValueFound) {
           fillValueBytes = new byte[valueSize];
           HDFConstants.writeAt(fillValueBytes, 0, fillValuee, valueSize);
-          for (int i = 0; i < unparsedDataArray.length; i++)
-            unparsedDataArray[i] = fillValueBytes[i % valueSize];
+          if (unparsedDataArray.length > 0) {
+            // Fill in the array by repeatedly doubling the filled part
+            System.arraycopy(fillValueBytes, 0, unparsedDataArray, 0, valueSize);
+            for (int filled = valueSize; filled < unparsedDataArray.length; filled *= 2)
+              System.arraycopy(unparsedDataArray, 0, unparsedDataArray, filled,
+                  Math.min(filled, unparsedDataArray.length - filled));
+          }
+        }
+        if (windowWidth == resolution && windowHeight == resolution) {
+          numericDataGroup.getAsByteArray(unparsedDataArray, 0, unparsedDataArray.length);
+        } else if (unparsedDataArray.length > 0) {
+          numericDataGroup.getWindowAsByteArray(unparsedDataArray, windowRow,
+              windowCol, windowRow + windowHeight, windowCol + windowWidth);
         }
-        numericDataGroup.getAsByteArray(unparsedDataArray, 0, unparsedDataArray.length);
       }
     }
     
     nasaDataset.resolution = resolution;
-    if (!fillValueFound) {
+    if (!fillValueFound || unparsedDataArray.length == 0) {
       skipFillValue = false;
     } else {
       skipFillValue = conf.getBoolean("skipfill", true);
@@ -199,6 +226,70 @@ public class HDFRecordReader<S extends NASAShape>
   }
 
 
+  /**
+   * Computes the window of the dataset to decode. See
+   * {@link #computeWindow(Configuration, int, int, int, boolean)}.
+   * @param conf
+   * @param fillValueFound - whether the dataset has a fill value
+   */
+  private void computeWindow(Configuration conf, boolean fillValueFound) {
+    boolean recoverHoles = fillValueFound && conf.getBoolean("recoverholes", true);
+    int[] window = computeWindow(conf, nasaDataset.h, nasaDataset.v,
+        nasaDataset.resolution, recoverHoles);
+    windowRow = window[0];
+    windowCol = window[1];
+    windowWidth = window[2];
+    windowHeight = window[3];
+  }
+
+  /**
+   * Computes the window of a dataset to decode. If windowed decoding is
+   * enabled and a query range is set, the window contains all the cells that
+   * might overlap the query range. Otherwise, the window covers the whole
+   * dataset. The window is empty if the query range is disjoint with the
+   * dataset. Holes are recovered by interpolating along whole rows and then
+   * whole columns, so the whole dataset is decoded if holes are recovered to
+   * get the same values as a full decode.
+   * @param conf
+   * @param h - the horizontal position of the tile in the sinusoidal grid
+   * @param v - the vertical position of the tile in the sinusoidal grid
+   * @param resolution - number of rows and columns in the dataset
+   * @param recoverHoles - whether fill values will be recovered or not
+   * @return - the window as (first row, first column, width, height)
+   */
+  static int[] computeWindow(Configuration conf, int h, int v, int resolution,
+      boolean recoverHoles) {
+    int[] fullWindow = {0, 0, resolution, resolution};
+    if (conf.get(SpatialInputFormat3.InputQueryRange) == null
+        || !conf.getBoolean(WindowedDecoding, true) || recoverHoles)
+      return fullWindow;
+    Rectangle queryRange = OperationsParams.getShape(conf,
+        SpatialInputFormat3.InputQueryRange).getMBR();
+    // Rows are numbered from the top (north) of the tile
+    double tileTop = 90 - v * 10;
+    double tileLeft = h * 10 - 180;
+    // Expand the window by one cell in each direction to account for
+    // rounding errors and for shapes that extend to the next cell
+    int row1 = Math.max(0, (int) Math.floor((tileTop - queryRange.y2) * resolution / 10) - 1);
+    int row2 = Math.min(resolution, (int) Math.ceil((tileTop - queryRange.y1) * resolution / 10) + 1);
+    if (row1 >= row2)
+      return new int[] {0, 0, 0, 0};
+    // The x-coordinate of a cell is divided by the cosine of its latitude.
+    // Find the range of cosines in the window to find all possible columns
+    double lat1 = (tileTop - (double) row2 * 10 / resolution) * Math.PI / 180;
+    double lat2 = (tileTop - (double) row1 * 10 / resolution) * Math.PI / 180;
+    double cos1 = Math.cos(lat1), cos2 = Math.cos(lat2);
+    double minCos = Math.min(cos1, cos2);
+    double maxCos = lat1 <= 0 && lat2 >= 0 ? 1.0 : Math.max(cos1, cos2);
+    double x1 = Math.min(queryRange.x1 * minCos, queryRange.x1 * maxCos);
+    double x2 = Math.max(queryRange.x2 * minCos, queryRange.x2 * maxCos);
+    int col1 = Math.max(0, (int) Math.floor((x1 - tileLeft) * resolution / 10) - 1);
+    int col2 = Math.min(resolution, (int) Math.ceil((x2 - tileLeft) * resolution / 10) + 1);
+    if (col1 >= col2)
+      return new int[] {0, 0, 0, 0};
+    return new int[] {row1, col1, col2 - col1, row2 - row1};
+  }
+
   @Override
   public NASADataset getCurrentKey() throws IOException, InterruptedException {
     return nasaDataset;
@@ -242,8 +333,8 @@ public class HDFRecordReader<S extends NASAShape>
    */
   protected void setShapeGeometry(Shape s, int position) {
     position /= valueSize;
-    int row = position / nasaDataset.resolution;
-    int col = position % nasaDataset.resolution;
+    int row = windowRow + position / windowWidth;
+    int col = windowCol + position % windowWidth;
     if (s instanceof Point) {
       Point p = (Point)s;
       p.y = (90 - nasaDataset.v * 10) -
@@ -326,17 +417,17 @@ public class HDFRecordReader<S extends NASAShape>
   
   /**
    * Return the value at the given offset in the array
-   * @param x
-   * @param y
+   * @param x - the column relative to the decoded window
+   * @param y - the row relative to the decoded window
    * @return
    */
   private int getValueAt(int x, int y) {
-    int position = (y * nasaDataset.resolution + x) * valueSize;
+    int position = (y * windowWidth + x) * valueSize;
     return HDFConstants.readAsInteger(unparsedDataArray, position, valueSize);
   }
   
   private boolean isFillValue(int x, int y) {
-    int position = (y * nasaDataset.resolution + x) * valueSize;
+    int position = (y * windowWidth + x) * valueSize;
     return isFillValue(position);
   }
   
@@ -349,7 +440,7 @@ public class HDFRecordReader<S extends NASAShape>
   }
 
   private void setValueAt(int x, int y, int value) {
-    int position = (y * nasaDataset.resolution + x) * valueSize;
+    int position = (y * windowWidth + x) * valueSize;
     HDFConstants.writeAt(unparsedDataArray, position, value, valueSize);
   }
   
@@ -423,40 +514,40 @@ public class HDFRecordReader<S extends NASAShape>
     // Resolution of the input dataset
     int inputRes = nasaDataset.resolution;
     // Recover in x-direction
-    for (int y = 0; y < inputRes; y++) {
+    for (int y = 0; y < windowHeight; y++) {
       int x2 = 0;
-      while (x2 < inputRes) {
+      while (x2 < windowWidth) {
         int x1 = x2;
         // x1 should point to the first missing point
-        while (x1 < inputRes && !isFillValue(x1, y))
+        while (x1 < windowWidth && !isFillValue(x1, y))
           x1++;
         // Now advance x2 until it reaches the first non-missing value
         x2 = x1;
-        while (x2 < inputRes && isFillValue(x2, y))
+        while (x2 < windowWidth && isFillValue(x2, y))
           x2++;
         // Recover all points in the range [x1, x2)
-        if (x1 == 0 && x2 == inputRes) {
+        if (x1 == 0 && x2 == windowWidth) {
           // The whole line is empty. Nothing to do
           for (int x = x1; x < x2; x++)
-            valueStatus[y * inputRes + x] = 1;
-        } else if (x1 == 0 || x2 == inputRes) {
+            valueStatus[y * windowWidth + x] = 1;
+        } else if (x1 == 0 || x2 == windowWidth) {
           // We have only one value at one end of the missing run
           int copyVal = getValueAt(x1 == 0 ? x2 : (x1 - 1), y);
           for (int x = x1; x < x2; x++) {
-            if (onLand(water_mask, x, y, inputRes))
+            if (onLand(water_mask, windowCol + x, windowRow + y, inputRes))
               setValueAt(x, y, copyVal);
-            valueStatus[y * inputRes + x] = 2;
+            valueStatus[y * windowWidth + x] = 2;
           }
         } else {
           // Interpolate values between x1 and x2
           int val1 = getValueAt(x1 - 1, y);
           int val2 = getValueAt(x2, y);
           for (int x = x1; x < x2; x++) {
-            if (onLand(water_mask, x, y, inputRes)) {
+            if (onLand(water_mask, windowCol + x, windowRow + y, inputRes)) {
               short interpolatedValue = (short) (((double)val1 * (x2 - x) + (double)val2 * (x - x1)) / (x2 - x1));
               setValueAt(x, y, interpolatedValue);
             }
-            valueStatus[y * inputRes + x] = 3;
+            valueStatus[y * windowWidth + x] = 3;
           }
         }
       }
@@ -477,30 +568,30 @@ public class HDFRecordReader<S extends NASAShape>
     // Resolution of the input dataset
     int inputRes = nasaDataset.resolution;
     // Recover in x-direction
-    for (int x = 0; x < inputRes; x++) {
+    for (int x = 0; x < windowWidth; x++) {
       int y2 = 0;
-      while (y2 < inputRes) {
+      while (y2 < windowHeight) {
         int y1 = y2;
         // y1 should point to the first missing point
-        while (y1 < inputRes && valueStatus[y1 * inputRes + x] == 0)
+        while (y1 < windowHeight && valueStatus[y1 * windowWidth + x] == 0)
           y1++;
         // Now advance y2 until it reaches the first non-missing value
         y2 = y1;
-        while (y2 < inputRes && valueStatus[y2 * inputRes + x] != 0)
+        while (y2 < windowHeight && valueStatus[y2 * windowWidth + x] != 0)
           y2++;
         // Recover all points in the range [y1, y2)
-        if (y1 == 0 && y2 == inputRes) {
+        if (y1 == 0 && y2 == windowHeight) {
           // The whole column is empty. Nothing to do
           emptyColumns++;
-        } else if (y1 == 0 || y2 == inputRes) {
+        } else if (y1 == 0 || y2 == windowHeight) {
           // We have only one value at one end of the missing run
           int copyVal = getValueAt(x, y1 == 0 ? y2 : (y1 - 1));
           for (int y = y1; y < y2; y++) {
-            if (onLand(water_mask, x, y, inputRes)) {
-              if (valueStatus[y * inputRes + x] == 1) {
+            if (onLand(water_mask, windowCol + x, windowRow + y, inputRes)) {
+              if (valueStatus[y * windowWidth + x] == 1) {
                 // Value has never been recovered but needs to
                 setValueAt(x, y, copyVal);
-              } else if (valueStatus[y * inputRes + x] == 2) {
+              } else if (valueStatus[y * windowWidth + x] == 2) {
                 // Value has been previously copied. Take average
                 setValueAt(x, y,  ((getValueAt(x, y) + copyVal) / 2));
               }
@@ -511,10 +602,10 @@ public class HDFRecordReader<S extends NASAShape>
           int val1 = getValueAt(x, y1 - 1);
           int val2 = getValueAt(x, y2);
           for (int y = y1; y < y2; y++) {
-            if (onLand(water_mask, x, y, inputRes)) {
+            if (onLand(water_mask, windowCol + x, windowRow + y, inputRes)) {
               short interValue =
                   (short) (((double)val1 * (y2 - y) + (double)val2 * (y - y1)) / (y2 - y1));
-              if (valueStatus[y * inputRes + x] <= 2) {
+              if (valueStatus[y * windowWidth + x] <= 2) {
                 // Value has never been recovered or has been copied
                 setValueAt(x, y, interValue);
               } else {
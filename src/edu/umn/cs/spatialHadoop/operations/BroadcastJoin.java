@@ -0,0 +1,360 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.filecache.DistributedCache;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.Counters;
+import org.apache.hadoop.mapred.Counters.Counter;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.MapReduceBase;
+import org.apache.hadoop.mapred.Mapper;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.RunningJob;
+import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapred.lib.NullOutputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
+import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
+import edu.umn.cs.spatialHadoop.mapred.ShapeIterRecordReader;
+import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
+import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
+
+/**
+ * Joins a large file with a small file in a map-only job. The small file is
+ * shipped to all map tasks through the distributed cache. Each map task
+ * loads it once into an in-memory STR-tree and probes the tree with every
+ * shape of its split of the large file. No data is shuffled.
+ */
+public class BroadcastJoin {
+  private static final Log LOG = LogFactory.getLog(BroadcastJoin.class);
+
+  /**Names of the cached files that contain the small input*/
+  private static final String SmallFiles = "BroadcastJoin.SmallFiles";
+  /**Whether the small input is the first input of the join or not*/
+  private static final String SmallIsFirst = "BroadcastJoin.SmallIsFirst";
+  /**Prefix of the keys that store the partition of each small file*/
+  private static final String SmallCell = "BroadcastJoin.SmallCell.";
+  /**Whether the large input is a replicated index, e.g., a grid index*/
+  private static final String LargeReplicated = "BroadcastJoin.LargeReplicated";
+
+  /**Maximum size in bytes of a file to broadcast when the join is planned*/
+  public static final String MaxBroadcastSize = "BroadcastJoin.MaxSize";
+  /**Default value of {@link #MaxBroadcastSize}*/
+  public static final long DefaultMaxBroadcastSize = 64 * 1024 * 1024;
+
+  public static class BroadcastJoinMap extends MapReduceBase implements
+      Mapper<Rectangle, Shape, Shape, Shape> {
+
+    /**
+     * In-memory indexes over the shapes of the small input. One index per
+     * partition if the small input is replicated, or one index otherwise.
+     */
+    private List<GlobalIndex<Shape>> smallIndexes;
+    /**The partition of each index or <code>null</code> if not replicated*/
+    private List<Rectangle> smallCells;
+    private boolean smallIsFirst;
+    private boolean largeReplicated;
+
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      smallIsFirst = job.getBoolean(SmallIsFirst, false);
+      largeReplicated = job.getBoolean(LargeReplicated, false);
+      Shape stockShape = OperationsParams.getShape(job, "shape");
+      smallIndexes = new ArrayList<GlobalIndex<Shape>>();
+      smallCells = new ArrayList<Rectangle>();
+      try {
+        // Shapes of all files that are not partitions of a replicated index
+        List<Shape> shapes = new ArrayList<Shape>();
+        String[] smallFiles = job.getStrings(SmallFiles);
+        FileSystem localFs = FileSystem.getLocal(job);
+        int numShapes = 0;
+        for (Path cacheFile : DistributedCache.getLocalCacheFiles(job)) {
+          for (String smallFile : smallFiles) {
+            if (cacheFile.getName().equals(smallFile)) {
+              Rectangle cell = (Rectangle) OperationsParams.getShape(job,
+                  SmallCell + smallFile);
+              if (cell == null) {
+                readShapes(localFs, cacheFile, stockShape, shapes);
+              } else {
+                List<Shape> cellShapes = new ArrayList<Shape>();
+                readShapes(localFs, cacheFile, stockShape, cellShapes);
+                addIndex(cellShapes, cell);
+                numShapes += cellShapes.size();
+              }
+              break;
+            }
+          }
+        }
+        if (!shapes.isEmpty())
+          addIndex(shapes, null);
+        numShapes += shapes.size();
+        LOG.info("Loaded "+numShapes+" shapes of the small input in "+
+            smallIndexes.size()+" indexes");
+      } catch (IOException e) {
+        throw new RuntimeException("Error loading the small input", e);
+      }
+    }
+
+    private void addIndex(List<Shape> shapes, Rectangle cell) {
+      GlobalIndex<Shape> index = new GlobalIndex<Shape>();
+      index.bulkLoad(shapes.toArray(new Shape[shapes.size()]));
+      smallIndexes.add(index);
+      smallCells.add(cell);
+    }
+
+    /**
+     * Reads all shapes in the given file
+     * @param fs
+     * @param file
+     * @param stockShape
+     * @param shapes
+     * @throws IOException
+     */
+    private static void readShapes(FileSystem fs, Path file, Shape stockShape,
+        List<Shape> shapes) throws IOException {
+      ShapeIterRecordReader reader = new ShapeIterRecordReader(fs.open(file),
+          0, fs.getFileStatus(file).getLen());
+      try {
+        reader.setShape(stockShape);
+        Rectangle key = reader.createKey();
+        ShapeIterator iter = reader.createValue();
+        while (reader.next(key, iter)) {
+          for (Shape shape : iter) {
+            if (shape.getMBR() != null)
+              shapes.add(shape.clone());
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    @Override
+    public void map(final Rectangle cellMBR, final Shape largeShape,
+        final OutputCollector<Shape, Shape> output, Reporter reporter)
+        throws IOException {
+      final Rectangle largeMBR = largeShape.getMBR();
+      if (largeMBR == null)
+        return;
+      final IOException[] error = new IOException[1];
+      for (int i = 0; i < smallIndexes.size(); i++) {
+        final Rectangle smallCell = smallCells.get(i);
+        if (smallCell != null && !smallCell.isIntersected(largeMBR))
+          continue;
+        smallIndexes.get(i).rangeQuery(largeShape, new ResultCollector<Shape>() {
+          @Override
+          public void collect(Shape smallShape) {
+            if (largeReplicated || smallCell != null) {
+              // Reference point duplicate avoidance technique. Report the
+              // pair only in the partitions that contain the lower corner of
+              // the intersection of the two MBRs
+              Rectangle smallMBR = smallShape.getMBR();
+              double refX = Math.max(largeMBR.x1, smallMBR.x1);
+              double refY = Math.max(largeMBR.y1, smallMBR.y1);
+              if (largeReplicated && !cellMBR.contains(refX, refY))
+                return;
+              if (smallCell != null && !smallCell.contains(refX, refY))
+                return;
+            }
+            try {
+              if (smallIsFirst)
+                output.collect(smallShape, largeShape);
+              else
+                output.collect(largeShape, smallShape);
+            } catch (IOException e) {
+              error[0] = e;
+            }
+          }
+        });
+        if (error[0] != null)
+          throw error[0];
+      }
+      reporter.progress();
+    }
+  }
+
+  /**
+   * Returns the data files of the given input, i.e., the partitions of an
+   * indexed file, all visible files in a directory or the file itself.
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  private static Path[] dataFiles(FileSystem fs, Path path) throws IOException {
+    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, path);
+    if (gindex != null) {
+      Path[] files = new Path[gindex.size()];
+      int i = 0;
+      for (Partition p : gindex)
+        files[i++] = new Path(path, p.filename);
+      return files;
+    }
+    if (!fs.getFileStatus(path).isDir())
+      return new Path[] {path};
+    FileStatus[] files = fs.listStatus(path, SpatialSite.NonHiddenFileFilter);
+    Path[] paths = new Path[files.length];
+    for (int i = 0; i < files.length; i++)
+      paths[i] = files[i].getPath();
+    return paths;
+  }
+
+  /**
+   * Joins two files by broadcasting one of them to all map tasks.
+   * @param inFiles - the two files to join
+   * @param smallFile - the index of the file to broadcast, 0 or 1
+   * @param userOutputPath - the output path or <code>null</code> to only count
+   *  the results
+   * @param params
+   * @return - number of result pairs
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static long broadcastJoin(Path[] inFiles, int smallFile,
+      Path userOutputPath, OperationsParams params)
+      throws IOException, InterruptedException {
+    long t1 = System.currentTimeMillis();
+    JobConf job = new JobConf(params, BroadcastJoin.class);
+    job.setJobName("BroadcastJoin");
+
+    Path smallPath = inFiles[smallFile];
+    Path largePath = inFiles[1 - smallFile];
+    FileSystem smallFs = smallPath.getFileSystem(job);
+    FileSystem largeFs = largePath.getFileSystem(job);
+
+    // Ship all data files of the small input to the map tasks
+    Path[] smallFiles = dataFiles(smallFs, smallPath);
+    String[] smallNames = new String[smallFiles.length];
+    for (int i = 0; i < smallFiles.length; i++) {
+      DistributedCache.addCacheFile(smallFs.makeQualified(smallFiles[i]).toUri(), job);
+      smallNames[i] = smallFiles[i].getName();
+    }
+    job.setStrings(SmallFiles, smallNames);
+    job.setBoolean(SmallIsFirst, smallFile == 0);
+    GlobalIndex<Partition> smallIndex = SpatialSite.getGlobalIndex(smallFs, smallPath);
+    if (smallIndex != null && smallIndex.isReplicated()) {
+      // The map tasks cannot read the global index of the cached files
+      for (Partition p : smallIndex)
+        OperationsParams.setShape(job, SmallCell + p.filename,
+            new Rectangle(p.x1, p.y1, p.x2, p.y2));
+    }
+
+    // Skip the partitions of the large input that cannot produce any results
+    GlobalIndex<Partition> largeIndex = SpatialSite.getGlobalIndex(largeFs, largePath);
+    if (largeIndex != null) {
+      job.setBoolean(LargeReplicated, largeIndex.isReplicated());
+      Rectangle smallMBR = smallIndex != null ? smallIndex.getMBR() :
+          FileMBR.fileMBR(smallPath, params);
+      job.setClass(SpatialSite.FilterClass, RangeFilter.class, BlockFilter.class);
+      OperationsParams.setShape(job, RangeFilter.QueryRange, smallMBR);
+    }
+
+    Path outputPath = userOutputPath;
+    if (outputPath == null) {
+      do {
+        outputPath = new Path(largePath.getName() + ".bj_"
+            + (int) (Math.random() * 1000000));
+      } while (largeFs.exists(outputPath));
+    }
+    FileSystem outFs = outputPath.getFileSystem(job);
+
+    Shape shape = params.getShape("shape");
+    ClusterStatus clusterStatus = new JobClient(job).getClusterStatus();
+    job.setInputFormat(ShapeInputFormat.class);
+    ShapeInputFormat.setInputPaths(job, largePath);
+    job.setMapperClass(BroadcastJoinMap.class);
+    job.setMapOutputKeyClass(shape.getClass());
+    job.setMapOutputValueClass(shape.getClass());
+    job.setNumMapTasks(5 * Math.max(1, clusterStatus.getMaxMapTasks()));
+    job.setNumReduceTasks(0);
+
+    if (job.getBoolean("output", true))
+      job.setOutputFormat(TextOutputFormat.class);
+    else
+      job.setOutputFormat(NullOutputFormat.class);
+    TextOutputFormat.setOutputPath(job, outputPath);
+
+    if (OperationsParams.isLocal(job, largePath)) {
+      // Enforce local execution if explicitly set by user or for small files
+      job.set("mapred.job.tracker", "local");
+    }
+
+    RunningJob runningJob = JobClient.runJob(job);
+    Counters counters = runningJob.getCounters();
+    Counter outputRecordCounter = counters.findCounter(Task.Counter.MAP_OUTPUT_RECORDS);
+    final long resultCount = outputRecordCounter.getValue();
+
+    if (userOutputPath == null)
+      outFs.delete(outputPath, true);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Broadcast join time " + (t2 - t1) + " millis");
+    return resultCount;
+  }
+
+  private static void printUsage() {
+    System.out.println("Joins a large file with a small file by broadcasting the small file to all map tasks");
+    System.out.println("Parameters: (* marks the required parameters)");
+    System.out.println("<input file 1> - (*) Path to the first input file");
+    System.out.println("<input file 2> - (*) Path to the second input file");
+    System.out.println("<output file> - Path to output file");
+    System.out.println("shape:<point|rectangle|polygon> - (*) Type of shapes in both files");
+    System.out.println("-overwrite - Overwrite output file without notice");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    Path[] allFiles = params.getPaths();
+    if (allFiles.length < 2) {
+      System.err.println("This operation requires at least two input files");
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length == 2 && !params.checkInput()) {
+      printUsage();
+      System.exit(1);
+    }
+    if (allFiles.length > 2 && !params.checkInputOutput()) {
+      printUsage();
+      System.exit(1);
+    }
+
+    Path[] inputPaths = allFiles.length == 2 ? allFiles : params.getInputPaths();
+    Path outputPath = allFiles.length == 2 ? null : params.getOutputPath();
+
+    // Broadcast the smaller file regardless of its size
+    FileSystem fs0 = inputPaths[0].getFileSystem(params);
+    FileSystem fs1 = inputPaths[1].getFileSystem(params);
+    int smallFile = fs0.getContentSummary(inputPaths[0]).getLength() <=
+        fs1.getContentSummary(inputPaths[1]).getLength() ? 0 : 1;
+    long resultSize = broadcastJoin(inputPaths, smallFile, outputPath, params);
+    System.out.println("Result size: " + resultSize);
+  }
+}
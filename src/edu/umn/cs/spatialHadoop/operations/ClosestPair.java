@@ -13,6 +13,7 @@ import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -34,8 +35,6 @@ import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
-import org.apache.hadoop.util.IndexedSortable;
-import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.Point;
@@ -47,6 +46,7 @@ import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
+import edu.umn.cs.spatialHadoop.util.DoubleArray;
 import edu.umn.cs.spatialHadoop.util.MemoryReporter;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
@@ -83,195 +83,238 @@ public class ClosestPair {
   }
   
   /**
-   * Finds the closest pair using an in-memory divide and conquer algorithm.
+   * Finds the closest pair of the given points in memory.
    * @param points
-   * @param params
+   * @param threshold
    * @return
+   * @throws InterruptedException
    */
-  public static Pair closestPairInMemory(final Point[] points, int threshold) {
-    // Sort points by increasing x-axis
-    Arrays.sort(points);
-    
-    class SubListComputation {
-      int start, end;
-      int p1, p2;
-      double distance;
+  public static Pair closestPairInMemory(Point[] points, int threshold)
+      throws InterruptedException {
+    return closestPairInMemory(points, threshold, 1);
+  }
+
+  /**
+   * Finds the closest pair of the given points in memory using
+   * {@link #closestPairInMemory(double[], double[], int, int, int)}.
+   * @param points
+   * @param threshold
+   * @param parallelism
+   * @return
+   * @throws InterruptedException
+   */
+  public static Pair closestPairInMemory(Point[] points, int threshold,
+      int parallelism) throws InterruptedException {
+    double[] xs = new double[points.length];
+    double[] ys = new double[points.length];
+    for (int i = 0; i < points.length; i++) {
+      xs[i] = points[i].x;
+      ys[i] = points[i].y;
     }
-    
-    List<SubListComputation> sublists = new ArrayList<SubListComputation>();
-    
-    // Compute the closest pair for each sublist below the threshold
-    int start = 0;
-    while (start < points.length) {
-      int end;
-      if (start + (threshold * 3 / 2) > points.length)
-        end = points.length;
-      else
-        end = start + threshold;
-      SubListComputation closestPair = new SubListComputation();
-      closestPair.start = start;
-      closestPair.end = end;
-      closestPair.p1 = start;
-      closestPair.p2 = start+1;
-      closestPair.distance = points[start].distanceTo(points[start+1]);
-      
-      for (int i1 = start; i1 < end; i1++) {
-        for (int i2 = i1 + 1; i2 < end; i2++) {
-          double distance = points[i1].distanceTo(points[i2]);
-          if (distance < closestPair.distance) {
-            closestPair.p1 = i1;
-            closestPair.p2 = i2;
-            closestPair.distance = distance;
-          }
-        }
+    int[] closestIndexes = closestPairInMemory(xs, ys, points.length,
+        threshold, parallelism);
+    Pair closestPair = new Pair();
+    closestPair.p1 = points[closestIndexes[0]];
+    closestPair.p2 = points[closestIndexes[1]];
+    return closestPair;
+  }
+
+  /**
+   * Finds the closest pair of points stored in two arrays of coordinates
+   * using Rabin's randomized grid algorithm which runs in expected linear
+   * time. The closest pair of a random sample of n<sup>2/3</sup> points is
+   * computed recursively and its distance d is used as the cell size of a
+   * uniform grid. Any pair closer than d falls in the same or in two adjacent
+   * cells so each point is only compared to the points in its neighboring
+   * cells. Grid cells are located using hashing and the points are scanned
+   * by several threads in parallel.
+   * @param xs - the x coordinates of all points
+   * @param ys - the y coordinates of all points
+   * @param n - number of points. Only the first n entries of the two arrays
+   *   are used.
+   * @param threshold - inputs of this size or less are solved by brute force
+   * @param parallelism - maximum number of threads to use
+   * @return - the indexes of the two closest points
+   * @throws InterruptedException
+   */
+  public static int[] closestPairInMemory(final double[] xs,
+      final double[] ys, final int n, int threshold, int parallelism)
+          throws InterruptedException {
+    if (n < 2)
+      throw new IllegalArgumentException("Cannot find the closest pair of "+n+" points");
+    if (n <= Math.max(threshold, 2))
+      return closestPairBruteForce(xs, ys, n);
+
+    // 1- Compute the closest pair of a random sample of points. Selection
+    // sampling is used to pick exactly sampleSize distinct points in one scan
+    int sampleSize = Math.max(2, (int) Math.pow(n, 2.0 / 3.0));
+    int[] sample = new int[sampleSize];
+    double[] sampleXs = new double[sampleSize];
+    double[] sampleYs = new double[sampleSize];
+    Random random = new Random();
+    int numSelected = 0;
+    for (int i = 0; i < n && numSelected < sampleSize; i++) {
+      if (random.nextInt(n - i) < sampleSize - numSelected) {
+        sample[numSelected] = i;
+        sampleXs[numSelected] = xs[i];
+        sampleYs[numSelected] = ys[i];
+        numSelected++;
       }
-      sublists.add(closestPair);
-      start = end;
     }
-    
-    // Merge each pair of adjacent sublists
-    while (sublists.size() > 1) {
-      List<SubListComputation> newSublists = new ArrayList<SubListComputation>();
-      for (int ilist = 0; ilist < sublists.size() - 1; ilist += 2) {
-        SubListComputation list1 = sublists.get(ilist);
-        SubListComputation list2 = sublists.get(ilist+1);
-        SubListComputation merged = new SubListComputation();
-        merged.start = list1.start;
-        merged.end = list2.end;
-        // The closest pair of (list1 UNION list2) is either the closest pair
-        // of list1, list2, or a new closest pair with one point in list1
-        // and one point in list2
-        double mindistance = Math.min(list1.distance, list2.distance);
-        double xmin = points[list1.end - 1].x - mindistance;
-        double xmax = points[list2.start].x + mindistance;
-        int leftMargin = exponentialSearchLeft(points, list1.end, xmin);
-        int rightMargin = exponentialSearchRight(points, list2.start, xmax);
-        int minPointL = leftMargin, minPointR = list2.start;
-        double minDistanceLR = points[minPointL].distanceTo(points[minPointR]);
-        if (rightMargin - leftMargin < threshold) {
-          // Use brute force technique
-          for (int i1 = leftMargin; i1 < list1.end; i1++) {
-            for (int i2 = list2.start; i2 < rightMargin; i2++) {
-              double distance = points[i1].distanceTo(points[i2]);
-              if (distance < mindistance) {
-                minPointL = i1;
-                minPointR = i2;
-                minDistanceLR = distance;
-              }
+    int[] samplePair = closestPairInMemory(sampleXs, sampleYs, sampleSize,
+        threshold, parallelism);
+    sampleXs = sampleYs = null;
+    final int[] closestPair = {sample[samplePair[0]], sample[samplePair[1]]};
+    final double cellSize = Math.sqrt(distanceSq(xs, ys, closestPair[0], closestPair[1]));
+    if (cellSize == 0)
+      return closestPair; // Duplicate points, cannot find a closer pair
+
+    // 2- Hash all points to the cells of a grid with cell size of d
+    double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < n; i++) {
+      minX = Math.min(minX, xs[i]);
+      minY = Math.min(minY, ys[i]);
+    }
+    final double x1 = minX, y1 = minY;
+    final int bucketMask = (Integer.highestOneBit(n - 1) << 1) - 1;
+    final int[] buckets = new int[n];
+    Parallel.forEach(n, new RunnableRange<Object>() {
+      @Override
+      public Object run(int i1, int i2) {
+        for (int i = i1; i < i2; i++)
+          buckets[i] = bucket(gridCell(xs[i], x1, cellSize),
+              gridCell(ys[i], y1, cellSize), bucketMask);
+        return null;
+      }
+    }, parallelism);
+    // Counting sort the points by bucket
+    final int[] bucketStarts = new int[bucketMask + 2];
+    for (int i = 0; i < n; i++)
+      bucketStarts[buckets[i] + 1]++;
+    for (int b = 0; b <= bucketMask; b++)
+      bucketStarts[b + 1] += bucketStarts[b];
+    final int[] sortedPoints = new int[n];
+    int[] bucketPointers = Arrays.copyOf(bucketStarts, bucketMask + 1);
+    for (int i = 0; i < n; i++)
+      sortedPoints[bucketPointers[buckets[i]]++] = i;
+    bucketPointers = null;
+
+    // 3- Compare each point to the points in its own cell and in the four
+    // cells to the right and top of it. The other four neighbors are covered
+    // when the points in those cells are scanned.
+    final long[][] neighborOffsets = {{1, -1}, {1, 0}, {1, 1}, {0, 1}};
+    List<int[]> localClosestPairs = Parallel.forEach(n, new RunnableRange<int[]>() {
+      @Override
+      public int[] run(int i1, int i2) {
+        int[] localClosestPair = null;
+        double minDistanceSq = cellSize * cellSize;
+        for (int iSorted = i1; iSorted < i2; iSorted++) {
+          int i = sortedPoints[iSorted];
+          long cx = gridCell(xs[i], x1, cellSize);
+          long cy = gridCell(ys[i], y1, cellSize);
+          // Points in the same cell that come later in the same bucket
+          int bucketEnd = bucketStarts[buckets[i] + 1];
+          for (int jSorted = iSorted + 1; jSorted < bucketEnd; jSorted++) {
+            int j = sortedPoints[jSorted];
+            if (gridCell(xs[j], x1, cellSize) != cx ||
+                gridCell(ys[j], y1, cellSize) != cy)
+              continue;
+            double distanceSq = distanceSq(xs, ys, i, j);
+            if (distanceSq < minDistanceSq) {
+              minDistanceSq = distanceSq;
+              localClosestPair = new int[] {i, j};
             }
           }
-        } else {
-          // Use a y-sort technique
-          final int[] rPoints = new int[rightMargin - list2.start];
-          for (int i = 0; i < rPoints.length; i++)
-            rPoints[i] = i + list2.start;
-          IndexedSortable ysort = new IndexedSortable() {
-            @Override
-            public void swap(int i, int j) {
-              int temp = rPoints[i]; rPoints[i] = rPoints[j]; rPoints[j] = temp;
-            }
-            
-            @Override
-            public int compare(int i, int j) {
-              double dy = points[rPoints[i]].y - points[rPoints[j]].y;
-              if (dy < 0) return -1; if (dy > 0) return 1; return 0;
-            }
-          };
-          new QuickSort().sort(ysort, 0, rPoints.length);
-          int rpoint1 = 0, rpoint2 = 0;
-          for (int ilPoint = leftMargin; ilPoint < list1.end; ilPoint++) {
-            Point lPoint = points[ilPoint];
-            while (rpoint1 < rPoints.length && lPoint.y - points[rPoints[rpoint1]].y > mindistance)
-              rpoint1++;
-            while (rpoint2 < rPoints.length && points[rPoints[rpoint2]].y - lPoint.y < mindistance)
-              rpoint2++;
-            for (int rpoint = rpoint1; rpoint < rpoint2; rpoint++) {
-              double distance = lPoint.distanceTo(points[rPoints[rpoint]]);
-              if (distance < minDistanceLR) {
-                minPointL = ilPoint;
-                minPointR = rPoints[rpoint];
-                minDistanceLR = distance;
+          // Points in the neighboring cells
+          for (long[] offset : neighborOffsets) {
+            long ncx = cx + offset[0], ncy = cy + offset[1];
+            int b = bucket(ncx, ncy, bucketMask);
+            for (int jSorted = bucketStarts[b]; jSorted < bucketStarts[b + 1]; jSorted++) {
+              int j = sortedPoints[jSorted];
+              if (gridCell(xs[j], x1, cellSize) != ncx ||
+                  gridCell(ys[j], y1, cellSize) != ncy)
+                continue;
+              double distanceSq = distanceSq(xs, ys, i, j);
+              if (distanceSq < minDistanceSq) {
+                minDistanceSq = distanceSq;
+                localClosestPair = new int[] {i, j};
               }
             }
           }
         }
-        
-        if (minDistanceLR < mindistance) {
-          // The closest pair is in the middle (between list1 and list2)
-          merged.distance = minDistanceLR;
-          merged.p1 = minPointL;
-          merged.p2 = minPointR;
-        } else if (list1.distance < list2.distance) {
-          // The closest pair is in list1
-          merged.distance = list1.distance;
-          merged.p1 = list1.p1;
-          merged.p2 = list1.p2;
-        } else {
-          // The closest pair is in list2
-          merged.distance = list2.distance;
-          merged.p1 = list2.p1;
-          merged.p2 = list2.p2;
+        return localClosestPair;
+      }
+    }, parallelism);
+
+    int[] result = closestPair;
+    double minDistanceSq = cellSize * cellSize;
+    for (int[] localClosestPair : localClosestPairs) {
+      if (localClosestPair != null) {
+        double distanceSq = distanceSq(xs, ys, localClosestPair[0], localClosestPair[1]);
+        if (distanceSq < minDistanceSq) {
+          minDistanceSq = distanceSq;
+          result = localClosestPair;
         }
-        
-        newSublists.add(merged);
       }
-      sublists = newSublists;
     }
-    
-    Pair closestPair = new Pair();
-    closestPair.p1 = points[sublists.get(0).p1];
-    closestPair.p2 = points[sublists.get(0).p2];
-    return closestPair;
+    return result;
   }
 
   /**
-   * Exponential search on the first point with x-coordinate larger than the
-   * given xmin.
-   * @param points
-   * @param bound2
-   * @param xmin
+   * Finds the closest pair by comparing all pairs of points.
+   * @param xs
+   * @param ys
+   * @param n
    * @return
    */
-  static int exponentialSearchLeft(Point[] points, int bound2, double xmin) {
-    int size = 1;
-    while (bound2 - size > 0 && points[bound2 - size].x > xmin)
-      size *= 2;
-    int bound1 = Math.max(0, bound2 - size);
-    // Binary search in the given boundary
-    while (bound1 < bound2) {
-      int m = (bound1 + bound2) / 2;
-      if (points[m].x >= xmin)
-        bound2 = m;
-      else
-        bound1 = m + 1;
+  static int[] closestPairBruteForce(double[] xs, double[] ys, int n) {
+    int[] closestPair = {0, 1};
+    double minDistanceSq = distanceSq(xs, ys, 0, 1);
+    for (int i = 0; i < n; i++) {
+      for (int j = i + 1; j < n; j++) {
+        double distanceSq = distanceSq(xs, ys, i, j);
+        if (distanceSq < minDistanceSq) {
+          minDistanceSq = distanceSq;
+          closestPair[0] = i;
+          closestPair[1] = j;
+        }
+      }
     }
-    return bound1;
+    return closestPair;
   }
-  
+
+  private static double distanceSq(double[] xs, double[] ys, int i, int j) {
+    double dx = xs[i] - xs[j];
+    double dy = ys[i] - ys[j];
+    return dx * dx + dy * dy;
+  }
+
   /**
-   * Exponential search on the first point with x-coordinate less than the
-   * given xmax.
-   * @param points Array of all points
-   * @param bound1 The first item to start the search
-   * @param xmax The value of x to searc for
+   * Returns the index of the grid column or row that contains a coordinate
+   * @param v
+   * @param min
+   * @param cellSize
    * @return
    */
-  static int exponentialSearchRight(Point[] points, int bound1, double xmax) {
-    int size = 1;
-    while (bound1 + size <= points.length && points[bound1 + size - 1].x > xmax)
-      size *= 2;
-    int bound2 = Math.min(points.length, bound1 + size);
-    // Binary search in the given boundary
-    while (bound1 < bound2) {
-      int m = (bound1 + bound2) / 2;
-      if (points[m].x >= xmax)
-        bound2 = m;
-      else
-        bound1 = m + 1;
-    }
-    return bound1;
+  private static long gridCell(double v, double min, double cellSize) {
+    return (long) ((v - min) / cellSize);
   }
-  
+
+  /**
+   * Maps a grid cell to one of the hash buckets
+   * @param cx
+   * @param cy
+   * @param bucketMask
+   * @return
+   */
+  private static int bucket(long cx, long cy, int bucketMask) {
+    long h = cx * 0x9E3779B97F4A7C15L + cy;
+    h ^= h >>> 33;
+    h *= 0xFF51AFD7ED558CCDL;
+    h ^= h >>> 33;
+    return (int) h & bucketMask;
+  }
+
   /**
    * The map function computes the closest pair for a partition and returns all
    * points that can possibly contribute to the global closest pair. This
@@ -297,13 +340,12 @@ public class ClosestPair {
     protected void map(Rectangle key, Iterable<Point> values, Context context)
         throws IOException, InterruptedException {
       IntWritable column = new IntWritable();
-      List<Point> points = new ArrayList<Point>();
+      PointBuffer points = new PointBuffer();
       for (Point point : values)
-        points.add(point.clone());
-      
-      Pair pair = closestPairInMemory(points.toArray(new Point[points.size()]),
-          context.getConfiguration().getInt(BruteForceThreshold, 100));
-      
+        points.add(point);
+      if (points.size() == 0)
+        return;
+
       // Output the two closest points as well as all points within the minimum
       // distance of the partition boundary
       if (key.isValid()) {
@@ -311,23 +353,86 @@ public class ClosestPair {
         if (col < 0)
           col = -col - 1;
         column.set(col);
-        
-        double minDistance = pair.getDistance();
+
+        if (points.size() < 2) {
+          context.write(column, points.get(0));
+          return;
+        }
+        int[] pair = closestPairInMemory(points.xs.underlyingArray(),
+            points.ys.underlyingArray(), points.size(),
+            context.getConfiguration().getInt(BruteForceThreshold, 100),
+            context.getConfiguration().getInt("parallel", 1));
+
+        double minDistance = Math.sqrt(distanceSq(points.xs.underlyingArray(),
+            points.ys.underlyingArray(), pair[0], pair[1]));
         Rectangle innerRectangle = key.buffer(-minDistance, -minDistance);
-        for (Point p : points) {
-          if (!innerRectangle.contains(p))
-            context.write(column, p);
+        for (int i = 0; i < points.size(); i++) {
+          // Write p1 and p2 even if they are not close to the boundary
+          if (i == pair[0] || i == pair[1] ||
+              !innerRectangle.contains(points.xs.get(i), points.ys.get(i)))
+            context.write(column, points.get(i));
         }
-        
-        // Write p1 and p2 if they have not been written using the previous loop
-        if (innerRectangle.contains(pair.p1))
-          context.write(column, (Point) pair.p1);
-        if (innerRectangle.contains(pair.p2))
-          context.write(column, (Point) pair.p2);
       }
     }
   }
-  
+
+  /**
+   * Stores points in two arrays of coordinates rather than an array of
+   * objects. The point objects are kept only if they are of a subclass of
+   * {@link Point} that carries more information than the coordinates.
+   */
+  static class PointBuffer {
+    DoubleArray xs = new DoubleArray();
+    DoubleArray ys = new DoubleArray();
+    /**Copies of all added points if they are not plain points*/
+    List<Point> shapes;
+    /**A point reused to return plain points*/
+    Point temp;
+
+    void add(Point p) {
+      if (temp == null) {
+        temp = p.clone();
+        if (p.getClass() != Point.class)
+          shapes = new ArrayList<Point>();
+      }
+      xs.add(p.x);
+      ys.add(p.y);
+      if (shapes != null)
+        shapes.add(p.clone());
+    }
+
+    void append(PointBuffer another) {
+      if (another.size() == 0)
+        return;
+      if (temp == null) {
+        temp = another.temp;
+        if (another.shapes != null)
+          shapes = new ArrayList<Point>();
+      }
+      xs.append(another.xs);
+      ys.append(another.ys);
+      if (shapes != null)
+        shapes.addAll(another.shapes);
+    }
+
+    int size() {
+      return xs.size();
+    }
+
+    /**
+     * Returns the point at the given index. The returned object might be
+     * reused by subsequent calls.
+     * @param i
+     * @return
+     */
+    Point get(int i) {
+      if (shapes != null)
+        return shapes.get(i);
+      temp.set(xs.get(i), ys.get(i));
+      return temp;
+    }
+  }
+
   /**
    * The reduce
    * @author 
@@ -347,15 +452,21 @@ public class ClosestPair {
         points.add(point.clone());
         mbr.expand(point);
       }
+      final NullWritable dummyNull = NullWritable.get();
+      if (points.size() < 2) {
+        for (Point p : points)
+          context.write(dummyNull, p);
+        return;
+      }
       
       Pair pair = closestPairInMemory(points.toArray(new Point[points.size()]),
-          context.getConfiguration().getInt(BruteForceThreshold, 100));
+          context.getConfiguration().getInt(BruteForceThreshold, 100),
+          context.getConfiguration().getInt("parallel", 1));
       
       // Output the two closest points as well as all points within the minimum
       // distance of the partition boundary
       double minDistance = pair.getDistance();
       Rectangle innerRectangle = mbr.buffer(-minDistance, -minDistance);
-      final NullWritable dummyNull = NullWritable.get();
       for (Point p : points) {
         if (!innerRectangle.contains(p))
           context.write(dummyNull, p);
@@ -468,7 +579,9 @@ public class ClosestPair {
     Job job = Job.getInstance(params);
     SpatialInputFormat3.setInputPaths(job, inPaths);
     final List<InputSplit> splits = inputFormat.getSplits(job);
-    final Point[][] allLists = new Point[splits.size()][];
+    final PointBuffer[] allLists = new PointBuffer[splits.size()];
+    final int parallelism = params.getInt("parallel",
+        Runtime.getRuntime().availableProcessors());
     
     // 2- Read all input points in memory
     LOG.info("Reading points from "+splits.size()+" splits");
@@ -478,7 +591,7 @@ public class ClosestPair {
         int numPoints = 0;
         for (int i = i1; i < i2; i++) {
           try {
-            List<Point> points = new ArrayList<Point>();
+            PointBuffer points = new PointBuffer();
             FileSplit fsplit = (FileSplit) splits.get(i);
             final RecordReader<Rectangle, Iterable<Point>> reader =
                 inputFormat.createRecordReader(fsplit, null);
@@ -494,12 +607,12 @@ public class ClosestPair {
             while (reader.nextKeyValue()) {
               Iterable<Point> pts = reader.getCurrentValue();
               for (Point p : pts) {
-                points.add(p.clone());
+                points.add(p);
               }
             }
             reader.close();
             numPoints += points.size();
-            allLists[i] = points.toArray(new Point[points.size()]);
+            allLists[i] = points;
           } catch (IOException e) {
             throw new RuntimeException("Error reading file", e);
           } catch (InterruptedException e) {
@@ -508,25 +621,26 @@ public class ClosestPair {
         }
         return numPoints;
       }
-    }, params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
+    }, parallelism);
     
     int totalNumPoints = 0;
     for (int numPoints : numsPoints)
       totalNumPoints += numPoints;
     
     LOG.info("Read "+totalNumPoints+" points and merging into one list");
-    Point[] allPoints = new Point[totalNumPoints];
-    int pointer = 0;
-    
+    PointBuffer allPoints = new PointBuffer();
     for (int iList = 0; iList < allLists.length; iList++) {
-      System.arraycopy(allLists[iList], 0, allPoints, pointer, allLists[iList].length);
-      pointer += allLists[iList].length;
+      allPoints.append(allLists[iList]);
       allLists[iList] = null; // To let the GC collect it
     }
     
-    LOG.info("Computing closest-pair for "+allPoints.length+" points");
-    Pair closestPair = closestPairInMemory(allPoints,
-        params.getInt(BruteForceThreshold, 100));
+    LOG.info("Computing closest-pair for "+allPoints.size()+" points");
+    int[] closestIndexes = closestPairInMemory(allPoints.xs.underlyingArray(),
+        allPoints.ys.underlyingArray(), allPoints.size(),
+        params.getInt(BruteForceThreshold, 100), parallelism);
+    Pair closestPair = new Pair();
+    closestPair.p1 = allPoints.get(closestIndexes[0]).clone();
+    closestPair.p2 = allPoints.get(closestIndexes[1]).clone();
     return closestPair;
   }
   
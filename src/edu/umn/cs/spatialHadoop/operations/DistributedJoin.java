@@ -11,9 +11,14 @@ package edu.umn.cs.spatialHadoop.operations;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -45,8 +50,6 @@ import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.mapred.lib.CombineFileSplit;
 import org.apache.hadoop.mapred.lib.NullOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
-import org.apache.hadoop.util.IndexedSortable;
-import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.CellInfo;
@@ -72,6 +75,8 @@ import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
 import edu.umn.cs.spatialHadoop.operations.Repartition.RepartitionMap;
 import edu.umn.cs.spatialHadoop.operations.Repartition.RepartitionMapNoReplication;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 import edu.umn.cs.spatialHadoop.util.Progressable;
 
 /**
@@ -761,6 +766,8 @@ public class DistributedJoin {
 		private boolean inactiveMode;
 		private boolean isFilterOnly;
 		private int shapesThresholdPerOnce;
+		/**Number of threads used to join each pair of shape lists*/
+		private int parallelism;
 		
 		@Override
 		public void configure(JobConf job) {
@@ -771,6 +778,7 @@ public class DistributedJoin {
 			inactiveMode = OperationsParams.getInactiveModeFlag(job, InactiveMode);
 			isFilterOnly = OperationsParams.getFilterOnlyModeFlag(job, isFilterOnlyMode);
 			shapesThresholdPerOnce = OperationsParams.getJoiningThresholdPerOnce(job, JoiningThresholdPerOnce);
+			parallelism = job.getInt("parallel", 1);
 		}
 
 		@Override
@@ -783,7 +791,16 @@ public class DistributedJoin {
 			final FileSystem fs = indexDir.getFileSystem(new Configuration());
 			GlobalIndex<Partition> gIndex = SpatialSite.getGlobalIndex(fs,
 					indexDir);
-			
+			ResultCollector2<Shape, Shape> collector = new ResultCollector2<Shape, Shape>() {
+				@Override
+				public void collect(Shape r, Shape s) {
+				  try {
+				    output.collect(r, s);
+				  } catch (IOException e) {
+				    e.printStackTrace();
+				  }	
+				}
+			};
 			
 			// Get collected shapes from the repartition phase
 			while (shapes.hasNext()) {
@@ -825,33 +842,8 @@ public class DistributedJoin {
 									
 									// Join two arrays using the plane sweep
 									// algorithm
-									if(isFilterOnly){
-										SpatialAlgorithms.SpatialJoin_planeSweepFilterOnly(
-												r, selectedSShapes,
-												new ResultCollector2<Shape, Shape>() {
-													@Override
-													public void collect(Shape r, Shape s) {
-													  try {
-													    output.collect(r, s);
-													  } catch (IOException e) {
-													    e.printStackTrace();
-													  }	
-													}
-												}, reporter);
-									}else{
-										SpatialAlgorithms.SpatialJoin_planeSweep(
-												r, selectedSShapes,
-												new ResultCollector2<Shape, Shape>() {
-													@Override
-													public void collect(Shape r, Shape s) {
-													  try {
-													    output.collect(r, s);
-													  } catch (IOException e) {
-													    e.printStackTrace();
-													  }	
-													}
-												}, reporter);										
-									}
+									joinLists(r, selectedSShapes, isFilterOnly,
+											collector, reporter, parallelism);
 									
 			
 									reporter.progress();	
@@ -1005,10 +997,8 @@ public class DistributedJoin {
 	 * @throws IOException
 	 * @throws InterruptedException 
 	 */
-	@SuppressWarnings("unchecked")
 	public static long distributedJoinSmart(final Path[] inputFiles,
 			Path userOutputPath, OperationsParams params) throws IOException, InterruptedException {
-		Path[] originalInputFiles = inputFiles.clone();
 		FileSystem outFs = inputFiles[0].getFileSystem(params);
 		Path outputPath = userOutputPath;
 		if (outputPath == null) {
@@ -1018,94 +1008,324 @@ public class DistributedJoin {
 			} while (outFs.exists(outputPath));
 		}
 
-		// Decide whether to do a repartition step or not
-		int cost_with_repartition, cost_without_repartition;
-		final FileStatus[] fStatus = new FileStatus[inputFiles.length];
-		for (int i_file = 0; i_file < inputFiles.length; i_file++) {
-			// TODO work with folders. Calculate size more accurately
-			FileSystem fs = inputFiles[i_file].getFileSystem(params);
-			fStatus[i_file] = fs.getFileStatus(inputFiles[i_file]);
+		// Choose the cheapest plan based on the statistics of the inputs
+		JoinPlanner.Plan plan = JoinPlanner.plan(inputFiles, params);
+		long result_size;
+		switch (plan.algorithm) {
+		case SJMR:
+			result_size = SJMR.sjmr(inputFiles, outputPath, params);
+			break;
+		case REPARTITION:
+			// Repartition a copy to keep the input paths of the caller
+			Path[] files = inputFiles.clone();
+			repartitionStep(files, plan.selectedFile, params);
+			result_size = DistributedJoin.joinStep(files, outputPath, params);
+			break;
+		case BROADCAST:
+			result_size = BroadcastJoin.broadcastJoin(inputFiles, plan.selectedFile,
+					outputPath, params);
+			break;
+		default:
+			// Redistribute join the two files as is
+			result_size = DistributedJoin.joinStep(inputFiles, outputPath,
+					params);
 		}
 
-		// Sort files by length (size)
-		IndexedSortable filesBySize = new IndexedSortable() {
-			@Override
-			public void swap(int i, int j) {
-				Path tmp1 = inputFiles[i];
-				inputFiles[i] = inputFiles[j];
-				inputFiles[j] = tmp1;
-
-				FileStatus tmp2 = fStatus[i];
-				fStatus[i] = fStatus[j];
-				fStatus[j] = tmp2;
-			}
+		if (userOutputPath == null)
+			outFs.delete(outputPath, true);
 
-			@Override
-			public int compare(int i, int j) {
-				if (fStatus[i].getLen() < fStatus[j].getLen())
-					return 0;
-				return fStatus[i].getLen() < fStatus[j].getLen() ? -1 : 1;
-			}
-		};
-
-		new QuickSort().sort(filesBySize, 0, inputFiles.length);
-		GlobalIndex<Partition>[] gIndexes = new GlobalIndex[fStatus.length];
-		int[] numBlocks = new int[fStatus.length];
-		for (int i_file = 0; i_file < fStatus.length; i_file++) {
-			gIndexes[i_file] = SpatialSite.getGlobalIndex(outFs,
-					fStatus[i_file].getPath());
-			if (gIndexes[i_file] != null) {
-				// Number of blocks is equal to number of partitions in global
-				// index
-				numBlocks[i_file] = gIndexes[i_file].size();
-			} else if (fStatus[i_file].isDir()) {
-				// Add up number of file system blocks in all subfiles of this
-				// directory
-				numBlocks[i_file] = 0;
-				FileStatus[] subfiles = outFs.listStatus(inputFiles[i_file],
-						SpatialSite.NonHiddenFileFilter);
-				for (FileStatus subfile : subfiles) {
-					numBlocks[i_file] += outFs.getFileBlockLocations(subfile,
-							0, subfile.getLen()).length;
+		return result_size;
+	}
+
+	/**
+	 * Joins two lists of shapes with the plane-sweep algorithm using the given
+	 * number of threads. The first list is split into contiguous ranges and
+	 * each thread joins one range with the whole second list. Calls to the
+	 * output collector are serialized so it does not need to be thread-safe.
+	 * @param r
+	 * @param s
+	 * @param filterOnly - join the MBRs of the shapes only
+	 * @param output
+	 * @param reporter
+	 * @param parallelism
+	 * @return - number of result pairs
+	 * @throws IOException
+	 */
+	static int joinLists(final List<Shape> r, final List<Shape> s,
+			final boolean filterOnly, final ResultCollector2<Shape, Shape> output,
+			final Reporter reporter, int parallelism) throws IOException {
+		if (parallelism <= 1 || r.size() < 2) {
+			return filterOnly ?
+					SpatialAlgorithms.SpatialJoin_planeSweepFilterOnly(r, s, output, reporter) :
+					SpatialAlgorithms.SpatialJoin_planeSweep(r, s, output, reporter);
+		}
+		final ResultCollector2<Shape, Shape> syncOutput = output == null ? null :
+			new ResultCollector2<Shape, Shape>() {
+				@Override
+				public synchronized void collect(Shape r, Shape s) {
+					output.collect(r, s);
+				}
+			};
+		try {
+			List<Integer> counts = Parallel.forEach(r.size(), new RunnableRange<Integer>() {
+				@Override
+				public Integer run(int i1, int i2) {
+					try {
+						// Each thread sweeps over its own copies of the lists
+						List<Shape> rRange = new ArrayList<Shape>(r.subList(i1, i2));
+						List<Shape> sCopy = new ArrayList<Shape>(s);
+						return filterOnly ?
+								SpatialAlgorithms.SpatialJoin_planeSweepFilterOnly(rRange, sCopy, syncOutput, reporter) :
+								SpatialAlgorithms.SpatialJoin_planeSweep(rRange, sCopy, syncOutput, reporter);
+					} catch (IOException e) {
+						throw new RuntimeException("Error joining shapes", e);
+					}
+				}
+			}, parallelism);
+			int count = 0;
+			for (int c : counts)
+				count += c;
+			return count;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while joining shapes", e);
+		}
+	}
+
+	/**
+	 * Reads all shapes in one partition file into memory
+	 * @param fs
+	 * @param file
+	 * @param stockShape
+	 * @return
+	 * @throws IOException
+	 */
+	private static List<Shape> readPartition(FileSystem fs, Path file,
+			Shape stockShape) throws IOException {
+		List<Shape> shapes = new ArrayList<Shape>();
+		// The partition size in the global index does not include the local
+		// index, if any, so the whole file is read
+		ShapeIterRecordReader reader = new ShapeIterRecordReader(fs.open(file),
+				0, fs.getFileStatus(file).getLen());
+		try {
+			reader.setShape(stockShape);
+			Rectangle cellInfo = reader.createKey();
+			ShapeIterator iter = reader.createValue();
+			while (reader.next(cellInfo, iter)) {
+				for (Shape shape : iter) {
+					if (shape.getMBR() != null)
+						shapes.add(shape.clone());
 				}
-			} else {
-				// Number of file system blocks in input file
-				numBlocks[i_file] = outFs.getFileBlockLocations(
-						fStatus[i_file], 0, fStatus[i_file].getLen()).length;
 			}
+		} finally {
+			reader.close();
+		}
+		return shapes;
+	}
+
+	/**
+	 * Returns the global index of the given file. If the file is not indexed,
+	 * a global index is created where each data file is one partition that
+	 * covers the whole space.
+	 * @param fs
+	 * @param path
+	 * @return
+	 * @throws IOException
+	 */
+	private static GlobalIndex<Partition> localGlobalIndex(FileSystem fs,
+			Path path) throws IOException {
+		GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, path);
+		if (gindex != null)
+			return gindex;
+		FileStatus[] files = fs.getFileStatus(path).isDir() ?
+				fs.listStatus(path, SpatialSite.NonHiddenFileFilter) :
+				new FileStatus[] {fs.getFileStatus(path)};
+		Partition[] partitions = new Partition[files.length];
+		for (int i = 0; i < files.length; i++) {
+			partitions[i] = new Partition(files[i].getPath().toString(),
+					new CellInfo(i + 1, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+							Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY));
 		}
+		gindex = new GlobalIndex<Partition>();
+		gindex.bulkLoad(partitions);
+		return gindex;
+	}
 
-		cost_without_repartition = gIndexes[0] != null && gIndexes[1] != null ? GlobalIndex
-				.spatialJoin(gIndexes[0], gIndexes[1], null)
-				: (numBlocks[0] * numBlocks[1]);
-		// Total cost = Cost of repartition (=== 2 * numBlocks[0]) +
-		// cost of join (=== numBlocks[0] + numBlocks[1])
-		cost_with_repartition = numBlocks[0] * 3 + numBlocks[1];
-		LOG.info("Cost with repartition is estimated to "
-				+ cost_with_repartition);
-		LOG.info("Cost without repartition is estimated to "
-				+ cost_without_repartition);
-		boolean need_repartition = cost_with_repartition < cost_without_repartition;
-		if (need_repartition) {
-			int file_to_repartition = selectRepartition(inputFiles, params);
-			repartitionStep(inputFiles, file_to_repartition, params);
+	/**
+	 * A partition of the second file that is joined with several partitions
+	 * of the first file. Its shapes are read on first use and kept until all
+	 * pairs that need it have been joined.
+	 */
+	private static class SharedPartition {
+		final Path file;
+		/**Number of pairs that still need this partition*/
+		int pendingPairs;
+		/**Shapes of this partition or null if not read or already released*/
+		List<Shape> shapes;
+
+		SharedPartition(Path file) {
+			this.file = file;
 		}
 
-		// Restore inputFiles to the original order by user
-		if (inputFiles[1] != originalInputFiles[1]) {
-			Path temp = inputFiles[0];
-			inputFiles[0] = inputFiles[1];
-			inputFiles[1] = temp;
+		/**
+		 * Returns the shapes of this partition reading them if needed. Only the
+		 * threads that need this partition wait for the read.
+		 * @param fs
+		 * @param stockShape
+		 * @return
+		 * @throws IOException
+		 */
+		synchronized List<Shape> acquire(FileSystem fs, Shape stockShape)
+				throws IOException {
+			if (shapes == null)
+				shapes = readPartition(fs, file, stockShape.clone());
+			return shapes;
 		}
 
-		// Redistribute join the larger file and the partitioned file
-		long result_size = DistributedJoin.joinStep(inputFiles, outputPath,
-				params);
+		/**
+		 * Marks one pair that uses this partition as done. The shapes are
+		 * released after the last pair.
+		 */
+		synchronized void release() {
+			if (--pendingPairs == 0)
+				shapes = null;
+		}
+	}
 
-		if (userOutputPath == null)
-			outFs.delete(outputPath, true);
+	/**
+	 * Joins two files on the local machine using multiple threads. The pairs
+	 * of overlapping partitions are found by joining the global indexes of the
+	 * two files and are grouped by the partition of the first file. Each
+	 * thread repeatedly takes the next partition of the first file that has
+	 * not been joined yet, reads it, and joins it with all its overlapping
+	 * partitions of the second file. Partitions of the second file are shared
+	 * between threads so each partition of either file is read only once.
+	 * A non-indexed file is treated as one partition per data file.
+	 * @param inFiles
+	 * @param outPath - the output file or <code>null</code> to only count the
+	 *  results
+	 * @param params
+	 * @return - number of result pairs
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@SuppressWarnings("unchecked")
+	public static long joinLocal(final Path[] inFiles, Path outPath,
+			final OperationsParams params) throws IOException, InterruptedException {
+		long t1 = System.currentTimeMillis();
+		final FileSystem[] fs = new FileSystem[inFiles.length];
+		final GlobalIndex<Partition>[] gindexes = new GlobalIndex[inFiles.length];
+		for (int i_file = 0; i_file < inFiles.length; i_file++) {
+			fs[i_file] = inFiles[i_file].getFileSystem(params);
+			gindexes[i_file] = localGlobalIndex(fs[i_file], inFiles[i_file]);
+		}
+		final boolean replicated = gindexes[0].isReplicated() || gindexes[1].isReplicated();
+		final Shape stockShape = params.getShape("shape");
+		final boolean filterOnly = params.getBoolean("filter-only", isFilterOnly);
+
+		// Find all pairs of overlapping partitions and group them by the
+		// partition of the first file
+		final Map<String, List<Partition>> overlaps = new HashMap<String, List<Partition>>();
+		final Map<String, SharedPartition> sharedPartitions = new HashMap<String, SharedPartition>();
+		int numPairs = GlobalIndex.spatialJoin(gindexes[0], gindexes[1],
+				new ResultCollector2<Partition, Partition>() {
+			@Override
+			public void collect(Partition p1, Partition p2) {
+				List<Partition> p2s = overlaps.get(p1.filename);
+				if (p2s == null)
+					overlaps.put(p1.filename, p2s = new ArrayList<Partition>());
+				p2s.add(p2);
+				SharedPartition shared = sharedPartitions.get(p2.filename);
+				if (shared == null)
+					sharedPartitions.put(p2.filename,
+							shared = new SharedPartition(new Path(inFiles[1], p2.filename)));
+				shared.pendingPairs++;
+			}
+		});
+		// Process the partitions of the first file from left to right so that
+		// a shared partition is released soon after it is first read
+		final List<Partition> p1s = new ArrayList<Partition>();
+		for (Partition p1 : gindexes[0])
+			if (overlaps.containsKey(p1.filename))
+				p1s.add(p1);
+		Collections.sort(p1s, new Comparator<Partition>() {
+			@Override
+			public int compare(Partition a, Partition b) {
+				if (a.x1 != b.x1)
+					return Double.compare(a.x1, b.x1);
+				return Double.compare(a.y1, b.y1);
+			}
+		});
+		LOG.info("Joining "+numPairs+" pairs of "+p1s.size()+"x"+
+				sharedPartitions.size()+" partitions");
+
+		final PrintStream writer = outPath == null ? null :
+			new PrintStream(outPath.getFileSystem(params).create(outPath));
+		final AtomicInteger nextPartition = new AtomicInteger();
+		int parallelism = Math.min(p1s.size(),
+				params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
+		List<Long> counts = Parallel.forEach(Math.max(1, parallelism), new RunnableRange<Long>() {
+			@Override
+			public Long run(int i1, int i2) {
+				final Text temp = new Text();
+				long count = 0;
+				try {
+					int i_p1;
+					while ((i_p1 = nextPartition.getAndIncrement()) < p1s.size()) {
+						Partition p1 = p1s.get(i_p1);
+						List<Shape> r = readPartition(fs[0],
+								new Path(inFiles[0], p1.filename), stockShape.clone());
+						for (Partition p2 : overlaps.get(p1.filename)) {
+							SharedPartition shared = sharedPartitions.get(p2.filename);
+							List<Shape> s = shared.acquire(fs[1], stockShape);
+							// Reference point duplicate avoidance for replicated partitions
+							final Rectangle dupAvoidanceMBR = replicated ? p1.getIntersection(p2) : null;
+							final int[] pairCount = new int[1];
+							ResultCollector2<Shape, Shape> collector = new ResultCollector2<Shape, Shape>() {
+								@Override
+								public void collect(Shape r, Shape s) {
+									if (dupAvoidanceMBR != null) {
+										double intersectionX = Math.max(r.getMBR().x1, s.getMBR().x1);
+										double intersectionY = Math.max(r.getMBR().y1, s.getMBR().y1);
+										if (!dupAvoidanceMBR.contains(intersectionX, intersectionY))
+											return;
+									}
+									pairCount[0]++;
+									if (writer != null) {
+										synchronized (writer) {
+											temp.clear();
+											writer.print(r.toText(temp));
+											writer.print(",");
+											temp.clear();
+											writer.println(s.toText(temp));
+										}
+									}
+								}
+							};
+							// The plane sweep does not modify its input lists so the shared
+							// partition can be joined by several threads at the same time
+							if (filterOnly)
+								SpatialAlgorithms.SpatialJoin_planeSweepFilterOnly(r, s, collector, null);
+							else
+								SpatialAlgorithms.SpatialJoin_planeSweep(r, s, collector, null);
+							shared.release();
+							count += pairCount[0];
+						}
+					}
+				} catch (IOException e) {
+					throw new RuntimeException("Error joining partitions", e);
+				}
+				return count;
+			}
+		}, Math.max(1, parallelism));
+		if (writer != null)
+			writer.close();
 
-		return result_size;
+		long resultSize = 0;
+		for (long count : counts)
+			resultSize += count;
+		long t2 = System.currentTimeMillis();
+		System.out.println("Join time " + (t2 - t1) + " millis");
+		return resultSize;
 	}
 
 	private static long selfJoinLocal(Path in, Path out, OperationsParams params)
@@ -1176,6 +1396,8 @@ public class DistributedJoin {
 		System.out
 				.println("direct-join:<decision> - (*) Decision to directly join after repartitioning (yes|no)");
 		System.out.println("-overwrite - Overwrite output file without notice");
+		System.out.println("-local - Join on the local machine without MapReduce");
+		System.out.println("parallel:<n> - Number of threads to join partitions in local mode and in reducers");
 
 		GenericOptionsParser.printGenericCommandUsage(System.out);
 	}
@@ -1256,7 +1478,10 @@ public class DistributedJoin {
 				result_size = joinStep(inputPaths, outputPath, params);
 			}
 		} else if (repartition.equals("no")) {
-			result_size = joinStep(inputPaths, outputPath, params);
+			if (OperationsParams.isLocal(params, inputPaths))
+				result_size = joinLocal(inputPaths, outputPath, params);
+			else
+				result_size = joinStep(inputPaths, outputPath, params);
 		} else {
 			throw new RuntimeException("Illegal parameter repartition:"
 					+ repartition);
@@ -0,0 +1,333 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+
+/**
+ * Chooses the algorithm of a binary spatial join based on the statistics
+ * stored in the global indexes of the two inputs, i.e., the size, record
+ * count and MBR of each partition. The cost of each plan is estimated as the
+ * number of bytes it reads and writes, plus a fixed overhead per task and a
+ * per-record cost of the plane-sweep join. The cheapest plan is selected.
+ */
+public class JoinPlanner {
+  private static final Log LOG = LogFactory.getLog(JoinPlanner.class);
+
+  /**Estimated overhead of running one task in bytes of input*/
+  static final long TaskOverhead = 8 * 1024 * 1024;
+
+  /**Estimated cost of joining one record with the plane-sweep in bytes of input*/
+  static final long RecordJoinCost = 64;
+
+  /**Number of bytes read from a non-indexed file to estimate its record size*/
+  private static final int SampleSize = 64 * 1024;
+
+  /**The algorithms that can be used to join two files*/
+  public static enum Algorithm {
+    /**Join each pair of overlapping blocks directly (redistribute join)*/
+    DIRECT,
+    /**Repartition one file using the partitions of the other, then join*/
+    REPARTITION,
+    /**Partition both files using a uniform grid in the map phase (SJMR)*/
+    SJMR,
+    /**Send the small file to all map tasks that scan the large file*/
+    BROADCAST
+  }
+
+  /**
+   * Statistics of one input file as stored in its global index, or as
+   * estimated from the file system for non-indexed files.
+   */
+  public static class InputStats {
+    public Path path;
+    /**The global index of the file or <code>null</code> if not indexed*/
+    public GlobalIndex<Partition> gindex;
+    /**Total size in bytes*/
+    public long size;
+    /**Total number of records. Estimated for non-indexed files*/
+    public long recordCount;
+    /**Number of partitions for indexed files or blocks for heap files*/
+    public int numBlocks;
+    /**Whether the partitions are locally indexed with an R-tree*/
+    public boolean rtree;
+
+    @Override
+    public String toString() {
+      return String.format("%s: %s, %d bytes, %d records, %d %s", path,
+          gindex == null ? "heap file" : "indexed", size, recordCount,
+          numBlocks, gindex == null ? "blocks" : "partitions");
+    }
+  }
+
+  /**A join plan along with its estimated cost*/
+  public static class Plan implements Comparable<Plan> {
+    public final Algorithm algorithm;
+    /**
+     * The index of the file to repartition for {@link Algorithm#REPARTITION}
+     * or to broadcast for {@link Algorithm#BROADCAST}
+     */
+    public final int selectedFile;
+    /**Estimated cost in bytes*/
+    public final long cost;
+    /**A human readable breakdown of the cost*/
+    public final String details;
+
+    public Plan(Algorithm algorithm, int selectedFile, long cost,
+        String details) {
+      this.algorithm = algorithm;
+      this.selectedFile = selectedFile;
+      this.cost = cost;
+      this.details = details;
+    }
+
+    @Override
+    public int compareTo(Plan other) {
+      if (this.cost != other.cost)
+        return this.cost < other.cost ? -1 : 1;
+      return this.algorithm.compareTo(other.algorithm);
+    }
+
+    @Override
+    public String toString() {
+      String name = selectedFile >= 0 ?
+          algorithm + "(file #" + selectedFile + ")" : algorithm.toString();
+      return String.format("%s cost=%,d [%s]", name, cost, details);
+    }
+  }
+
+  private JoinPlanner() { /* Enforce static use only */ }
+
+  /**
+   * Collects the statistics of the given file
+   * @param path
+   * @param conf
+   * @return
+   * @throws IOException
+   */
+  public static InputStats collectStats(Path path, Configuration conf)
+      throws IOException {
+    FileSystem fs = path.getFileSystem(conf);
+    InputStats stats = new InputStats();
+    stats.path = path;
+    stats.gindex = SpatialSite.getGlobalIndex(fs, path);
+    if (stats.gindex != null) {
+      for (Partition p : stats.gindex) {
+        stats.size += p.size;
+        stats.recordCount += p.recordCount;
+      }
+      stats.numBlocks = stats.gindex.size();
+      stats.rtree = SpatialSite.isRTree(fs, path);
+    } else {
+      FileStatus fileStatus = fs.getFileStatus(path);
+      FileStatus[] files = fileStatus.isDir() ?
+          fs.listStatus(path, SpatialSite.NonHiddenFileFilter) :
+          new FileStatus[] {fileStatus};
+      for (FileStatus file : files) {
+        stats.size += file.getLen();
+        stats.numBlocks += fs.getFileBlockLocations(file, 0, file.getLen()).length;
+      }
+      if (files.length > 0)
+        stats.recordCount = stats.size / estimateRecordSize(fs, files[0].getPath());
+    }
+    return stats;
+  }
+
+  /**
+   * Estimates the average size of one record by counting the lines at the
+   * beginning of the given file
+   * @param fs
+   * @param file
+   * @return
+   * @throws IOException
+   */
+  private static long estimateRecordSize(FileSystem fs, Path file)
+      throws IOException {
+    byte[] buffer = new byte[SampleSize];
+    InputStream in = fs.open(file);
+    int length = 0;
+    try {
+      int read;
+      while (length < buffer.length &&
+          (read = in.read(buffer, length, buffer.length - length)) > 0)
+        length += read;
+    } finally {
+      in.close();
+    }
+    int numLines = 0;
+    for (int i = 0; i < length; i++)
+      if (buffer[i] == '\n')
+        numLines++;
+    return numLines == 0 ? Math.max(1, length) : length / numLines;
+  }
+
+  /**
+   * Estimates the cost of all plans that can be used to join the two files
+   * @param stats
+   * @param maxBroadcastSize - the maximum size of a file to broadcast
+   * @return - all feasible plans sorted by cost
+   */
+  public static List<Plan> estimatePlans(InputStats[] stats,
+      long maxBroadcastSize) {
+    List<Plan> plans = new ArrayList<Plan>();
+    plans.add(estimateDirectJoin(stats));
+    for (int i_file = 0; i_file < 2; i_file++) {
+      // A file can only be repartitioned using the partitions of an indexed file
+      if (stats[1 - i_file].gindex != null)
+        plans.add(estimateRepartitionJoin(stats, i_file));
+    }
+    // SJMR parses the input as lines of text which does not work for R-trees
+    if (!stats[0].rtree && !stats[1].rtree)
+      plans.add(estimateSJMR(stats));
+    // Only a file that fits in the memory of each map task can be broadcast
+    int smallFile = stats[0].size <= stats[1].size ? 0 : 1;
+    if (stats[smallFile].size <= maxBroadcastSize)
+      plans.add(estimateBroadcastJoin(stats, smallFile));
+    Collections.sort(plans);
+    return plans;
+  }
+
+  /**
+   * Estimates the cost of the redistribute join which joins every pair of
+   * overlapping partitions (or blocks) in one map task.
+   * @param stats
+   * @return
+   */
+  static Plan estimateDirectJoin(InputStats[] stats) {
+    final long[] pairStats = new long[4]; // #pairs, bytes, records1, records2
+    if (stats[0].gindex != null && stats[1].gindex != null) {
+      // Same pairs selected by DistributedJoin.SpatialJoinFilter
+      GlobalIndex.spatialJoin(stats[0].gindex, stats[1].gindex,
+          new ResultCollector2<Partition, Partition>() {
+        @Override
+        public void collect(Partition r, Partition s) {
+          Rectangle intersection = r.getIntersection(s);
+          if (intersection != null
+              && intersection.getWidth() * intersection.getHeight() > 0) {
+            pairStats[0]++;
+            pairStats[1] += r.size + s.size;
+            pairStats[2] += r.recordCount;
+            pairStats[3] += s.recordCount;
+          }
+        }
+      });
+    } else {
+      // Every block in one file is joined with every block in the other file
+      pairStats[0] = (long) stats[0].numBlocks * stats[1].numBlocks;
+      pairStats[1] = stats[0].size * stats[1].numBlocks +
+          stats[1].size * stats[0].numBlocks;
+      pairStats[2] = stats[0].recordCount * stats[1].numBlocks;
+      pairStats[3] = stats[1].recordCount * stats[0].numBlocks;
+    }
+    long joinedRecords = pairStats[2] + pairStats[3];
+    long cost = pairStats[1] + joinedRecords * RecordJoinCost +
+        pairStats[0] * TaskOverhead;
+    return new Plan(Algorithm.DIRECT, -1, cost, String.format(
+        "%d block pairs, %,d bytes read, %,d records joined",
+        pairStats[0], pairStats[1], joinedRecords));
+  }
+
+  /**
+   * Estimates the cost of repartitioning one file using the partitions of
+   * the other file and then joining each partition with its counterpart.
+   * @param stats
+   * @param fileToRepartition
+   * @return
+   */
+  static Plan estimateRepartitionJoin(InputStats[] stats, int fileToRepartition) {
+    InputStats r = stats[fileToRepartition];
+    InputStats t = stats[1 - fileToRepartition];
+    // The repartition job reads the file and writes it back
+    long repartitionCost = 2 * r.size +
+        (r.numBlocks + t.numBlocks) * TaskOverhead;
+    // Each partition is joined with the matching repartitioned partition
+    long joinCost = r.size + t.size + (r.recordCount + t.recordCount) * RecordJoinCost +
+        t.numBlocks * TaskOverhead;
+    return new Plan(Algorithm.REPARTITION, fileToRepartition,
+        repartitionCost + joinCost, String.format(
+        "repartition %,d bytes into %d partitions, join %d partition pairs",
+        r.size, t.numBlocks, t.numBlocks));
+  }
+
+  /**
+   * Estimates the cost of SJMR which partitions both files with a uniform
+   * grid in the map phase and joins each grid cell in the reduce phase.
+   * @param stats
+   * @return
+   */
+  static Plan estimateSJMR(InputStats[] stats) {
+    long totalSize = stats[0].size + stats[1].size;
+    long totalRecords = stats[0].recordCount + stats[1].recordCount;
+    // Both files are read and shuffled then all records are joined
+    long cost = 2 * totalSize + totalRecords * RecordJoinCost +
+        (stats[0].numBlocks + stats[1].numBlocks) * TaskOverhead;
+    return new Plan(Algorithm.SJMR, -1, cost, String.format(
+        "shuffle %,d bytes, %,d records joined", totalSize, totalRecords));
+  }
+
+  /**
+   * Estimates the cost of the broadcast join which sends the small file to
+   * all map tasks of the large file. Each task reads the whole small file
+   * and indexes it in memory, then it probes the index with its split.
+   * @param stats
+   * @param smallFile
+   * @return
+   */
+  static Plan estimateBroadcastJoin(InputStats[] stats, int smallFile) {
+    InputStats small = stats[smallFile];
+    InputStats large = stats[1 - smallFile];
+    long perTaskCost = TaskOverhead + small.size +
+        small.recordCount * RecordJoinCost;
+    long cost = large.size + large.recordCount * RecordJoinCost +
+        large.numBlocks * perTaskCost;
+    return new Plan(Algorithm.BROADCAST, smallFile, cost, String.format(
+        "broadcast %,d bytes to %d tasks, %,d records probed",
+        small.size, large.numBlocks, large.recordCount));
+  }
+
+  /**
+   * Selects the cheapest plan to join the two given files and logs the
+   * estimated cost of all plans.
+   * @param files
+   * @param conf
+   * @return
+   * @throws IOException
+   */
+  public static Plan plan(Path[] files, Configuration conf) throws IOException {
+    InputStats[] stats = new InputStats[files.length];
+    for (int i_file = 0; i_file < files.length; i_file++) {
+      stats[i_file] = collectStats(files[i_file], conf);
+      LOG.info("Join input #" + i_file + " " + stats[i_file]);
+    }
+    List<Plan> plans = estimatePlans(stats, conf.getLong(
+        BroadcastJoin.MaxBroadcastSize, BroadcastJoin.DefaultMaxBroadcastSize));
+    for (Plan plan : plans)
+      LOG.info("Join plan " + plan);
+    Plan selected = plans.get(0);
+    LOG.info("Selected join plan " + selected);
+    return selected;
+  }
+}
@@ -214,18 +214,18 @@ public class KNN {
 
   /**
    * Mapper for KNN MapReduce. Calculates the distance between a shape and 
-   * the query point.
+   * the query point. Only the k nearest shapes seen by this mapper are kept
+   * in a bounded max-heap and written out when the mapper finishes.
    * @author eldawy
    *
    */
   public static class KNNMap<S extends Shape> extends
     Mapper<Rectangle, Iterable<Shape>, NullWritable, TextWithDistance> {
-    /**A temporary object to be used for output*/
-    private final TextWithDistance outputValue = new TextWithDistance();
-    
     /**User query*/
     private Point queryPoint;
     private int k;
+    /**The k nearest objects found so far by this mapper*/
+    private KNNObjects<TextWithDistance> knn;
 
     @Override
     protected void setup(Context context) throws IOException,
@@ -234,37 +234,51 @@ public class KNN {
       Configuration conf = context.getConfiguration();
       queryPoint = (Point) OperationsParams.getShape(conf, "point");
       k = conf.getInt("k", 1);
+      knn = new KNNObjects<TextWithDistance>(k);
+    }
+    
+    /**
+     * Adds a shape to the current list of k nearest objects if it is closer
+     * than the farthest one. The shape is serialized only if it is added.
+     * @param shape
+     * @param distance
+     */
+    private void offer(Shape shape, double distance) {
+      if (k == 0)
+        return;
+      if (knn.size() == k && distance > knn.top().distance)
+        return;
+      TextWithDistance candidate = new TextWithDistance();
+      candidate.distance = distance;
+      shape.toText(candidate.text);
+      knn.insert(candidate);
     }
     
     @Override
     protected void map(Rectangle key, Iterable<Shape> shapes, final Context context)
         throws IOException, InterruptedException {
-      final NullWritable dummy = NullWritable.get();
       if (shapes instanceof RTree) {
         ((RTree<S>)shapes).knn(queryPoint.x, queryPoint.y, k, new ResultCollector2<S, Double>() {
           @Override
           public void collect(S shape, Double distance) {
-            try {
-              outputValue.distance = distance;
-              outputValue.text.clear();
-              shape.toText(outputValue.text);
-              context.write(dummy, outputValue);
-            } catch (IOException e) {
-              e.printStackTrace();
-            } catch (InterruptedException e) {
-              e.printStackTrace();
-            }
+            offer(shape, distance);
           }
         });
       } else {
         for (Shape shape : shapes) {
-          outputValue.distance = shape.distanceTo(queryPoint.x, queryPoint.y);
-          outputValue.text.clear();
-          shape.toText(outputValue.text);
-          context.write(dummy, outputValue);
+          offer(shape, shape.distanceTo(queryPoint.x, queryPoint.y));
         }
       }
     }
+    
+    @Override
+    protected void cleanup(Context context) throws IOException,
+        InterruptedException {
+      final NullWritable dummy = NullWritable.get();
+      while (knn.size() > 0)
+        context.write(dummy, knn.pop());
+      super.cleanup(context);
+    }
   }
   
   /**
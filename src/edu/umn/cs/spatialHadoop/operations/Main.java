@@ -60,6 +60,10 @@ public class Main {
           "Computes the spatial join between two input files using the " +
           "SJMR algorithm");
       
+      pgd.addClass("bjoin", BroadcastJoin.class,
+          "Computes the spatial join between a large and a small file by " +
+          "broadcasting the small file to all map tasks");
+      
       pgd.addClass("index", Indexer.class,
           "Spatially index a file using a specific indexer");
       
@@ -20,6 +20,7 @@ import org.apache.hadoop.io.Text;
 
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -83,14 +84,16 @@ public class OSMEdge implements Shape {
 
   @Override
   public void fromText(Text text) {
-    edgeId = TextSerializerHelper.consumeLong(text, ',');
-    nodeId1 = TextSerializerHelper.consumeLong(text, ',');
-    lat1 = TextSerializerHelper.consumeDouble(text, ',');
-    lon1 = TextSerializerHelper.consumeDouble(text, ',');
-    nodeId2 = TextSerializerHelper.consumeLong(text, ',');
-    lat2 = TextSerializerHelper.consumeDouble(text, ',');
-    lon2 = TextSerializerHelper.consumeDouble(text, ',');
-    wayId = TextSerializerHelper.consumeLong(text, ',');
+    TextCursor cursor = new TextCursor(text);
+    edgeId = cursor.nextLong(',');
+    nodeId1 = cursor.nextLong(',');
+    lat1 = cursor.nextDouble(',');
+    lon1 = cursor.nextDouble(',');
+    nodeId2 = cursor.nextLong(',');
+    lat2 = cursor.nextDouble(',');
+    lon2 = cursor.nextDouble(',');
+    wayId = cursor.nextLong(',');
+    cursor.consume();
     tags = text.toString();
   }
 
@@ -0,0 +1,92 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.util;
+
+/**
+ * Stores an expandable array of primitive doubles
+ */
+public class DoubleArray {
+  /**Stores all elements*/
+  protected double[] array;
+  /**Number of entries occupied in array*/
+  protected int size;
+
+  public DoubleArray() {
+    this.array = new double[16];
+  }
+
+  public void add(double x) {
+    append(x);
+  }
+
+  public void append(double x) {
+    expand(1);
+    array[size++] = x;
+  }
+
+  public void append(double[] xs, int offset, int count) {
+    expand(count);
+    System.arraycopy(xs, offset, array, size, count);
+    this.size += count;
+  }
+
+  public void append(DoubleArray another) {
+    append(another.array, 0, another.size);
+  }
+
+  /**
+   * Ensures that the array can accept the additional entries
+   * @param additionalSize
+   */
+  protected void expand(int additionalSize) {
+    if (size + additionalSize > array.length) {
+      int newCapacity = Math.max(size + additionalSize, array.length * 2);
+      double[] newArray = new double[newCapacity];
+      System.arraycopy(array, 0, newArray, 0, size);
+      this.array = newArray;
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Returns the underlying array. The returned array might have a length that
+   * is larger than {@link #size()}. The values of those additional slots are
+   * undefined and should not be used.
+   * @return
+   */
+  public double[] underlyingArray() {
+    return array;
+  }
+
+  /**
+   * Converts this DoubleArray into a native Java array that with a length
+   * equal to {@link #size()}.
+   * @return
+   */
+  public double[] toArray() {
+    double[] compactArray = new double[size];
+    System.arraycopy(array, 0, compactArray, 0, size);
+    return compactArray;
+  }
+
+  public double get(int index) {
+    return array[index];
+  }
+
+  public void clear() {
+    size = 0;
+  }
+}
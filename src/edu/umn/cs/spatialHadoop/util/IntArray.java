@@ -188,10 +188,30 @@ public class IntArray implements Writable, Iterable<Integer> {
     return array[index];
   }
   
+  public void set(int index, int value) {
+    array[index] = value;
+  }
+  
   public int pop() {
     return array[--size];
   }
   
+  /**
+   * Returns the last element without removing it. This allows using the
+   * array as a stack along with {@link #add(int)} and {@link #pop()}.
+   * @return
+   */
+  public int peek() {
+    return array[size - 1];
+  }
+  
+  /**
+   * Removes all elements while keeping the underlying array for reuse
+   */
+  public void clear() {
+    size = 0;
+  }
+  
   public boolean remove(int value) {
     for (int i = 0; i < size; i++) {
       if (array[i] == value) {
@@ -0,0 +1,94 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.util;
+
+/**
+ * An expandable binary min-heap of primitive longs. It can be used instead of
+ * a {@link java.util.PriorityQueue} of {@link Long} to avoid boxing, e.g.,
+ * to store pairs of integer IDs packed into one long.
+ */
+public class LongMinHeap {
+  /**Stores all elements in a binary heap layout*/
+  protected long[] heap;
+  /**Number of entries occupied in the heap*/
+  protected int size;
+
+  public LongMinHeap() {
+    this(16);
+  }
+
+  public LongMinHeap(int initialCapacity) {
+    this.heap = new long[Math.max(1, initialCapacity)];
+  }
+
+  /**
+   * Inserts a new value in the heap
+   * @param x
+   */
+  public void push(long x) {
+    if (size == heap.length) {
+      long[] newHeap = new long[heap.length * 2];
+      System.arraycopy(heap, 0, newHeap, 0, size);
+      this.heap = newHeap;
+    }
+    // Sift up
+    int i = size++;
+    while (i > 0) {
+      int parent = (i - 1) >>> 1;
+      if (heap[parent] <= x)
+        break;
+      heap[i] = heap[parent];
+      i = parent;
+    }
+    heap[i] = x;
+  }
+
+  /**
+   * Returns the smallest value without removing it
+   * @return
+   */
+  public long peek() {
+    return heap[0];
+  }
+
+  /**
+   * Removes and returns the smallest value in the heap
+   * @return
+   */
+  public long pop() {
+    long top = heap[0];
+    long x = heap[--size];
+    // Sift down the last element starting at the root
+    int i = 0;
+    int half = size >>> 1;
+    while (i < half) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && heap[child + 1] < heap[child])
+        child++;
+      if (x <= heap[child])
+        break;
+      heap[i] = heap[child];
+      i = child;
+    }
+    heap[i] = x;
+    return top;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  public void clear() {
+    size = 0;
+  }
+}
@@ -11,14 +11,16 @@ package edu.umn.cs.spatialHadoop.visualization;
 import java.awt.Color;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -36,11 +38,20 @@ public class FrequencyMap extends Canvas {
   
   public static enum SmoothType {Flat, Gaussian};
   
-  /**The kernel to use for stamping points*/
-  protected float[][] kernel;
+  /**
+   * The kernel to use for stamping points. The kernel is separable, i.e.,
+   * the weight at (dx, dy) is kernelX[dx + radius] * kernelY[dy + radius].
+   */
+  protected float[] kernelX, kernelY;
+
+  /**
+   * The range [kernelStart[i], kernelEnd[i]) of non-zero weights in row i of
+   * the kernel as offsets in kernelX. Used to stamp a disk for the flat kernel.
+   */
+  protected int[] kernelStart, kernelEnd;
   
-  /**Frequencies*/
-  protected float[][] frequencies;
+  /**Frequencies in row-major order, i.e., pixel (x, y) is at y * width + x*/
+  protected float[] frequencies;
 
   /**Radius to smooth nearboy points*/
   private int radius;
@@ -64,11 +75,9 @@ public class FrequencyMap extends Canvas {
    * @param height
    */
   public FrequencyMap(Rectangle inputMBR, int width, int height, int radius, SmoothType smoothType) {
+    super(inputMBR, width, height);
     System.setProperty("java.awt.headless", "true");
-    this.inputMBR = inputMBR;
-    this.width = width;
-    this.height = height;
-    this.frequencies = new float[width][height];
+    this.frequencies = new float[width * height];
     this.min = -1; this.max = -2;
     initKernel(radius, smoothType);
   }
@@ -81,27 +90,33 @@ public class FrequencyMap extends Canvas {
   protected void initKernel(int radius, SmoothType smoothType) {
     this.radius = radius;
     // initialize the kernel according to the radius and kernel type
-    kernel = new float[radius * 2][radius * 2];
+    kernelX = new float[radius * 2];
+    kernelY = new float[radius * 2];
+    kernelStart = new int[radius * 2];
+    kernelEnd = new int[radius * 2];
     switch (smoothType) {
     case Flat:
-      for (int dx = -radius; dx < radius; dx++) {
-        for (int dy = -radius; dy < radius; dy++) {
-          if (dx * dx + dy * dy < radius * radius) {
-            kernel[dx + radius][dy + radius] = 1.0f;
-          }
-        }
+      // A disk of ones. Each row is a contiguous range of columns
+      Arrays.fill(kernelX, 1.0f);
+      Arrays.fill(kernelY, 1.0f);
+      for (int dy = -radius; dy < radius; dy++) {
+        int dx = -radius;
+        while (dx < radius && dx * dx + dy * dy >= radius * radius)
+          dx++;
+        kernelStart[dy + radius] = dx + radius;
+        kernelEnd[dy + radius] = -dx + radius + 1;
       }
       break;
     case Gaussian:
       int stdev = 8;
-      // Apply two-dimensional Gaussian function
+      // The two-dimensional Gaussian function is the product of two
+      // one-dimensional Gaussian functions
       // http://en.wikipedia.org/wiki/Gaussian_function#Two-dimensional_Gaussian_function
-      for (int dx = -radius; dx < radius; dx++) {
-        for (int dy = -radius; dy < radius; dy++) {
-          kernel[dx + radius][dy + radius] = (float) Math.exp(-(dx * dx + dy * dy)
-              / (2.0 * stdev * stdev));
-        }
+      for (int d = -radius; d < radius; d++) {
+        kernelX[d + radius] = kernelY[d + radius] =
+            (float) Math.exp(-(d * d) / (2.0 * stdev * stdev));
       }
+      Arrays.fill(kernelEnd, radius * 2);
     }
   }
   
@@ -118,20 +133,20 @@ public class FrequencyMap extends Canvas {
   @Override
   public void write(DataOutput out) throws IOException {
     super.write(out);
+    // Most pixels of a partial heat map are zeros which compress well even
+    // at the fastest compression level
+    ByteBuffer bbuffer = ByteBuffer.allocate(frequencies.length * 4);
+    bbuffer.asFloatBuffer().put(frequencies);
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    deflater.setInput(bbuffer.array());
+    deflater.finish();
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    GZIPOutputStream gzos = new GZIPOutputStream(baos);
-    ByteBuffer bbuffer = ByteBuffer.allocate(getHeight() * 4 + 8);
-    bbuffer.putInt(getWidth());
-    bbuffer.putInt(getHeight());
-    gzos.write(bbuffer.array(), 0, bbuffer.position());
-    for (int x = 0; x < getWidth(); x++) {
-      bbuffer.clear();
-      for (int y = 0; y < getHeight(); y++) {
-        bbuffer.putFloat(frequencies[x][y]);
-      }
-      gzos.write(bbuffer.array(), 0, bbuffer.position());
+    byte[] buffer = new byte[64 * 1024];
+    while (!deflater.finished()) {
+      int size = deflater.deflate(buffer);
+      baos.write(buffer, 0, size);
     }
-    gzos.close();
+    deflater.end();
     
     byte[] serializedData = baos.toByteArray();
     out.writeInt(serializedData.length);
@@ -144,28 +159,26 @@ public class FrequencyMap extends Canvas {
     int length = in.readInt();
     byte[] serializedData = new byte[length];
     in.readFully(serializedData);
-    ByteArrayInputStream bais = new ByteArrayInputStream(serializedData);
-    GZIPInputStream gzis = new GZIPInputStream(bais);
-    
-    byte[] buffer = new byte[8];
-    gzis.read(buffer);
-    ByteBuffer bbuffer = ByteBuffer.wrap(buffer);
-    int width = bbuffer.getInt();
-    int height = bbuffer.getInt();
     // Reallocate memory only if needed
-    if (width != this.getWidth() || height != this.getHeight())
-      frequencies = new float[width][height];
-    buffer = new byte[getHeight() * 4];
-    for (int x = 0; x < getWidth(); x++) {
+    if (frequencies == null || frequencies.length != width * height)
+      frequencies = new float[width * height];
+    byte[] data = new byte[frequencies.length * 4];
+    Inflater inflater = new Inflater();
+    inflater.setInput(serializedData);
+    try {
       int size = 0;
-      while (size < buffer.length) {
-        size += gzis.read(buffer, size, buffer.length - size);
-      }
-      bbuffer = ByteBuffer.wrap(buffer);
-      for (int y = 0; y < getHeight(); y++) {
-        frequencies[x][y] = bbuffer.getFloat();
+      while (size < data.length) {
+        int inflated = inflater.inflate(data, size, data.length - size);
+        if (inflated == 0 && (inflater.finished() || inflater.needsInput()))
+          throw new EOFException("Frequency map data is truncated");
+        size += inflated;
       }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupted frequency map data", e);
+    } finally {
+      inflater.end();
     }
+    ByteBuffer.wrap(data).asFloatBuffer().get(frequencies);
   }
   
   public void mergeWith(FrequencyMap another) {
@@ -174,35 +187,65 @@ public class FrequencyMap extends Canvas {
     int ymin = Math.max(0, offset.y);
     int xmax = Math.min(this.getWidth(), another.getWidth() + offset.x);
     int ymax = Math.min(this.getHeight(), another.getHeight() + offset.y);
-    for (int x = xmin; x < xmax; x++) {
-      for (int y = ymin; y < ymax; y++) {
-        this.frequencies[x][y] +=
-            another.frequencies[x - offset.x][y - offset.y];
-      }
+    float[] src = another.frequencies;
+    float[] dst = this.frequencies;
+    for (int y = ymin; y < ymax; y++) {
+      // Add one row at a time
+      int srcPos = (y - offset.y) * another.width + (xmin - offset.x);
+      int dstPos = y * this.width + xmin;
+      for (int i = 0; i < xmax - xmin; i++)
+        dst[dstPos + i] += src[srcPos + i];
     }
   }
   
+  /**
+   * Adds a frequency map of the same size that covers one quadrant of this
+   * map after scaling it down to half of its width and height. Each cell
+   * receives the sum of the four cells it covers.
+   * @param child
+   */
+  public void downsampleFrom(FrequencyMap child) {
+    Rectangle mbr = this.getInputMBR();
+    int offsetX = (int) Math.round((child.getInputMBR().x1 - mbr.x1) * width / mbr.getWidth());
+    int offsetY = (int) Math.round((child.getInputMBR().y1 - mbr.y1) * height / mbr.getHeight());
+    int xmin = Math.max(0, offsetX);
+    int ymin = Math.max(0, offsetY);
+    int xmax = Math.min(this.width, offsetX + (child.width + 1) / 2);
+    int ymax = Math.min(this.height, offsetY + (child.height + 1) / 2);
+    float[] src = child.frequencies;
+    float[] dst = this.frequencies;
+    for (int y = ymin; y < ymax; y++) {
+      int sy1 = (y - offsetY) * 2;
+      int sy2 = Math.min(child.height, sy1 + 2);
+      for (int x = xmin; x < xmax; x++) {
+        int sx1 = (x - offsetX) * 2;
+        int sx2 = Math.min(child.width, sx1 + 2);
+        float sum = 0;
+        for (int sy = sy1; sy < sy2; sy++)
+          for (int sx = sx1; sx < sx2; sx++)
+            sum += src[sy * child.width + sx];
+        dst[y * this.width + x] += sum;
+      }
+    }
+  }
+
   public BufferedImage asImage() {
     if (min >= max) {
       // Values not set. Autodetect
       min = Float.MAX_VALUE;
       max = -Float.MAX_VALUE;
-      for (int x = 0; x < this.getWidth(); x++) {
-        for (int y = 0; y < this.getHeight(); y++) {
-          if (frequencies[x][y] < min)
-            min = frequencies[x][y];
-          if (frequencies[x][y] > max)
-            max = frequencies[x][y];
-        }
+      for (float frequency : frequencies) {
+        if (frequency < min)
+          min = frequency;
+        if (frequency > max)
+          max = frequency;
       }
     }
+    int[] pixels = new int[frequencies.length];
+    for (int i = 0; i < frequencies.length; i++)
+      pixels[i] = calculateColor(frequencies[i], min, max).getRGB();
     BufferedImage image = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
-    for (int x = 0; x < this.getWidth(); x++) {
-      for (int y = 0; y < this.getHeight(); y++) {
-        Color color = calculateColor(frequencies[x][y], min, max);
-        image.setRGB(x, y, color.getRGB());
-      }
-    }
+    image.setRGB(0, 0, getWidth(), getHeight(), pixels, 0, getWidth());
     return image;
   }
 
@@ -212,24 +255,22 @@ public class FrequencyMap extends Canvas {
    * @param cy
    */
   public void addPoint(int cx, int cy) {
-    for (int dx = -radius; dx < radius; dx++) {
-      for (int dy = -radius; dy < radius; dy++) {
-        int imgx = cx + dx;
-        int imgy = cy + dy;
-        if (imgx >= 0 && imgx < getWidth() && imgy >= 0 && imgy < getHeight())
-          frequencies[imgx][imgy] += kernel[dx + radius][dy + radius];
-      }
+    // Clip the kernel to the boundaries of the map
+    int ky1 = Math.max(0, radius - cy);
+    int ky2 = Math.min(2 * radius, height - cy + radius);
+    int kx1 = Math.max(0, radius - cx);
+    int kx2 = Math.min(2 * radius, width - cx + radius);
+    for (int ky = ky1; ky < ky2; ky++) {
+      float weightY = kernelY[ky];
+      int start = Math.max(kx1, kernelStart[ky]);
+      int end = Math.min(kx2, kernelEnd[ky]);
+      // Position of kernel column zero in the frequencies array
+      int base = (cy + ky - radius) * width + cx - radius;
+      for (int kx = start; kx < end; kx++)
+        frequencies[base + kx] += weightY * kernelX[kx];
     }
   }
 
-  public int getWidth() {
-    return frequencies == null? 0 : frequencies.length;
-  }
-
-  public int getHeight() {
-    return frequencies == null? 0 : frequencies[0].length;
-  }
-  
   /* The following methods are used to compute the gradient */
 
   protected Color[] colors;
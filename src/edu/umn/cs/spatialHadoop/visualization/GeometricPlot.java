@@ -70,6 +70,16 @@ public class GeometricPlot {
       ((ImageCanvas)finalLayer).mergeWith((ImageCanvas) intermediateLayer);
     }
 
+    @Override
+    public void downsample(Canvas parentLayer, Canvas childLayer) {
+      ((ImageCanvas) parentLayer).downsampleFrom((ImageCanvas) childLayer);
+    }
+
+    @Override
+    public boolean isDownsampleSupported() {
+      return true;
+    }
+
     @Override
     public void writeImage(Canvas layer, DataOutputStream out,
         boolean vflip) throws IOException {
@@ -10,6 +10,9 @@ package edu.umn.cs.spatialHadoop.visualization;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -31,6 +34,7 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
@@ -45,8 +49,13 @@ import org.mortbay.jetty.Server;
 import org.mortbay.jetty.handler.AbstractHandler;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.nasa.HDFPlot;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
+import edu.umn.cs.spatialHadoop.operations.FileMBR;
 
 public class HadoopvizServer extends AbstractHandler {
 
@@ -65,6 +74,15 @@ public class HadoopvizServer extends AbstractHandler {
   /** Shape Map **/
   private HashMap<String, String> shapeMap;
 
+  /** Cache of image tiles fetched from HDFS or rendered on demand */
+  private TileCache tileCache;
+
+  /**
+   * The MBR of the pyramid of each dataset rendered on demand keyed by the
+   * path and the modification time of the dataset
+   */
+  private HashMap<String, Rectangle> datasetMBRs;
+
   /**
    * A constructor that starts the Jetty server
    * 
@@ -81,6 +99,14 @@ public class HadoopvizServer extends AbstractHandler {
     this.shapeMap = new HashMap<String, String>();
     this.shapePath = shapePath;
     this.watermaskPath = watermaskPath;
+    long cacheMemory = params.get("tile-cache-memory") == null ?
+        64 * 1024 * 1024 : params.getSize("tile-cache-memory");
+    long cacheDisk = params.get("tile-cache-disk") == null ?
+        1024 * 1024 * 1024 : params.getSize("tile-cache-disk");
+    File cacheDir = new File(params.get("tile-cache-dir",
+        new File(System.getProperty("java.io.tmpdir"), "hadoopviz-tiles").getPath()));
+    this.tileCache = new TileCache(cacheMemory, cacheDisk, cacheDir);
+    this.datasetMBRs = new HashMap<String, Rectangle>();
     readShapeFile();
   }
 
@@ -144,8 +170,16 @@ public class HadoopvizServer extends AbstractHandler {
         handleOutput(request, response);
       } else if (target.startsWith("/hdfs/")) {
         handleHDFSFetch(request, response);
+      } else if (target.startsWith("/tiles/")) {
+        handleTileRendering(target, request, response);
       } else if (target.endsWith("/get_output_info.cgi")) {
         handleOutputInfo(request, response);
+      } else if (target.endsWith("/tile_cache_stats.cgi")) {
+        response.setContentType("application/json;charset=utf-8");
+        PrintWriter writer = response.getWriter();
+        writer.print(tileCache.getStatistics());
+        writer.close();
+        response.setStatus(HttpServletResponse.SC_OK);
       } else {
         if (target.equals("/"))
           target = "/index.html";
@@ -491,6 +525,9 @@ public class HadoopvizServer extends AbstractHandler {
 
   /**
    * This method will handle each time a file need to be fetched from HDFS.
+   * Image tiles are served from the tile cache if possible. All files are
+   * sent with an entity tag and a modification time so that browsers can
+   * revalidate them with a conditional request without transferring them.
    * 
    * @param request
    * @param response
@@ -501,29 +538,63 @@ public class HadoopvizServer extends AbstractHandler {
       FileSystem fs = outputPath.getFileSystem(commonParams);
       String path = request.getRequestURI().replace("/hdfs", "");
       Path filePath = new Path(path);
+      if (filePath.getName().endsWith("png")) {
+        response.setContentType("image/png");
+      }
 
-      LOG.info("Fetching from " + path);
-
-      FSDataInputStream resource = null;
-
-      resource = fs.open(filePath);
+      // The status is checked on every request so that a regenerated or
+      // deleted pyramid is never served from the cache
+      FileStatus fileStatus = fs.getFileStatus(filePath);
+      TileCache.TileKey tileKey = null;
+      TileIndex tileIndex = TileIndex.fromImageFileName(filePath.getName());
+      if (tileIndex != null) {
+        String fileName = filePath.getName();
+        int extensionStart = fileName.indexOf('.');
+        tileKey = new TileCache.TileKey(filePath.getParent().toString(),
+            tileIndex, extensionStart == -1 ? "" : fileName.substring(extensionStart),
+            fileStatus.getModificationTime());
+        TileCache.CachedTile tile = tileCache.get(tileKey);
+        if (tile != null) {
+          if (!isModified(request, response, tile.etag, tile.lastModified))
+            return;
+          ServletOutputStream outResponse = response.getOutputStream();
+          outResponse.write(tile.data);
+          outResponse.close();
+          response.setStatus(HttpServletResponse.SC_OK);
+          return;
+        }
+      }
 
-      if (resource == null) {
-        reportError(response, "Cannot load resource '" + filePath + "'", null);
+      LOG.info("Fetching from " + path);
+      String etag = "\"" + Long.toHexString(fileStatus.getModificationTime())
+          + "-" + Long.toHexString(fileStatus.getLen()) + "\"";
+      if (!isModified(request, response, etag,
+          fileStatus.getModificationTime()))
         return;
-      }
-      byte[] buffer = new byte[1024 * 1024];
+
+      FSDataInputStream resource = fs.open(filePath);
       ServletOutputStream outResponse = response.getOutputStream();
-      int size;
-      while ((size = resource.read(buffer)) != -1) {
-        outResponse.write(buffer, 0, size);
+      if (tileKey != null && fileStatus.getLen() <= Integer.MAX_VALUE) {
+        // Read the whole tile to add it to the cache
+        byte[] data = new byte[(int) fileStatus.getLen()];
+        try {
+          IOUtils.readFully(resource, data, 0, data.length);
+        } finally {
+          resource.close();
+        }
+        tileCache.put(tileKey, new TileCache.CachedTile(data, etag,
+            fileStatus.getModificationTime()));
+        outResponse.write(data);
+      } else {
+        byte[] buffer = new byte[1024 * 1024];
+        int size;
+        while ((size = resource.read(buffer)) != -1) {
+          outResponse.write(buffer, 0, size);
+        }
+        resource.close();
       }
-      resource.close();
       outResponse.close();
       response.setStatus(HttpServletResponse.SC_OK);
-      if (filePath.toString().endsWith("png")) {
-        response.setContentType("image/png");
-      }
     } catch (Exception e) {
       System.out.println("error happened");
       e.printStackTrace();
@@ -532,6 +603,163 @@ public class HadoopvizServer extends AbstractHandler {
     }
   }
 
+  /**
+   * Renders one tile of a dataset on demand. The target has the form
+   * /tiles/&lt;plottype&gt;/&lt;dataset&gt;/tile-&lt;level&gt;-&lt;x&gt;-&lt;y&gt;.png
+   * where plottype is either gplot or hplot. Only the partitions that
+   * overlap the tile are read so that deep levels of the pyramid are
+   * rendered quickly without precomputing them. Rendered tiles are cached.
+   * 
+   * @param target
+   * @param request
+   * @param response
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private void handleTileRendering(String target, HttpServletRequest request,
+      HttpServletResponse response) throws IOException, InterruptedException {
+    String[] parts = target.substring("/tiles/".length()).split("/");
+    TileIndex tileIndex = parts.length == 3 ?
+        TileIndex.fromImageFileName(parts[2]) : null;
+    if (tileIndex == null || !parts[2].endsWith(".png")
+        || tileIndex.level < 0 || tileIndex.level > 30
+        || tileIndex.x < 0 || tileIndex.x >= (1 << tileIndex.level)
+        || tileIndex.y < 0 || tileIndex.y >= (1 << tileIndex.level)) {
+      reportError(response, "Invalid tile '" + target + "'", null);
+      return;
+    }
+    String plotType = parts[0];
+    Class<? extends Plotter> plotterClass;
+    if (plotType.equals("gplot")) {
+      plotterClass = GeometricPlot.GeometricRasterizer.class;
+    } else if (plotType.equals("hplot")) {
+      plotterClass = HeatMapPlot.HeatMapRasterizer.class;
+    } else {
+      reportError(response, "Unsupported plot type '" + plotType + "'", null);
+      return;
+    }
+    String dataset = parts[1];
+    Path inputPath = new Path(datasetPath, dataset);
+    FileSystem fs = inputPath.getFileSystem(commonParams);
+    FileStatus datasetStatus = fs.getFileStatus(inputPath);
+    String etag = "\"" + plotType + "-"
+        + Long.toHexString(datasetStatus.getModificationTime()) + "-"
+        + tileIndex.level + "-" + tileIndex.x + "-" + tileIndex.y + "\"";
+    response.setContentType("image/png");
+
+    TileCache.TileKey tileKey = new TileCache.TileKey(inputPath + "#"
+        + plotType, tileIndex, ".png", datasetStatus.getModificationTime());
+    TileCache.CachedTile tile = tileCache.get(tileKey);
+    if (tile == null) {
+      OperationsParams params = new OperationsParams(commonParams);
+      if (plotType.equals("gplot")) {
+        params.set("color", "red");
+      }
+      if (shapeMap.get(dataset) != null) {
+        params.set("shape", shapeMap.get(dataset));
+      }
+      Rectangle inputMBR = getDatasetMBR(inputPath,
+          datasetStatus.getModificationTime(), params);
+      OperationsParams.setShape(params, "mbr", inputMBR);
+      Plotter plotter;
+      try {
+        plotter = plotterClass.newInstance();
+      } catch (InstantiationException e) {
+        throw new RuntimeException("Error creating plotter", e);
+      } catch (IllegalAccessException e) {
+        throw new RuntimeException("Error creating plotter", e);
+      }
+      plotter.configure(params);
+
+      long t1 = System.currentTimeMillis();
+      ByteArrayOutputStream image = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(image);
+      long numShapes = MultilevelPlot.plotTile(inputPath, inputMBR, tileIndex,
+          plotter, out, params);
+      out.close();
+      long t2 = System.currentTimeMillis();
+      LOG.info("Rendered " + tileIndex + " of '" + dataset + "' with "
+          + numShapes + " shapes in " + (t2 - t1) + " millis");
+      tile = new TileCache.CachedTile(image.toByteArray(), etag,
+          datasetStatus.getModificationTime());
+      tileCache.put(tileKey, tile);
+    }
+    if (!isModified(request, response, tile.etag, tile.lastModified))
+      return;
+    ServletOutputStream outResponse = response.getOutputStream();
+    outResponse.write(tile.data);
+    outResponse.close();
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  /**
+   * Returns the MBR of the pyramid of a dataset rendered on demand. This is
+   * the MBR of the dataset expanded to a square so that tiles are square.
+   * The MBR is computed again if the dataset is modified.
+   * 
+   * @param inputPath
+   * @param modificationTime - the modification time of the dataset
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private Rectangle getDatasetMBR(Path inputPath, long modificationTime,
+      OperationsParams params) throws IOException, InterruptedException {
+    String key = inputPath + "@" + modificationTime;
+    synchronized (datasetMBRs) {
+      Rectangle mbr = datasetMBRs.get(key);
+      if (mbr == null) {
+        FileSystem fs = inputPath.getFileSystem(params);
+        GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, inputPath);
+        if (gindex != null) {
+          mbr = gindex.getMBR();
+        } else {
+          OperationsParams mbrParams = new OperationsParams(params);
+          mbrParams.setBoolean("background", false);
+          mbr = FileMBR.fileMBR(inputPath, mbrParams).getMBR();
+        }
+        double size = Math.max(mbr.getWidth(), mbr.getHeight());
+        double cx = (mbr.x1 + mbr.x2) / 2;
+        double cy = (mbr.y1 + mbr.y2) / 2;
+        mbr = new Rectangle(cx - size / 2, cy - size / 2, cx + size / 2,
+            cy + size / 2);
+        datasetMBRs.put(key, mbr);
+      }
+      return mbr;
+    }
+  }
+
+  /**
+   * Adds the validators of a file to the response and checks them against
+   * the conditional headers of the request. If the client already has the
+   * latest version of the file, the response is set to 304 (Not Modified).
+   * 
+   * @param request
+   * @param response
+   * @param etag
+   * @param lastModified
+   * @return - <code>true</code> if the file has to be sent to the client
+   */
+  private boolean isModified(HttpServletRequest request,
+      HttpServletResponse response, String etag, long lastModified) {
+    response.setHeader("ETag", etag);
+    response.setDateHeader("Last-Modified", lastModified);
+    String ifNoneMatch = request.getHeader("If-None-Match");
+    boolean notModified;
+    if (ifNoneMatch != null) {
+      notModified = ifNoneMatch.equals("*") || ifNoneMatch.contains(etag);
+    } else {
+      // HTTP dates have a resolution of one second
+      long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+      notModified = ifModifiedSince != -1 &&
+          lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+    if (notModified)
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    return !notModified;
+  }
+
   /**
    * Tries to load the given resource name frmo class path if it exists. Used to
    * serve static files such as HTML pages, images and JavaScript files.
@@ -646,6 +874,12 @@ public class HadoopvizServer extends AbstractHandler {
     System.out.println("<watermask> - (*) The watermask folder.");
     System.out
         .println("port:<p> - The port to start listening to. Default: 8889");
+    System.out
+        .println("tile-cache-memory:<size> - Memory used to cache tiles. Default: 64.mb");
+    System.out
+        .println("tile-cache-disk:<size> - Local disk space used to cache tiles. Default: 1.gb");
+    System.out
+        .println("tile-cache-dir:<dir> - Local directory of cached tiles. Default: <tmp>/hadoopviz-tiles");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
 
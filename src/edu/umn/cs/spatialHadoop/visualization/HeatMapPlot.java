@@ -111,6 +111,16 @@ public class HeatMapPlot {
       ((FrequencyMap)finalLayer).mergeWith((FrequencyMap) intermediateLayer);
     }
 
+    @Override
+    public void downsample(Canvas parentLayer, Canvas childLayer) {
+      ((FrequencyMap) parentLayer).downsampleFrom((FrequencyMap) childLayer);
+    }
+
+    @Override
+    public boolean isDownsampleSupported() {
+      return true;
+    }
+
     @Override
     public void writeImage(Canvas layer, DataOutputStream out,
         boolean vflip) throws IOException {
@@ -12,13 +12,17 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
+import java.awt.image.DataBufferInt;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.EOFException;
 import java.io.IOException;
-
-import javax.imageio.ImageIO;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
@@ -75,12 +79,63 @@ public class ImageCanvas extends Canvas {
     this.color = color;
   }
   
+  /**
+   * Writes the pixels of the image in a raw format rather than an image
+   * format to avoid the cost of encoding intermediate canvases. Only the
+   * rows and columns of the bounding box of the non-empty pixels are
+   * written, compressed at the fastest level.
+   */
   @Override
   public void write(DataOutput out) throws IOException {
     super.write(out);
+    int[] pixels = getPixels();
+    // Compute the bounding box of all non-empty pixels
+    int x1 = width, y1 = height, x2 = 0, y2 = 0;
+    for (int y = 0; y < height; y++) {
+      int rowStart = y * width;
+      int x = 0;
+      while (x < width && pixels[rowStart + x] == 0)
+        x++;
+      if (x == width)
+        continue; // An empty row
+      if (y < y1)
+        y1 = y;
+      y2 = y + 1;
+      if (x < x1)
+        x1 = x;
+      int lastX = width;
+      while (pixels[rowStart + lastX - 1] == 0)
+        lastX--;
+      if (lastX > x2)
+        x2 = lastX;
+    }
+    if (y1 >= y2) {
+      // An empty image
+      out.writeInt(0);
+      out.writeInt(0);
+      out.writeInt(0);
+      out.writeInt(0);
+      return;
+    }
+    out.writeInt(x1);
+    out.writeInt(y1);
+    out.writeInt(x2);
+    out.writeInt(y2);
+    int boxWidth = x2 - x1;
+    ByteBuffer bbuffer = ByteBuffer.allocate(boxWidth * (y2 - y1) * 4);
+    IntBuffer ibuffer = bbuffer.asIntBuffer();
+    for (int y = y1; y < y2; y++)
+      ibuffer.put(pixels, y * width + x1, boxWidth);
+    Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    deflater.setInput(bbuffer.array());
+    deflater.finish();
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    ImageIO.write(getImage(), "png", baos);
-    baos.close();
+    byte[] buffer = new byte[64 * 1024];
+    while (!deflater.finished()) {
+      int size = deflater.deflate(buffer);
+      baos.write(buffer, 0, size);
+    }
+    deflater.end();
     byte[] bytes = baos.toByteArray();
     out.writeInt(bytes.length);
     out.write(bytes);
@@ -89,13 +144,55 @@ public class ImageCanvas extends Canvas {
   @Override
   public void readFields(DataInput in) throws IOException {
     super.readFields(in);
-    int length = in.readInt();
-    byte[] bytes = new byte[length];
-    in.readFully(bytes);
-    this.image = ImageIO.read(new ByteArrayInputStream(bytes));
+    // Drop any graphics associated with the previous image of this object
+    graphics = null;
+    this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
     // Calculate the scale of the image in terms of pixels per unit
     xscale = image.getWidth() / getInputMBR().getWidth();
     yscale = image.getHeight() / getInputMBR().getHeight();
+    int x1 = in.readInt();
+    int y1 = in.readInt();
+    int x2 = in.readInt();
+    int y2 = in.readInt();
+    if (y1 >= y2)
+      return; // An empty image
+    int length = in.readInt();
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    byte[] data = new byte[(x2 - x1) * (y2 - y1) * 4];
+    Inflater inflater = new Inflater();
+    inflater.setInput(bytes);
+    try {
+      int size = 0;
+      while (size < data.length) {
+        int inflated = inflater.inflate(data, size, data.length - size);
+        if (inflated == 0 && (inflater.finished() || inflater.needsInput()))
+          throw new EOFException("Image data is truncated");
+        size += inflated;
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupted image data", e);
+    } finally {
+      inflater.end();
+    }
+    int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    IntBuffer ibuffer = ByteBuffer.wrap(data).asIntBuffer();
+    for (int y = y1; y < y2; y++)
+      ibuffer.get(pixels, y * width + x1, x2 - x1);
+  }
+
+  /**
+   * Returns the pixels of the image in ARGB format in row-major order.
+   * The returned array is the backing array of the image if possible.
+   * @return
+   */
+  private int[] getPixels() {
+    BufferedImage img = getImage();
+    if (img.getType() == BufferedImage.TYPE_INT_ARGB
+        && img.getRaster().getDataBuffer() instanceof DataBufferInt
+        && ((DataBufferInt) img.getRaster().getDataBuffer()).getData().length == width * height)
+      return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    return img.getRGB(0, 0, width, height, null, 0, width);
   }
 
   public void mergeWith(ImageCanvas another) {
@@ -103,6 +200,56 @@ public class ImageCanvas extends Canvas {
     getOrCreateGrahics(false).drawImage(another.getImage(), offset.x, offset.y, null);
   }
 
+  /**
+   * Draws a canvas of the same size that covers one quadrant of this canvas
+   * after scaling it down to half of its width and height. Each pixel takes
+   * the highest opacity of the four pixels it covers so that thin lines do
+   * not fade away, and their color averaged by opacity.
+   * @param child
+   */
+  public void downsampleFrom(ImageCanvas child) {
+    Rectangle mbr = this.getInputMBR();
+    int offsetX = (int) Math.round((child.getInputMBR().x1 - mbr.x1) * width / mbr.getWidth());
+    int offsetY = (int) Math.round((child.getInputMBR().y1 - mbr.y1) * height / mbr.getHeight());
+    int x1 = Math.max(0, offsetX);
+    int y1 = Math.max(0, offsetY);
+    int x2 = Math.min(width, offsetX + (child.width + 1) / 2);
+    int y2 = Math.min(height, offsetY + (child.height + 1) / 2);
+    if (x1 >= x2 || y1 >= y2)
+      return;
+    int[] src = child.getPixels();
+    BufferedImage img = getImage();
+    int w = x2 - x1;
+    int[] dst = img.getRGB(x1, y1, w, y2 - y1, null, 0, w);
+    for (int y = y1; y < y2; y++) {
+      int sy1 = (y - offsetY) * 2;
+      int sy2 = Math.min(child.height, sy1 + 2);
+      for (int x = x1; x < x2; x++) {
+        int sx1 = (x - offsetX) * 2;
+        int sx2 = Math.min(child.width, sx1 + 2);
+        int maxAlpha = 0, sumAlpha = 0, sumR = 0, sumG = 0, sumB = 0;
+        for (int sy = sy1; sy < sy2; sy++) {
+          for (int sx = sx1; sx < sx2; sx++) {
+            int argb = src[sy * child.width + sx];
+            int alpha = argb >>> 24;
+            if (alpha == 0)
+              continue;
+            maxAlpha = Math.max(maxAlpha, alpha);
+            sumAlpha += alpha;
+            sumR += ((argb >> 16) & 0xff) * alpha;
+            sumG += ((argb >> 8) & 0xff) * alpha;
+            sumB += (argb & 0xff) * alpha;
+          }
+        }
+        if (maxAlpha == 0)
+          continue;
+        dst[(y - y1) * w + (x - x1)] = (maxAlpha << 24) | ((sumR / sumAlpha) << 16)
+            | ((sumG / sumAlpha) << 8) | (sumB / sumAlpha);
+      }
+    }
+    img.setRGB(x1, y1, w, y2 - y1, dst, 0, w);
+  }
+
   public BufferedImage getImage() {
     if (graphics != null) {
       graphics.dispose();
@@ -25,10 +25,13 @@ import javax.imageio.ImageIO;
 import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.LocalJobRunner;
@@ -46,6 +49,9 @@ import edu.umn.cs.spatialHadoop.core.GridInfo;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.ZCurvePartitioner;
 import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
@@ -69,6 +75,9 @@ public class MultilevelPlot {
 
   /**The maximum level on which flat partitioning can be used*/
   private static final String FlatPartitioningLevelThreshold = "MultilevelPlot.FlatPartitioningLevelThreshold";
+
+  /**Build the deep levels of the pyramid bottom up from the deepest level*/
+  public static final String BottomUpAggregation = "MultilevelPlot.BottomUp";
   
   public static class FlatPartitionMap extends
       Mapper<Rectangle, Iterable<? extends Shape>, TileIndex, Canvas> {
@@ -426,6 +435,228 @@ public class MultilevelPlot {
     }
   }
 
+  /**
+   * The map function of the bottom-up partitioning. Unlike
+   * {@link PyramidPartitionMap}, each shape is written only to the tiles it
+   * overlaps in the deepest level. The upper levels are built in the reduce
+   * phase by downsampling the deepest level.
+   */
+  public static class BottomUpPartitionMap extends
+      Mapper<Rectangle, Iterable<? extends Shape>, TileIndex, Shape> {
+
+    /**The grid of the lowest (deepest) level of the pyramid*/
+    private GridInfo bottomGrid;
+    /**The deepest level of the pyramid*/
+    private int maxLevel;
+
+    @Override
+    protected void setup(Context context)
+        throws IOException, InterruptedException {
+      super.setup(context);
+      Configuration conf = context.getConfiguration();
+      String[] strLevels = conf.get("levels", "7").split("\\.\\.");
+      maxLevel = Integer.parseInt(strLevels[strLevels.length - 1]);
+      Rectangle inputMBR = (Rectangle) OperationsParams.getShape(conf, InputMBR);
+      this.bottomGrid = new GridInfo(inputMBR.x1, inputMBR.y1, inputMBR.x2, inputMBR.y2);
+      this.bottomGrid.rows = bottomGrid.columns = 1 << maxLevel;
+    }
+
+    @Override
+    protected void map(Rectangle partition, Iterable<? extends Shape> shapes,
+        Context context) throws IOException, InterruptedException {
+      TileIndex outKey = new TileIndex();
+      outKey.level = maxLevel;
+      int i = 0;
+      for (Shape shape : shapes) {
+        Rectangle shapeMBR = shape.getMBR();
+        if (shapeMBR == null)
+          continue;
+        java.awt.Rectangle overlappingCells = bottomGrid.getOverlappingCells(shapeMBR);
+        for (outKey.x = overlappingCells.x; outKey.x < overlappingCells.x + overlappingCells.width; outKey.x++) {
+          for (outKey.y = overlappingCells.y; outKey.y < overlappingCells.y + overlappingCells.height; outKey.y++) {
+            context.write(outKey, shape);
+          }
+        }
+        if (((++i) & 0xff) == 0)
+          context.progress();
+      }
+    }
+  }
+
+  /**
+   * Assigns all the tiles under one tile in the top level of the bottom-up
+   * partitioning, i.e., minLevel, to the same reducer.
+   */
+  public static class BottomUpPartitioner extends
+      org.apache.hadoop.mapreduce.Partitioner<TileIndex, Shape> implements Configurable {
+    private Configuration conf;
+    /**The top level of the pyramid*/
+    private int minLevel;
+
+    @Override
+    public void setConf(Configuration conf) {
+      this.conf = conf;
+      String[] strLevels = conf.get("levels", "7").split("\\.\\.");
+      minLevel = strLevels.length == 1 ? 0 : Integer.parseInt(strLevels[0]);
+    }
+
+    @Override
+    public Configuration getConf() {
+      return conf;
+    }
+
+    @Override
+    public int getPartition(TileIndex tileID, Shape shape, int numPartitions) {
+      int shift = tileID.level - minLevel;
+      long z = ZCurvePartitioner.computeZOrder(tileID.x >> shift, tileID.y >> shift);
+      return (int) (z % numPartitions);
+    }
+  }
+
+  /**
+   * Sorts tiles of the same level by their Z-order so that all the tiles
+   * under one tile in an upper level are consecutive.
+   */
+  public static class TileZOrderComparator extends WritableComparator {
+    public TileZOrderComparator() {
+      super(TileIndex.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      // A TileIndex is serialized as level, x, y
+      int level1 = readInt(b1, s1), level2 = readInt(b2, s2);
+      if (level1 != level2)
+        return level1 - level2;
+      long z1 = ZCurvePartitioner.computeZOrder(readInt(b1, s1 + 4), readInt(b1, s1 + 8));
+      long z2 = ZCurvePartitioner.computeZOrder(readInt(b2, s2 + 4), readInt(b2, s2 + 8));
+      return z1 < z2 ? -1 : (z1 > z2 ? 1 : 0);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public int compare(WritableComparable a, WritableComparable b) {
+      TileIndex t1 = (TileIndex) a, t2 = (TileIndex) b;
+      if (t1.level != t2.level)
+        return t1.level - t2.level;
+      long z1 = ZCurvePartitioner.computeZOrder(t1.x, t1.y);
+      long z2 = ZCurvePartitioner.computeZOrder(t2.x, t2.y);
+      return z1 < z2 ? -1 : (z1 > z2 ? 1 : 0);
+    }
+  }
+
+  /**
+   * The reduce function of the bottom-up partitioning. It receives the tiles
+   * of the deepest level in Z-order, plots each one from its shapes, and
+   * downsamples it into its parent. Since the children of a tile are
+   * consecutive in Z-order, a tile is written as soon as a tile outside of
+   * it arrives which keeps at most one open canvas per level.
+   */
+  public static class BottomUpPartitionReduce extends
+      Reducer<TileIndex, Shape, TileIndex, Canvas> {
+
+    private int minLevel, maxLevel;
+    private Rectangle inputMBR;
+    /**The user-configured plotter*/
+    private Plotter plotter;
+    /**Size of each tile in pixels*/
+    private int tileWidth, tileHeight;
+    /**Whether the configured plotter defines a smooth function or not*/
+    private boolean smooth;
+    /**The tile in each level that has not received all its children yet*/
+    private TileIndex[] openTiles;
+    /**The canvases of the open tiles*/
+    private Canvas[] openCanvases;
+
+    @Override
+    protected void setup(Context context)
+        throws IOException, InterruptedException {
+      super.setup(context);
+      Configuration conf = context.getConfiguration();
+      String[] strLevels = conf.get("levels", "7").split("\\.\\.");
+      if (strLevels.length == 1) {
+        minLevel = 0;
+        maxLevel = Integer.parseInt(strLevels[0]);
+      } else {
+        minLevel = Integer.parseInt(strLevels[0]);
+        maxLevel = Integer.parseInt(strLevels[1]);
+      }
+      this.inputMBR = (Rectangle) OperationsParams.getShape(conf, InputMBR);
+      this.plotter = Plotter.getPlotter(conf);
+      this.smooth = plotter.isSmooth();
+      this.tileWidth = conf.getInt("tilewidth", 256);
+      this.tileHeight = conf.getInt("tileheight", 256);
+      this.openTiles = new TileIndex[maxLevel];
+      this.openCanvases = new Canvas[maxLevel];
+    }
+
+    @Override
+    protected void reduce(TileIndex tileID, Iterable<Shape> shapes, Context context)
+        throws IOException, InterruptedException {
+      Canvas canvas = plotter.createCanvas(tileWidth, tileHeight,
+          getTileMBR(inputMBR, tileID));
+      if (smooth)
+        shapes = plotter.smooth(shapes);
+      int i = 0;
+      for (Shape shape : shapes) {
+        plotter.plot(canvas, shape);
+        if (((++i) & 0xff) == 0)
+          context.progress();
+      }
+      closeTile(tileID.clone(), canvas, context);
+    }
+
+    /**
+     * Writes a tile that is complete to the output after downsampling it
+     * into its parent.
+     * @param tileID
+     * @param canvas
+     * @param context
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void closeTile(TileIndex tileID, Canvas canvas, Context context)
+        throws IOException, InterruptedException {
+      if (tileID.level > minLevel) {
+        int parentLevel = tileID.level - 1;
+        TileIndex parent = openTiles[parentLevel];
+        if (parent != null && (parent.x != tileID.x >> 1 || parent.y != tileID.y >> 1)) {
+          // No more children will arrive for the open parent
+          closeOpenTile(parentLevel, context);
+          parent = null;
+        }
+        if (parent == null) {
+          parent = new TileIndex(parentLevel, tileID.x >> 1, tileID.y >> 1);
+          openTiles[parentLevel] = parent;
+          openCanvases[parentLevel] = plotter.createCanvas(tileWidth,
+              tileHeight, getTileMBR(inputMBR, parent));
+        }
+        plotter.downsample(openCanvases[parentLevel], canvas);
+      }
+      context.write(tileID, canvas);
+    }
+
+    private void closeOpenTile(int level, Context context)
+        throws IOException, InterruptedException {
+      TileIndex tileID = openTiles[level];
+      Canvas canvas = openCanvases[level];
+      openTiles[level] = null;
+      openCanvases[level] = null;
+      closeTile(tileID, canvas, context);
+    }
+
+    @Override
+    protected void cleanup(Context context)
+        throws IOException, InterruptedException {
+      // Close the remaining open tiles from the bottom up
+      for (int level = maxLevel - 1; level >= minLevel; level--) {
+        if (openTiles[level] != null)
+          closeOpenTile(level, context);
+      }
+      super.cleanup(context);
+    }
+  }
+
   private static Job plotMapReduce(Path[] inFiles, Path outFile,
       Class<? extends Plotter> plotterClass, OperationsParams params)
       throws IOException, InterruptedException, ClassNotFoundException {
@@ -474,6 +705,10 @@ public class MultilevelPlot {
     
     // Set mapper, reducer and committer
     String partitionTechnique = params.get("partition", "flat");
+    if (partitionTechnique.equalsIgnoreCase("bottomup") && !plotter.isDownsampleSupported()) {
+      LOG.warn("Plotter "+plotterClass.getName()+" does not support downsampling. Using pyramid partitioning");
+      partitionTechnique = "pyramid";
+    }
     if (partitionTechnique.equalsIgnoreCase("flat")) {
       // Use flat partitioning
       job.setMapperClass(FlatPartitionMap.class);
@@ -487,6 +722,15 @@ public class MultilevelPlot {
       job.setMapOutputKeyClass(TileIndex.class);
       job.setMapOutputValueClass(shape.getClass());
       job.setReducerClass(PyramidPartitionReduce.class);
+    } else if (partitionTechnique.equalsIgnoreCase("bottomup")) {
+      // Plot the deepest level and downsample it to build upper levels
+      Shape shape = params.getShape("shape");
+      job.setMapperClass(BottomUpPartitionMap.class);
+      job.setMapOutputKeyClass(TileIndex.class);
+      job.setMapOutputValueClass(shape.getClass());
+      job.setPartitionerClass(BottomUpPartitioner.class);
+      job.setSortComparatorClass(TileZOrderComparator.class);
+      job.setReducerClass(BottomUpPartitionReduce.class);
     } else {
       throw new RuntimeException("Unknown partitioning technique '"+partitionTechnique+"'");
     }
@@ -731,6 +975,105 @@ public class MultilevelPlot {
     }
   }
   
+  /**
+   * Returns the MBR of a tile in a pyramid built over the given input MBR.
+   * @param inputMBR
+   * @param tileID
+   * @return
+   */
+  public static Rectangle getTileMBR(Rectangle inputMBR, TileIndex tileID) {
+    Rectangle tileMBR = new Rectangle();
+    int gridSize = 1 << tileID.level;
+    tileMBR.x1 = (inputMBR.x1 * (gridSize - tileID.x) + inputMBR.x2 * tileID.x) / gridSize;
+    tileMBR.x2 = (inputMBR.x1 * (gridSize - (tileID.x + 1)) + inputMBR.x2 * (tileID.x+1)) / gridSize;
+    tileMBR.y1 = (inputMBR.y1 * (gridSize - tileID.y) + inputMBR.y2 * tileID.y) / gridSize;
+    tileMBR.y2 = (inputMBR.y1 * (gridSize - (tileID.y + 1)) + inputMBR.y2 * (tileID.y+1)) / gridSize;
+    return tileMBR;
+  }
+
+  /**
+   * Plots one tile of the pyramid on demand without generating any other
+   * tiles. Only the partitions of the input that overlap the tile are read
+   * and local R-tree indexes are used to retrieve the shapes in the tile.
+   * If the input is indexed with a replicated index, each shape is plotted
+   * once using the reference point technique.
+   * @param inFile - the input file, preferably spatially indexed
+   * @param inputMBR - the MBR of the whole pyramid
+   * @param tileID - the tile to plot with the same numbering used in the
+   *  file names of tiles, i.e., vertically flipped if 'vflip' is set
+   * @param plotter - a configured plotter
+   * @param out - the output stream to write the image to
+   * @param params
+   * @return - number of plotted shapes
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static long plotTile(Path inFile, Rectangle inputMBR, TileIndex tileID,
+      Plotter plotter, DataOutputStream out, OperationsParams params)
+      throws IOException, InterruptedException {
+    boolean vflip = params.getBoolean("vflip", true);
+    int tileWidth = params.getInt("tilewidth", 256);
+    int tileHeight = params.getInt("tileheight", 256);
+    TileIndex key = tileID.clone();
+    if (vflip)
+      key.y = ((1 << key.level) - 1) - key.y;
+    Rectangle tileMBR = getTileMBR(inputMBR, key);
+    Canvas canvas = plotter.createCanvas(tileWidth, tileHeight, tileMBR);
+
+    // Use the query range to skip partitions and search the local indexes
+    OperationsParams queryParams = new OperationsParams(params);
+    OperationsParams.setShape(queryParams, SpatialInputFormat3.InputQueryRange, tileMBR);
+    FileSystem inFs = inFile.getFileSystem(params);
+    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(inFs, inFile);
+    boolean replicated = gindex != null && gindex.isReplicated();
+    SpatialInputFormat3<Rectangle, Shape> inputFormat =
+        new SpatialInputFormat3<Rectangle, Shape>();
+    Job job = Job.getInstance(queryParams);
+    SpatialInputFormat3.setInputPaths(job, inFile);
+    long numShapes = 0;
+    // Smooth the shapes of each partition as the map function does so that
+    // the tile matches a pre-generated one
+    boolean smooth = plotter.isSmooth();
+    for (InputSplit split : inputFormat.getSplits(job)) {
+      FileSplit fsplit = (FileSplit) split;
+      RecordReader<Rectangle, Iterable<Shape>> reader =
+          inputFormat.createRecordReader(fsplit, null);
+      if (reader instanceof SpatialRecordReader3) {
+        ((SpatialRecordReader3)reader).initialize(fsplit, queryParams);
+      } else if (reader instanceof RTreeRecordReader3) {
+        ((RTreeRecordReader3)reader).initialize(fsplit, queryParams);
+      } else if (reader instanceof HDFRecordReader) {
+        ((HDFRecordReader)reader).initialize(fsplit, queryParams);
+      } else {
+        throw new RuntimeException("Unknown record reader");
+      }
+      while (reader.nextKeyValue()) {
+        Rectangle partition = reader.getCurrentKey();
+        Iterable<Shape> shapes = reader.getCurrentValue();
+        if (smooth)
+          shapes = plotter.smooth(shapes);
+        for (Shape shape : shapes) {
+          Rectangle shapeMBR = shape.getMBR();
+          if (shapeMBR == null)
+            continue;
+          if (replicated) {
+            // Plot the shape only from the partition that contains the
+            // lower corner of its intersection with the tile
+            double refX = Math.max(shapeMBR.x1, tileMBR.x1);
+            double refY = Math.max(shapeMBR.y1, tileMBR.y1);
+            if (!partition.contains(refX, refY))
+              continue;
+          }
+          plotter.plot(canvas, shape);
+          numShapes++;
+        }
+      }
+      reader.close();
+    }
+    plotter.writeImage(canvas, out, vflip);
+    return numShapes;
+  }
+
   public static Job plot(Path[] inPaths, Path outPath,
       Class<? extends Plotter> plotterClass, OperationsParams params)
       throws IOException, InterruptedException, ClassNotFoundException {
@@ -786,8 +1129,9 @@ public class MultilevelPlot {
       if (maxLevel > maxLevelWithFlatPartitioning) {
         OperationsParams pyramidPartitioning = new OperationsParams(params);
         pyramidPartitioning.set("levels", Math.max(minLevel, maxLevelWithFlatPartitioning+1)+".."+maxLevel);
-        pyramidPartitioning.set("partition", "pyramid");
-        LOG.info("Using pyramid partitioning in levels "+pyramidPartitioning.get("levels"));
+        pyramidPartitioning.set("partition",
+            params.getBoolean(BottomUpAggregation, false) ? "bottomup" : "pyramid");
+        LOG.info("Using "+pyramidPartitioning.get("partition")+" partitioning in levels "+pyramidPartitioning.get("levels"));
         runningJob = plotMapReduce(inPaths, new Path(outPath, "pyramid"), plotterClass, pyramidPartitioning);
       }
       // Write a new HTML file that displays both parts of the pyramid
@@ -96,6 +96,26 @@ public abstract class Plotter {
    */
   public abstract void merge(Canvas finalLayer, Canvas intermediateLayer);
 
+  /**
+   * Merges the canvas of a tile into the canvas of its parent tile in a
+   * pyramid. Both canvases have the same size in pixels while the child
+   * covers one quadrant of the parent. This is used to build the upper
+   * levels of a pyramid from the levels below them rather than from the input.
+   * @param parentLayer - the canvas of the parent tile
+   * @param childLayer - the canvas of one of the four children of the parent
+   */
+  public void downsample(Canvas parentLayer, Canvas childLayer) {
+    throw new RuntimeException("Not implemented");
+  }
+
+  /**
+   * Tells whether this plotter supports the downsample function or not.
+   * @return
+   */
+  public boolean isDownsampleSupported() {
+    return false;
+  }
+
   /**
    * Writes a canvas as an image to the output.
    * @param layer - the layer to be written to the output as an image
@@ -0,0 +1,288 @@
+/***********************************************************************
+ * Copyright (c) 2015 by Regents of the University of Minnesota.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Apache License, Version 2.0 which
+ * accompanies this distribution and is available at
+ * http://www.opensource.org/licenses/apache2.0.php.
+ *
+ *************************************************************************/
+package edu.umn.cs.spatialHadoop.visualization;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A two-level cache of image tiles. Recently used tiles are kept in memory
+ * and tiles evicted from memory are spilled to a local directory. Each level
+ * is bounded by its total size in bytes and evicts the least recently used
+ * tiles first. Each key includes the modification time of the source of
+ * the tile so a regenerated pyramid gets new keys and the tiles of the old
+ * one are never served again. They are evicted as they become least
+ * recently used.
+ * This class is thread-safe.
+ */
+public class TileCache {
+  private static final Log LOG = LogFactory.getLog(TileCache.class);
+
+  /**Identifies one tile by the pyramid it belongs to and its position*/
+  public static class TileKey {
+    /**The directory that contains the pyramid*/
+    public final String dataset;
+    public final TileIndex tile;
+    /**The extension of the image file, e.g., '.png'*/
+    public final String format;
+    /**Modification time of the file or dataset the tile is created from*/
+    public final long lastModified;
+
+    public TileKey(String dataset, TileIndex tile, String format,
+        long lastModified) {
+      this.dataset = dataset;
+      this.tile = tile;
+      this.format = format;
+      this.lastModified = lastModified;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = (dataset.hashCode() * 31 + tile.hashCode()) * 31 + format.hashCode();
+      return hash * 31 + (int) (lastModified ^ (lastModified >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof TileKey))
+        return false;
+      TileKey b = (TileKey) obj;
+      return dataset.equals(b.dataset) && tile.equals(b.tile) &&
+          format.equals(b.format) && lastModified == b.lastModified;
+    }
+
+    @Override
+    public String toString() {
+      return dataset + "/" + tile.getImageFileName() + format + "@" + lastModified;
+    }
+  }
+
+  /**The contents of a tile along with the validators sent to clients*/
+  public static class CachedTile {
+    public final byte[] data;
+    /**The entity tag of the file the tile was read from*/
+    public final String etag;
+    /**Modification time of the file the tile was read from*/
+    public final long lastModified;
+
+    public CachedTile(byte[] data, String etag, long lastModified) {
+      this.data = data;
+      this.etag = etag;
+      this.lastModified = lastModified;
+    }
+  }
+
+  /**A tile spilled to the local disk*/
+  private static class DiskEntry {
+    final File file;
+    final int length;
+    final String etag;
+    final long lastModified;
+
+    DiskEntry(File file, int length, String etag, long lastModified) {
+      this.file = file;
+      this.length = length;
+      this.etag = etag;
+      this.lastModified = lastModified;
+    }
+  }
+
+  /**Maximum total size of tiles in memory in bytes*/
+  private final long maxMemoryBytes;
+  /**Maximum total size of tiles on the local disk in bytes*/
+  private final long maxDiskBytes;
+  /**The directory that stores tiles spilled to disk*/
+  private final File diskDir;
+
+  /**Tiles in memory in access order, least recently used first*/
+  private final LinkedHashMap<TileKey, CachedTile> memoryTiles =
+      new LinkedHashMap<TileKey, CachedTile>(16, 0.75f, true);
+  private long memoryBytes;
+  /**Tiles on disk in access order, least recently used first*/
+  private final LinkedHashMap<TileKey, DiskEntry> diskTiles =
+      new LinkedHashMap<TileKey, DiskEntry>(16, 0.75f, true);
+  private long diskBytes;
+  /**Used to generate unique names for the files of spilled tiles*/
+  private long nextFileID;
+
+  private long memoryHits, diskHits, misses, evictions;
+
+  /**
+   * Creates a new cache. Any tiles left in the disk directory from a previous
+   * run are removed.
+   * @param maxMemoryBytes
+   * @param maxDiskBytes - zero to disable spilling to disk
+   * @param diskDir
+   */
+  public TileCache(long maxMemoryBytes, long maxDiskBytes, File diskDir) {
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.maxDiskBytes = maxDiskBytes;
+    this.diskDir = diskDir;
+    if (maxDiskBytes > 0) {
+      diskDir.mkdirs();
+      File[] oldFiles = diskDir.listFiles();
+      if (oldFiles != null) {
+        for (File oldFile : oldFiles)
+          if (oldFile.getName().endsWith(".tile"))
+            oldFile.delete();
+      }
+    }
+  }
+
+  /**
+   * Returns the cached tile or <code>null</code> if it is not cached. A tile
+   * found on disk is moved back to memory. The disk is read without holding
+   * the lock of the cache so that other requests are not blocked meanwhile.
+   * @param key
+   * @return
+   */
+  public CachedTile get(TileKey key) {
+    DiskEntry entry;
+    synchronized (this) {
+      CachedTile tile = memoryTiles.get(key);
+      if (tile != null) {
+        memoryHits++;
+        return tile;
+      }
+      entry = diskTiles.get(key);
+      if (entry == null) {
+        misses++;
+        return null;
+      }
+    }
+    byte[] data = new byte[entry.length];
+    try {
+      DataInputStream in = new DataInputStream(new FileInputStream(entry.file));
+      try {
+        in.readFully(data);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      // The file might have been evicted by another request after the lookup
+      synchronized (this) {
+        if (diskTiles.get(key) == entry) {
+          LOG.warn("Error reading cached tile "+key+" from "+entry.file, e);
+          removeFromDisk(key);
+        }
+        misses++;
+      }
+      return null;
+    }
+    CachedTile tile = new CachedTile(data, entry.etag, entry.lastModified);
+    synchronized (this) {
+      diskHits++;
+      // The disk copy is kept so that the tile is not written again
+      if (!memoryTiles.containsKey(key))
+        putInMemory(key, tile);
+    }
+    return tile;
+  }
+
+  /**
+   * Adds a tile to the cache. Tiles that are larger than the memory cache are
+   * not cached.
+   * @param key
+   * @param tile
+   */
+  public synchronized void put(TileKey key, CachedTile tile) {
+    if (tile.data.length > maxMemoryBytes)
+      return;
+    CachedTile oldTile = memoryTiles.remove(key);
+    if (oldTile != null)
+      memoryBytes -= oldTile.data.length;
+    if (diskTiles.containsKey(key))
+      removeFromDisk(key);
+    putInMemory(key, tile);
+  }
+
+  private void putInMemory(TileKey key, CachedTile tile) {
+    memoryTiles.put(key, tile);
+    memoryBytes += tile.data.length;
+    Iterator<Map.Entry<TileKey, CachedTile>> lru = memoryTiles.entrySet().iterator();
+    while (memoryBytes > maxMemoryBytes && lru.hasNext()) {
+      Map.Entry<TileKey, CachedTile> eldest = lru.next();
+      if (eldest.getKey().equals(key))
+        continue;
+      lru.remove();
+      memoryBytes -= eldest.getValue().data.length;
+      evictions++;
+      spill(eldest.getKey(), eldest.getValue());
+    }
+  }
+
+  /**
+   * Writes a tile evicted from memory to the disk if it is not already there
+   * and evicts the least recently used tiles from disk to make room for it.
+   * @param key
+   * @param tile
+   */
+  private void spill(TileKey key, CachedTile tile) {
+    if (tile.data.length > maxDiskBytes || diskTiles.containsKey(key))
+      return;
+    File file = new File(diskDir, (nextFileID++) + ".tile");
+    try {
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+        out.write(tile.data);
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Error spilling tile "+key+" to "+file, e);
+      file.delete();
+      return;
+    }
+    diskTiles.put(key, new DiskEntry(file, tile.data.length, tile.etag,
+        tile.lastModified));
+    diskBytes += tile.data.length;
+    Iterator<Map.Entry<TileKey, DiskEntry>> lru = diskTiles.entrySet().iterator();
+    while (diskBytes > maxDiskBytes && lru.hasNext()) {
+      Map.Entry<TileKey, DiskEntry> eldest = lru.next();
+      if (eldest.getKey().equals(key))
+        continue;
+      lru.remove();
+      diskBytes -= eldest.getValue().length;
+      eldest.getValue().file.delete();
+    }
+  }
+
+  private void removeFromDisk(TileKey key) {
+    DiskEntry entry = diskTiles.remove(key);
+    if (entry != null) {
+      diskBytes -= entry.length;
+      entry.file.delete();
+    }
+  }
+
+  /**
+   * Returns the hit and miss counts and the current size of the cache as a
+   * JSON object.
+   * @return
+   */
+  public synchronized String getStatistics() {
+    long requests = memoryHits + diskHits + misses;
+    double hitRatio = requests == 0 ? 0 : (double) (memoryHits + diskHits) / requests;
+    return String.format(Locale.US, "{\"memoryHits\":%d,\"diskHits\":%d,\"misses\":%d," +
+        "\"hitRatio\":%.4f,\"evictions\":%d,\"memoryTiles\":%d," +
+        "\"memoryBytes\":%d,\"diskTiles\":%d,\"diskBytes\":%d}",
+        memoryHits, diskHits, misses, hitRatio, evictions,
+        memoryTiles.size(), memoryBytes, diskTiles.size(), diskBytes);
+  }
+}
@@ -81,4 +81,27 @@ public class TileIndex implements WritableComparable<TileIndex> {
   public String getImageFileName() {
     return "tile-"+this.level+"-"+this.x+"-"+this.y;
   }
+
+  /**
+   * Parses a file name produced by {@link #getImageFileName()} with or
+   * without an extension.
+   * @param fileName
+   * @return - the index of the tile or <code>null</code> if the name does not
+   *  belong to a tile
+   */
+  public static TileIndex fromImageFileName(String fileName) {
+    if (!fileName.startsWith("tile-"))
+      return null;
+    int extensionStart = fileName.indexOf('.');
+    String[] parts = fileName.substring(5,
+        extensionStart == -1 ? fileName.length() : extensionStart).split("-");
+    if (parts.length != 3)
+      return null;
+    try {
+      return new TileIndex(Integer.parseInt(parts[0]),
+          Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
 }
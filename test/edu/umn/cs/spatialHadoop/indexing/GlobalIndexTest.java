@@ -0,0 +1,94 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+
+public class GlobalIndexTest {
+
+  /**
+   * Creates a global index of a uniform grid of partitions named after their
+   * position in the grid as the indexer does.
+   * @param columns
+   * @param rows
+   * @param offset - shifts the whole grid along both axes
+   * @return
+   */
+  static GlobalIndex<Partition> gridIndex(int columns, int rows, double offset) {
+    Partition[] partitions = new Partition[columns * rows];
+    for (int row = 0; row < rows; row++) {
+      for (int col = 0; col < columns; col++) {
+        int id = row * columns + col;
+        partitions[id] = new Partition(String.format("part-%05d", id),
+            new CellInfo(id + 1, col + offset, row + offset,
+                col + 1 + offset, row + 1 + offset));
+      }
+    }
+    GlobalIndex<Partition> gindex = new GlobalIndex<Partition>();
+    gindex.bulkLoad(partitions);
+    return gindex;
+  }
+
+  /**
+   * Counts the overlapping pairs by comparing all pairs of partitions
+   * @param gindex1
+   * @param gindex2
+   * @return
+   */
+  static int bruteForceJoin(GlobalIndex<Partition> gindex1,
+      GlobalIndex<Partition> gindex2) {
+    int count = 0;
+    for (Partition p1 : gindex1)
+      for (Partition p2 : gindex2)
+        if (p1.isIntersected(p2))
+          count++;
+    return count;
+  }
+
+  @Test
+  public void testJoinSameGrid() {
+    // Partitions with the same name in the two inputs cover the same cell
+    // and should be reported as overlapping
+    GlobalIndex<Partition> gindex1 = gridIndex(2, 2, 0);
+    GlobalIndex<Partition> gindex2 = gridIndex(2, 2, 0);
+    final int[] samePairs = {0};
+    int count = GlobalIndex.spatialJoin(gindex1, gindex2,
+        new ResultCollector2<Partition, Partition>() {
+      @Override
+      public void collect(Partition r, Partition s) {
+        if (r.filename.equals(s.filename))
+          samePairs[0]++;
+      }
+    });
+    assertEquals(bruteForceJoin(gindex1, gindex2), count);
+    assertEquals(4, samePairs[0]);
+  }
+
+  @Test
+  public void testJoinLargeSameGrid() {
+    // Enough partitions to build internal nodes in both trees
+    GlobalIndex<Partition> gindex1 = gridIndex(30, 20, 0);
+    GlobalIndex<Partition> gindex2 = gridIndex(30, 20, 0);
+    assertEquals(bruteForceJoin(gindex1, gindex2),
+        GlobalIndex.spatialJoin(gindex1, gindex2, null));
+  }
+
+  @Test
+  public void testJoinShiftedGrid() {
+    GlobalIndex<Partition> gindex1 = gridIndex(30, 20, 0);
+    GlobalIndex<Partition> gindex2 = gridIndex(12, 25, 0.5);
+    assertEquals(bruteForceJoin(gindex1, gindex2),
+        GlobalIndex.spatialJoin(gindex1, gindex2, null));
+  }
+}
@@ -0,0 +1,96 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.nasa;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
+
+public class HDFRecordReaderTest {
+
+  static final int H = 10, V = 5, Resolution = 240;
+
+  /**
+   * Computes the MBR of one cell in the same way the record reader does
+   * @param row
+   * @param col
+   * @return
+   */
+  static Rectangle cellMBR(int row, int col) {
+    double y2 = (90 - V * 10) - (double) row * 10 / Resolution;
+    double y1 = (90 - V * 10) - (double) (row + 1) * 10 / Resolution;
+    double left = (H * 10 - 180) + (double) col * 10 / Resolution;
+    double right = (H * 10 - 180) + (double) (col + 1) * 10 / Resolution;
+    double[] xs = {left / Math.cos(y1 * Math.PI / 180),
+        left / Math.cos(y2 * Math.PI / 180),
+        right / Math.cos(y1 * Math.PI / 180),
+        right / Math.cos(y2 * Math.PI / 180)};
+    Rectangle mbr = new Rectangle(xs[0], y1, xs[0], y2);
+    for (double x : xs) {
+      mbr.x1 = Math.min(mbr.x1, x);
+      mbr.x2 = Math.max(mbr.x2, x);
+    }
+    return mbr;
+  }
+
+  /**
+   * Creates a configuration with a query range that covers the cells in
+   * the given rows and columns
+   * @return
+   */
+  static Configuration queryConf(int row1, int col1, int row2, int col2) {
+    Rectangle queryRange = cellMBR(row1, col1);
+    queryRange.expand(cellMBR(row2, col2));
+    Configuration conf = new Configuration();
+    OperationsParams.setShape(conf, SpatialInputFormat3.InputQueryRange, queryRange);
+    return conf;
+  }
+
+  @Test
+  public void testRecoverHolesDecodesWholeDataset() {
+    // Recovering holes interpolates along whole rows and columns so the
+    // values in the query range match a full decode only if it is decoded
+    Configuration conf = queryConf(100, 100, 120, 130);
+    assertArrayEquals(new int[] {0, 0, Resolution, Resolution},
+        HDFRecordReader.computeWindow(conf, H, V, Resolution, true));
+  }
+
+  @Test
+  public void testWindowCoversQueryRange() {
+    Configuration conf = queryConf(100, 100, 120, 130);
+    Rectangle queryRange = OperationsParams.getShape(conf,
+        SpatialInputFormat3.InputQueryRange).getMBR();
+    int[] window = HDFRecordReader.computeWindow(conf, H, V, Resolution, false);
+    assertTrue(window[2] < Resolution && window[3] < Resolution);
+    // All cells that overlap the query range should be in the window
+    for (int row = 0; row < Resolution; row++) {
+      for (int col = 0; col < Resolution; col++) {
+        if (cellMBR(row, col).isIntersected(queryRange)) {
+          assertTrue("Cell ("+row+","+col+") is outside the window",
+              row >= window[0] && row < window[0] + window[3] &&
+              col >= window[1] && col < window[1] + window[2]);
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testWindowedDecodingDisabled() {
+    Configuration conf = queryConf(100, 100, 120, 130);
+    conf.setBoolean(HDFRecordReader.WindowedDecoding, false);
+    assertArrayEquals(new int[] {0, 0, Resolution, Resolution},
+        HDFRecordReader.computeWindow(conf, H, V, Resolution, false));
+  }
+}
@@ -0,0 +1,93 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.umn.cs.spatialHadoop.core.CellInfo;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.operations.JoinPlanner.Algorithm;
+import edu.umn.cs.spatialHadoop.operations.JoinPlanner.InputStats;
+import edu.umn.cs.spatialHadoop.operations.JoinPlanner.Plan;
+
+public class JoinPlannerTest {
+
+  /**Size of each partition in bytes*/
+  static final long PartitionSize = 64 * 1024 * 1024;
+
+  /**Number of records in each partition*/
+  static final long PartitionRecords = 1000000;
+
+  /**
+   * Creates the statistics of a file indexed with a uniform grid of
+   * partitions named after their position in the grid as the indexer does.
+   * @param columns
+   * @param rows
+   * @param offset - shifts the whole grid along both axes
+   * @return
+   */
+  static InputStats gridStats(int columns, int rows, double offset) {
+    Partition[] partitions = new Partition[columns * rows];
+    for (int row = 0; row < rows; row++) {
+      for (int col = 0; col < columns; col++) {
+        int id = row * columns + col;
+        partitions[id] = new Partition(String.format("part-%05d", id),
+            new CellInfo(id + 1, col + offset, row + offset,
+                col + 1 + offset, row + 1 + offset));
+        partitions[id].size = PartitionSize;
+        partitions[id].recordCount = PartitionRecords;
+      }
+    }
+    InputStats stats = new InputStats();
+    stats.gindex = new GlobalIndex<Partition>();
+    stats.gindex.bulkLoad(partitions);
+    stats.size = partitions.length * PartitionSize;
+    stats.recordCount = partitions.length * PartitionRecords;
+    stats.numBlocks = partitions.length;
+    return stats;
+  }
+
+  @Test
+  public void testDirectJoinSameGrid() {
+    // Each partition overlaps only its counterpart with the same name in the
+    // other file as neighbors only touch
+    InputStats[] stats = {gridStats(10, 10, 0), gridStats(10, 10, 0)};
+    Plan plan = JoinPlanner.estimateDirectJoin(stats);
+    long numPairs = 100;
+    long expectedCost = numPairs * 2 * PartitionSize +
+        numPairs * 2 * PartitionRecords * JoinPlanner.RecordJoinCost +
+        numPairs * JoinPlanner.TaskOverhead;
+    assertEquals(expectedCost, plan.cost);
+  }
+
+  @Test
+  public void testDirectJoinShiftedGrid() {
+    // Each partition overlaps four partitions of the other file except at
+    // the boundaries of the grid
+    InputStats[] stats = {gridStats(10, 10, 0), gridStats(10, 10, 0.5)};
+    Plan plan = JoinPlanner.estimateDirectJoin(stats);
+    long numPairs = 10 * 10 * 4 - 2 * 10 - 2 * 10 + 1;
+    long expectedCost = numPairs * 2 * PartitionSize +
+        numPairs * 2 * PartitionRecords * JoinPlanner.RecordJoinCost +
+        numPairs * JoinPlanner.TaskOverhead;
+    assertEquals(expectedCost, plan.cost);
+  }
+
+  @Test
+  public void testSameGridSelectsDirectJoin() {
+    InputStats[] stats = {gridStats(10, 10, 0), gridStats(10, 10, 0)};
+    List<Plan> plans = JoinPlanner.estimatePlans(stats, 0);
+    assertEquals(Algorithm.DIRECT, plans.get(0).algorithm);
+  }
+}